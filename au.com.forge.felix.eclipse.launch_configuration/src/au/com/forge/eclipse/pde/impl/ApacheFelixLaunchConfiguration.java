@@ -43,6 +43,7 @@ import org.eclipse.core.runtime.FileLocator;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.debug.core.DebugPlugin;
 import org.eclipse.debug.core.ILaunchConfiguration;
 import org.eclipse.jdt.launching.IJavaLaunchConfigurationConstants;
 import org.eclipse.pde.core.plugin.IMatchRules;
@@ -95,6 +96,22 @@ public class ApacheFelixLaunchConfiguration extends
 	 */
 	private static final String LAUNCHER_CONFIG_PROPERTY_KEY = "au.com.forge.felix.config.properties";
 
+	/**
+	 * The property that installs target platform bundles by reference
+	 * (with <code>reference:file:</code> locations), so Felix uses them
+	 * in place instead of copying them into the bundle cache. It is read
+	 * from the VM arguments of the launch configuration.
+	 */
+	private static final String TARGET_REFERENCE_PROPERTY_KEY = "au.com.forge.felix.config.target.reference";
+
+	/**
+	 * The property that keeps the bundle cache between launches, so the
+	 * launcher only installs and uninstalls the bundles that were added
+	 * to or removed from the launch. It is read from the VM arguments of
+	 * the launch configuration (and by the launcher itself).
+	 */
+	private static final String WARM_START_PROPERTY_KEY = "au.com.forge.felix.config.warmstart";
+
 	/**
 	 * The bundle name of the Apache Felix main bundle.
 	 */
@@ -153,19 +170,23 @@ public class ApacheFelixLaunchConfiguration extends
 	}
 
 	/**
-	 * Cleanup working directories and configuration
+	 * Cleanup working directories and configuration. The bundle cache
+	 * is kept for a warm start unless the configuration area is being
+	 * cleared.
 	 */
 	protected void clear(ILaunchConfiguration configuration,
 			IProgressMonitor monitor) throws CoreException {
+		boolean clearArea = configuration.getAttribute(
+				IPDELauncherConstants.CONFIG_CLEAR_AREA, false);
 		
 		File bundleCacheDir = new File(getConfigDir(configuration),
 				"bundle-cache");
-		{
+		if (clearArea
+				|| !getBooleanVMProperty(configuration, WARM_START_PROPERTY_KEY)) {
 			IFileStore bundleCacheStore = EFS.getStore(bundleCacheDir.toURI());
 			bundleCacheStore.delete(EFS.NONE, monitor);
 		}
-		if (configuration.getAttribute(IPDELauncherConstants.CONFIG_CLEAR_AREA,
-				false)) {
+		if (clearArea) {
 			File confDir = new File(getConfigDir(configuration), "conf");
 			IFileStore confDirStore = EFS.getStore(confDir.toURI());
 			confDirStore.delete(EFS.NONE, monitor);
@@ -519,7 +540,10 @@ public class ApacheFelixLaunchConfiguration extends
 		String[] targetPlugins = getTargetPluginList(configuration);
 		if (targetPlugins != null) {
 			parseBundleList(defaultStartLevel, defaultAutoStart, targetPlugins,
-					startLevelBundles, installLevelBundles, "file");
+					startLevelBundles, installLevelBundles,
+					getBooleanVMProperty(configuration,
+							TARGET_REFERENCE_PROPERTY_KEY) ? "reference:file"
+							: "file");
 		}
 
 		// Parse the list of selected Workspace bundles
@@ -548,6 +572,35 @@ public class ApacheFelixLaunchConfiguration extends
 		return configPropertiesFile.toURI().toString();
 	}
 
+	/**
+	 * Read a boolean property that is set with a <code>-D</code> option
+	 * in the VM arguments of the launch configuration, such as
+	 * {@link #TARGET_REFERENCE_PROPERTY_KEY}.
+	 * 
+	 * @param configuration
+	 *            launch configuration
+	 * @param key
+	 *            the property name
+	 * @return true if the property is set to true
+	 * @throws CoreException
+	 */
+	private boolean getBooleanVMProperty(ILaunchConfiguration configuration,
+			String key) throws CoreException {
+		String[] vmArguments = DebugPlugin.parseArguments(configuration
+				.getAttribute(IJavaLaunchConfigurationConstants.ATTR_VM_ARGUMENTS,
+						""));
+		String prefix = "-D" + key + "=";
+		boolean value = false;
+		for (int i = 0; i < vmArguments.length; i++) {
+			// The last setting wins, as it does for the VM
+			if (vmArguments[i].startsWith(prefix))
+				value = Boolean.valueOf(
+						vmArguments[i].substring(prefix.length()))
+						.booleanValue();
+		}
+		return value;
+	}
+
 	/**
 	 * Retrieve the target plugin list from the launch configuration
 	 * 
@@ -584,7 +637,8 @@ public class ApacheFelixLaunchConfiguration extends
 	 *            The map of install level => bundles (bundles which are to be
 	 *            installed only)
 	 * @param protocol
-	 *            The protocol used to launch the plugin.
+	 *            The protocol used to launch the plugin (e.g. "file", or
+	 *            "reference:file" to install it in place).
 	 * @throws CoreException
 	 *             Thrown when an error occurs parsing the target platform
 	 *             plugin names.
@@ -20,30 +20,368 @@
  */
 package au.com.forge.eclipse.osgi.autoupdater.impl;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import au.com.forge.eclipse.osgi.urlhandler.impl.BuilderStatistics;
+import au.com.forge.eclipse.osgi.urlhandler.impl.BundleInputFingerprint;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectMetadata;
+import au.com.forge.eclipse.osgi.urlhandler.impl.FingerprintStrategy;
+import au.com.forge.eclipse.osgi.urlhandler.impl.FlightRecorderEvent;
+import au.com.forge.eclipse.osgi.urlhandler.impl.ProjectBuildStatistics;
 
 /**
- * Automatically updates all the eclipse-project bundles because Felix won't on
- * its own.
+ * Automatically updates the eclipse-project bundles because Felix won't on
+ * its own. Projects installed by reference (from overlay directories under
+ * the <code>au.com.forge.felix.builder.reference.dir</code> property) are
+ * updated as well, so Felix reads their manifests again.
+ * 
+ * A {@link BundleInputFingerprint} of each project is recorded in the
+ * system bundle's data area when its bundle is installed or updated, and
+ * only the bundles whose projects have changed since are updated. The
+ * <code>au.com.forge.felix.autoupdate.fingerprint</code> property chooses
+ * how the project files are compared: by size and modification time
+ * (<code>metadata</code>, the default) or by their contents
+ * (<code>content</code>), which also skips projects that were rebuilt
+ * with identical class files.
+ * 
+ * The updated bundles are refreshed together with everything that
+ * depends on them in a single refresh, so dependent bundles are
+ * resolved again once rather than once per updated bundle.
+ * 
+ * Updates are counted in the {@link BuilderStatistics}, if there are any.
  * 
  * @author Christopher Armstrong
  * 
  */
-public class EclipseProjectURLAutoUpdater implements BundleActivator {
+public class EclipseProjectURLAutoUpdater implements BundleActivator,
+		SynchronousBundleListener {
+
+	private static final String REFERENCE_DIR_PROPERTY_KEY = "au.com.forge.felix.builder.reference.dir";
+
+	/**
+	 * Launcher property naming the {@link FingerprintStrategy} used to
+	 * decide whether a project has changed.
+	 */
+	private static final String FINGERPRINT_PROPERTY_KEY = "au.com.forge.felix.autoupdate.fingerprint";
+
+	/**
+	 * The file in the system bundle's data area holding the fingerprint
+	 * of each bundle, by location.
+	 */
+	private static final String FINGERPRINTS_FILE = "eclipse-project-fingerprints.properties";
+
+	private static final String URL_PREFIX = "eclipse-project:";
+
+	/**
+	 * How long to wait for the updated bundles to be refreshed.
+	 */
+	private static final long REFRESH_TIMEOUT_SECONDS = 60;
+
+	private final Properties fingerprints = new Properties();
+	/** Locations being updated by {@link #updateChanged(Bundle[])} */
+	private final Set<String> updating = new HashSet<String>();
+	private BundleContext context;
+	private FingerprintStrategy strategy;
+	private SAXParserFactory parserFactory;
+	private String overlayPrefix;
+	private BuilderStatistics statistics = null;
 
 	public void start(BundleContext context) throws Exception {
-		Bundle[] bundles = context.getBundles();
+		this.context = context;
+		String overlaysPath = context.getProperty(REFERENCE_DIR_PROPERTY_KEY);
+		overlayPrefix = overlaysPath != null ? "reference:"
+				+ new File(overlaysPath).toURI() : null;
+		strategy = getFingerprintStrategy(context);
+		parserFactory = SAXParserFactory.newInstance();
+		loadFingerprints();
+		updateChanged(context.getBundles());
+
+		// Bundles installed from here on (i.e. by the auto-processor) are
+		// recorded as they are installed
+		context.addBundleListener(this);
+	}
+
+	public void stop(BundleContext context) throws Exception {
+		context.removeBundleListener(this);
+		saveFingerprints();
+	}
+
+	/**
+	 * @param statistics where updates are recorded, or null to not
+	 * record them
+	 */
+	public void setStatistics(BuilderStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Update the project bundles whose projects have changed since they
+	 * were last installed or updated, then refresh them. A bundle that
+	 * fails to update is reported and left as it is.
+	 * 
+	 * @param bundles the bundles to check; bundles that are not
+	 * eclipse-project or reference overlay bundles are ignored
+	 * @return the number of bundles updated
+	 * @throws InterruptedException thrown if interrupted while waiting
+	 * for the refresh
+	 */
+	int updateChanged(Bundle[] bundles) throws InterruptedException {
+		List<Bundle> updated = new ArrayList<Bundle>();
 		for (int i = 0; i < bundles.length; i++) {
 			Bundle b = bundles[i];
-			if (b.getLocation().startsWith("eclipse-project:")) {
+			String location = b.getLocation();
+			if (!isProjectLocation(location))
+				continue;
+			String fingerprint = computeFingerprint(location);
+			if (fingerprint != null
+					&& fingerprint.equals(getFingerprint(location)))
+				continue;
+			synchronized (updating) {
+				updating.add(location);
+			}
+			FlightRecorderEvent event = FlightRecorderEvent
+					.begin(FlightRecorderEvent.BUNDLE_UPDATE);
+			try {
 				b.update();
+			} catch (BundleException e) {
+				System.err.println("Unable to update " + location + ": " + e);
+				continue;
+			} finally {
+				synchronized (updating) {
+					updating.remove(location);
+				}
+				commitUpdateEvent(event, location);
 			}
+			updated.add(b);
+			recordUpdate(location);
+			// The fingerprint from before the update, in case the project
+			// changed while it was being built
+			setFingerprint(location, fingerprint);
 		}
+		saveFingerprints();
+		if (!updated.isEmpty())
+			refresh(context, updated);
+		return updated.size();
 	}
 
-	public void stop(BundleContext arg0) throws Exception {
+	/**
+	 * @param location a bundle location
+	 * @return true if the location is an eclipse-project bundle or a
+	 * reference overlay bundle
+	 */
+	boolean isProjectLocation(String location) {
+		return location.startsWith(URL_PREFIX)
+				|| (overlayPrefix != null && location.startsWith(overlayPrefix));
+	}
+
+	/**
+	 * Record the fingerprint of a project bundle installed or updated
+	 * by someone else.
+	 */
+	public void bundleChanged(BundleEvent event) {
+		if (event.getType() != BundleEvent.INSTALLED
+				&& event.getType() != BundleEvent.UPDATED)
+			return;
+		String location = event.getBundle().getLocation();
+		if (!isProjectLocation(location))
+			return;
+		synchronized (updating) {
+			if (updating.contains(location))
+				return;
+		}
+		setFingerprint(location, computeFingerprint(location));
+		saveFingerprints();
+	}
+
+	/**
+	 * Refresh the updated bundles and their dependents, waiting for the
+	 * refresh to finish.
+	 * 
+	 * @param context the system bundle context
+	 * @param updated the bundles that were updated
+	 * @throws InterruptedException thrown if interrupted while waiting
+	 */
+	private static void refresh(BundleContext context, List<Bundle> updated)
+			throws InterruptedException {
+		FrameworkWiring wiring = context.getBundle(0).adapt(
+				FrameworkWiring.class);
+		Collection<Bundle> closure = wiring.getDependencyClosure(updated);
+		final CountDownLatch refreshed = new CountDownLatch(1);
+		long startTime = System.nanoTime();
+		wiring.refreshBundles(updated, new FrameworkListener() {
+			public void frameworkEvent(FrameworkEvent event) {
+				if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED
+						|| event.getType() == FrameworkEvent.ERROR)
+					refreshed.countDown();
+			}
+		});
+		if (!refreshed.await(REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+			System.err.println("Gave up waiting for " + closure.size()
+					+ " bundles to be refreshed after updating "
+					+ updated.size() + " eclipse-project bundles");
+			return;
+		}
+		System.out.println(String.format(
+				"Refreshed %d bundles after updating %d eclipse-project bundles (%d ms)",
+				closure.size(), updated.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+	}
+
+	/**
+	 * Count an update in the statistics, under the project directory
+	 * (or overlay directory) of the bundle.
+	 */
+	private void recordUpdate(String location) {
+		File directory = getDirectory(location);
+		if (statistics != null && directory != null)
+			statistics.recordUpdate(directory);
+	}
+
+	/**
+	 * Commit the Flight Recorder event of an update, with the entries
+	 * and size of the bundle built for it.
+	 */
+	private void commitUpdateEvent(FlightRecorderEvent event, String location) {
+		if (!event.isEnabled())
+			return;
+		File directory = getDirectory(location);
+		ProjectBuildStatistics project = statistics != null
+				&& directory != null ? statistics
+				.getProjectStatistics(directory) : null;
+		if (project != null)
+			event.commit(directory, location, project.getLastFilesWritten(),
+					project.getLastBytesWritten());
+		else
+			event.commit(directory, location, 0, 0);
+	}
+
+	/**
+	 * @return the project directory (or overlay directory) of a bundle
+	 * location, or null if it is not a file URL
+	 */
+	private static File getDirectory(String location) {
+		try {
+			if (location.startsWith(URL_PREFIX))
+				return new File(location.substring(URL_PREFIX.length()));
+			return new File(new URI(location.substring("reference:".length())));
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the fingerprint of the project at a bundle location, or
+	 * null if it cannot be calculated (in which case the bundle is
+	 * always updated)
+	 */
+	private String computeFingerprint(String location) {
+		try {
+			if (location.startsWith(URL_PREFIX)) {
+				File projectDirectory = new File(location.substring(URL_PREFIX
+						.length()));
+				return BundleInputFingerprint.compute(EclipseProjectMetadata
+						.load(projectDirectory, parserFactory), strategy);
+			}
+			File overlayDirectory = new File(new URI(location
+					.substring("reference:".length())));
+			return BundleInputFingerprint.computeTree(overlayDirectory,
+					strategy);
+		} catch (IOException e) {
+			System.err.println("Unable to fingerprint " + location + ": " + e);
+		} catch (URISyntaxException e) {
+			System.err.println("Unable to fingerprint " + location + ": " + e);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unable to fingerprint " + location + ": " + e);
+		}
+		return null;
+	}
+
+	private synchronized String getFingerprint(String location) {
+		return fingerprints.getProperty(location);
+	}
+
+	private synchronized void setFingerprint(String location,
+			String fingerprint) {
+		if (fingerprint != null)
+			fingerprints.setProperty(location, fingerprint);
+		else
+			fingerprints.remove(location);
+	}
+
+	private synchronized void loadFingerprints() {
+		File file = context.getDataFile(FINGERPRINTS_FILE);
+		if (file == null || !file.isFile())
+			return;
+		try {
+			InputStream input = new FileInputStream(file);
+			try {
+				fingerprints.load(input);
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read the project fingerprints from "
+					+ file + ": " + e);
+		}
+	}
+
+	private synchronized void saveFingerprints() {
+		File file = context.getDataFile(FINGERPRINTS_FILE);
+		if (file == null)
+			return;
+		try {
+			OutputStream output = new FileOutputStream(file);
+			try {
+				fingerprints.store(output, null);
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to record the project fingerprints in "
+					+ file + ": " + e);
+		}
+	}
 
+	private static FingerprintStrategy getFingerprintStrategy(
+			BundleContext context) {
+		String value = context.getProperty(FINGERPRINT_PROPERTY_KEY);
+		if (value == null)
+			return BundleInputFingerprint.FILE_METADATA;
+		FingerprintStrategy strategy = BundleInputFingerprint
+				.getStrategy(value.trim());
+		if (strategy != null)
+			return strategy;
+		System.err.println("Ignoring invalid value for "
+				+ FINGERPRINT_PROPERTY_KEY + ": " + value);
+		return BundleInputFingerprint.FILE_METADATA;
 	}
 }
@@ -0,0 +1,376 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project 
+ *  directories as bundles
+ *  
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.autoupdater.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import au.com.forge.eclipse.osgi.urlhandler.impl.BuilderStatistics;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectMetadata;
+
+/**
+ * Watches the output directories and <code>bin.includes</code>
+ * resources of every eclipse-project bundle while the framework runs,
+ * and has the {@link EclipseProjectURLAutoUpdater} update and refresh
+ * the bundles whose projects change. Changes are collected until none
+ * have arrived for the watch delay, so a burst of changes from the
+ * Eclipse incremental builder causes a single update.
+ * 
+ * Only enabled when the <code>au.com.forge.felix.autoupdate.watch</code>
+ * property is set. Bundles installed by reference are not watched.
+ * 
+ * The time from the first change until the bundles are updated is
+ * recorded in the {@link BuilderStatistics}, if there are any.
+ * 
+ * @author Christopher Armstrong
+ * 
+ */
+public class EclipseProjectWatcher implements BundleActivator,
+		SynchronousBundleListener, Runnable {
+
+	/**
+	 * Launcher property that enables the watcher.
+	 */
+	private static final String WATCH_PROPERTY_KEY = "au.com.forge.felix.autoupdate.watch";
+
+	/**
+	 * Launcher property specifying how long (in milliseconds) to wait
+	 * after the last change to a project before updating its bundle.
+	 */
+	private static final String WATCH_DELAY_PROPERTY_KEY = "au.com.forge.felix.autoupdate.watch.delay";
+
+	private static final long DEFAULT_WATCH_DELAY_MS = 500;
+
+	private static final String URL_PREFIX = "eclipse-project:";
+
+	/**
+	 * A watched directory.
+	 */
+	private static class Watch {
+		final String location;
+		final Path directory;
+		/** True if new subdirectories are watched as well */
+		final boolean recursive;
+
+		Watch(String location, Path directory, boolean recursive) {
+			this.location = location;
+			this.directory = directory;
+			this.recursive = recursive;
+		}
+	}
+
+	private final EclipseProjectURLAutoUpdater updater;
+	private final Map<WatchKey, Watch> watches = new HashMap<WatchKey, Watch>();
+	private BundleContext context;
+	private SAXParserFactory parserFactory;
+	private WatchService watchService;
+	private Thread thread;
+	private long delay;
+	private BuilderStatistics statistics = null;
+
+	/**
+	 * @param updater the updater that updates and refreshes the bundles
+	 */
+	public EclipseProjectWatcher(EclipseProjectURLAutoUpdater updater) {
+		this.updater = updater;
+	}
+
+	/**
+	 * @param statistics where reloads are recorded, or null to not
+	 * record them
+	 */
+	public void setStatistics(BuilderStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public void start(BundleContext context) throws Exception {
+		if (!Boolean.parseBoolean(context.getProperty(WATCH_PROPERTY_KEY)))
+			return;
+		this.context = context;
+		parserFactory = SAXParserFactory.newInstance();
+		delay = getDelay(context);
+		watchService = FileSystems.getDefault().newWatchService();
+		// Bundles installed later (i.e. by the auto-processor) are
+		// watched as they are installed
+		context.addBundleListener(this);
+		Bundle[] bundles = context.getBundles();
+		for (int i = 0; i < bundles.length; i++)
+			watch(bundles[i].getLocation());
+		thread = new Thread(this, "Eclipse project watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop(BundleContext context) throws Exception {
+		if (watchService == null)
+			return;
+		context.removeBundleListener(this);
+		watchService.close();
+		thread.interrupt();
+		thread.join();
+		watchService = null;
+	}
+
+	/**
+	 * Watch projects as they are installed, and watch them again when
+	 * they are updated in case their configuration changed.
+	 */
+	public void bundleChanged(BundleEvent event) {
+		String location = event.getBundle().getLocation();
+		if (!location.startsWith(URL_PREFIX))
+			return;
+		switch (event.getType()) {
+		case BundleEvent.INSTALLED:
+			watch(location);
+			break;
+		case BundleEvent.UPDATED:
+			unwatch(location);
+			watch(location);
+			break;
+		case BundleEvent.UNINSTALLED:
+			unwatch(location);
+			break;
+		}
+	}
+
+	public void run() {
+		Set<String> changed = new LinkedHashSet<String>();
+		long firstChange = 0;
+		long lastChange = 0;
+		try {
+			while (true) {
+				WatchKey key;
+				if (changed.isEmpty()) {
+					key = watchService.take();
+				} else {
+					long wait = lastChange + delay - System.nanoTime()
+							/ 1000000;
+					key = wait > 0 ? watchService.poll(wait,
+							TimeUnit.MILLISECONDS) : null;
+				}
+				if (key != null) {
+					long now = System.nanoTime() / 1000000;
+					String location = handleEvents(key);
+					if (location != null) {
+						if (changed.isEmpty())
+							firstChange = now;
+						lastChange = now;
+						changed.add(location);
+					}
+					continue;
+				}
+				reload(changed, firstChange);
+				changed.clear();
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (ClosedWatchServiceException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Handle the events of a watched directory, watching any new
+	 * subdirectories.
+	 * @return the location of the bundle whose project changed, or null
+	 * if the directory is no longer watched
+	 */
+	private String handleEvents(WatchKey key) {
+		Watch watch;
+		synchronized (watches) {
+			watch = watches.get(key);
+		}
+		List<WatchEvent<?>> events = key.pollEvents();
+		if (!key.reset()) {
+			synchronized (watches) {
+				watches.remove(key);
+			}
+		}
+		if (watch == null)
+			return null;
+		if (watch.recursive) {
+			Iterator<WatchEvent<?>> it = events.iterator();
+			while (it.hasNext()) {
+				WatchEvent<?> event = it.next();
+				if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE)
+					continue;
+				Path created = watch.directory.resolve((Path) event.context());
+				if (Files.isDirectory(created))
+					watchTree(watch.location, created);
+			}
+		}
+		return watch.location;
+	}
+
+	/**
+	 * Update and refresh the bundles of the changed projects.
+	 */
+	private void reload(Set<String> locations, long firstChange)
+			throws InterruptedException {
+		List<Bundle> bundles = new ArrayList<Bundle>();
+		Bundle[] installed = context.getBundles();
+		for (int i = 0; i < installed.length; i++) {
+			if (locations.contains(installed[i].getLocation()))
+				bundles.add(installed[i]);
+		}
+		int updated = updater.updateChanged(bundles.toArray(new Bundle[bundles
+				.size()]));
+		if (updated == 0)
+			return;
+		long latency = System.nanoTime() / 1000000 - firstChange;
+		if (statistics != null)
+			statistics.recordReload(latency);
+		System.out.println(String.format(
+				"Reloaded %d changed eclipse-project bundles %d ms after the first change",
+				updated, latency));
+	}
+
+	private void watch(String location) {
+		if (!location.startsWith(URL_PREFIX) || watchService == null)
+			return;
+		File projectDirectory = new File(location.substring(URL_PREFIX
+				.length()));
+		EclipseProjectMetadata metadata;
+		try {
+			metadata = EclipseProjectMetadata.load(projectDirectory,
+					parserFactory);
+		} catch (IOException e) {
+			System.err.println("Unable to watch " + location + ": " + e);
+			return;
+		}
+		// .classpath, build.properties and the manifest
+		watchDirectory(location, projectDirectory.toPath(), false);
+		watchDirectory(location, new File(projectDirectory, "META-INF")
+				.toPath(), false);
+		Iterator<File> it = metadata.getBundleInputs().iterator();
+		while (it.hasNext()) {
+			File input = it.next();
+			if (input.isDirectory())
+				watchTree(location, input.toPath());
+			else
+				watchDirectory(location, input.getParentFile().toPath(),
+						false);
+		}
+	}
+
+	private void unwatch(String location) {
+		synchronized (watches) {
+			Iterator<Map.Entry<WatchKey, Watch>> it = watches.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<WatchKey, Watch> entry = it.next();
+				if (entry.getValue().location.equals(location)) {
+					entry.getKey().cancel();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Watch a directory and every directory under it.
+	 */
+	private void watchTree(final String location, Path root) {
+		try {
+			Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+					Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+						public FileVisitResult preVisitDirectory(Path dir,
+								BasicFileAttributes attrs) {
+							watchDirectory(location, dir, true);
+							return FileVisitResult.CONTINUE;
+						}
+
+						public FileVisitResult visitFileFailed(Path file,
+								IOException e) {
+							// e.g. a symbolic link loop
+							return FileVisitResult.CONTINUE;
+						}
+					});
+		} catch (IOException e) {
+			System.err.println("Unable to watch " + root + ": " + e);
+		}
+	}
+
+	private void watchDirectory(String location, Path directory,
+			boolean recursive) {
+		if (!Files.isDirectory(directory))
+			return;
+		try {
+			WatchKey key = directory.register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			synchronized (watches) {
+				Watch existing = watches.get(key);
+				if (existing == null || (recursive && !existing.recursive))
+					watches.put(key, new Watch(location, directory, recursive));
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopping
+		} catch (IOException e) {
+			System.err.println("Unable to watch " + directory + ": " + e);
+		}
+	}
+
+	private static long getDelay(BundleContext context) {
+		String value = context.getProperty(WATCH_DELAY_PROPERTY_KEY);
+		if (value == null)
+			return DEFAULT_WATCH_DELAY_MS;
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if (parsed >= 0)
+				return parsed;
+		} catch (NumberFormatException e) {
+		}
+		System.err.println("Ignoring invalid value for "
+				+ WATCH_DELAY_PROPERTY_KEY + ": " + value);
+		return DEFAULT_WATCH_DELAY_MS;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The classes defined by one bundle or in one package. Times are in
+ * microseconds.
+ *
+ * Instances are only changed by {@link ClassLoadingProfiler}, which
+ * hands out copies.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ClassLoadingStatistics {
+	/**
+	 * Orders the hottest first: by define time, or by bytes if the
+	 * define time is not measured.
+	 */
+	static final Comparator<ClassLoadingStatistics> HOTTEST_FIRST = new Comparator<ClassLoadingStatistics>() {
+		public int compare(ClassLoadingStatistics a, ClassLoadingStatistics b) {
+			if (a.defineTime != b.defineTime)
+				return a.defineTime > b.defineTime ? -1 : 1;
+			if (a.bytes != b.bytes)
+				return a.bytes > b.bytes ? -1 : 1;
+			return a.name.compareTo(b.name);
+		}
+	};
+
+	private final String name;
+	private long classCount;
+	private long bytes;
+	/** In nanoseconds */
+	private long defineTime;
+	private long timedCount;
+
+	ClassLoadingStatistics(String name) {
+		this.name = name;
+	}
+
+	ClassLoadingStatistics(ClassLoadingStatistics other) {
+		this(other.name);
+		classCount = other.classCount;
+		bytes = other.bytes;
+		defineTime = other.defineTime;
+		timedCount = other.timedCount;
+	}
+
+	/**
+	 * @param bytes the size of the class file
+	 */
+	void recordClass(long bytes) {
+		classCount++;
+		this.bytes += bytes;
+	}
+
+	/**
+	 * @param defineTime the time taken to define a class, in nanoseconds
+	 */
+	void recordDefine(long defineTime) {
+		this.defineTime += defineTime;
+		timedCount++;
+	}
+
+	/**
+	 * @return the bundle symbolic name or package name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of classes defined
+	 */
+	public long getClassCount() {
+		return classCount;
+	}
+
+	/**
+	 * @return the total size of their class files
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the total time taken to weave and define them, or 0 if the
+	 * framework cannot tell when a class has been defined
+	 */
+	public long getDefineTime() {
+		return TimeUnit.NANOSECONDS.toMicros(defineTime);
+	}
+
+	/**
+	 * @return the mean time taken to weave and define each class
+	 */
+	public long getMeanDefineTime() {
+		return timedCount > 0 ? TimeUnit.NANOSECONDS.toMicros(defineTime
+				/ timedCount) : 0;
+	}
+}
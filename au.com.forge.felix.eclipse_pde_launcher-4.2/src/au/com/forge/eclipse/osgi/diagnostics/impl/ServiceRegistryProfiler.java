@@ -0,0 +1,410 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.AllServiceListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.EventListenerHook;
+import org.osgi.framework.hooks.service.FindHook;
+import org.osgi.framework.hooks.service.ListenerHook;
+
+/**
+ * Profiles the service registry: the services each bundle registers,
+ * modifies and unregisters, the time each bundle's service listeners
+ * take to handle the resulting events, and each bundle's service
+ * lookups. The busiest bundles are printed when the framework stops,
+ * and the statistics can be read at any time through the
+ * {@link ServiceRegistryProfilerMXBean}.
+ *
+ * An {@link EventListenerHook} sees each service event just before it is
+ * dispatched, along with the bundles whose listeners will be offered
+ * it, and a {@link FindHook} sees each lookup. The hooks have the lowest
+ * ranking, so they see what is left after any other hooks.
+ *
+ * The hooks cannot time the listeners themselves, so the profiler adds
+ * a sentinel listener to each bundle that has service listeners, and
+ * keeps it after the bundle's other listeners (which the framework
+ * calls in the order they were added). Dispatching an event goes through
+ * the bundles one at a time, so the time from one sentinel being called
+ * to the next is the time taken by the next bundle's listeners. Other
+ * listener hooks see the sentinels as a listener of each bundle.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ServiceRegistryProfiler implements BundleActivator,
+		EventListenerHook, FindHook, ListenerHook,
+		ServiceRegistryProfilerMXBean {
+	/**
+	 * The name the profiler is registered with in the platform MBean
+	 * server.
+	 */
+	public static final String OBJECT_NAME = "au.com.forge.felix:type=ServiceRegistryProfiler";
+
+	/**
+	 * The filter of the sentinels, which matches every service and
+	 * tells them apart from other listeners.
+	 */
+	private static final String SENTINEL_FILTER = "(!(objectClass=au.com.forge.eclipse.osgi.diagnostics.impl.ServiceRegistryProfiler.Sentinel))";
+
+	/** The number of bundles in the report */
+	private static final int REPORT_SIZE = 10;
+
+	/**
+	 * The last listener of a bundle, which times the bundle's listeners.
+	 */
+	private class Sentinel implements AllServiceListener {
+		private final String bundleName;
+
+		Sentinel(String bundleName) {
+			this.bundleName = bundleName;
+		}
+
+		public void serviceChanged(ServiceEvent event) {
+			sentinelCalled(event, bundleName);
+		}
+	}
+
+	/**
+	 * A service event being dispatched on a thread.
+	 */
+	private static class Dispatch {
+		private final ServiceEvent event;
+		/** When the previous bundle's listeners finished */
+		private long lastTime;
+		/** The sentinels still to be called */
+		private int remaining;
+
+		Dispatch(ServiceEvent event, long startTime, int sentinels) {
+			this.event = event;
+			this.lastTime = startTime;
+			this.remaining = sentinels;
+		}
+	}
+
+	private ServiceRegistryStatistics total = new ServiceRegistryStatistics(
+			"total");
+	private Map<String, ServiceRegistryStatistics> bundles = new HashMap<String, ServiceRegistryStatistics>();
+	private long startTime = System.nanoTime();
+	/** The sentinel added to each bundle */
+	private final Map<BundleContext, Sentinel> sentinels = new HashMap<BundleContext, Sentinel>();
+	/** The bundles whose sentinels are being moved */
+	private final Set<BundleContext> moving = new HashSet<BundleContext>();
+	/** The events being dispatched on each thread, innermost last */
+	private final ThreadLocal<LinkedList<Dispatch>> dispatches = new ThreadLocal<LinkedList<Dispatch>>() {
+		protected LinkedList<Dispatch> initialValue() {
+			return new LinkedList<Dispatch>();
+		}
+	};
+
+	private ServiceRegistration<?> hookRegistration;
+	private ObjectName registeredName;
+
+	public void start(BundleContext context) throws Exception {
+		Dictionary<String, Object> properties = new Hashtable<String, Object>();
+		properties.put(Constants.SERVICE_RANKING, Integer
+				.valueOf(Integer.MIN_VALUE));
+		// The listener hook is told about the listeners already added
+		hookRegistration = context.registerService(new String[] {
+				EventListenerHook.class.getName(), FindHook.class.getName(),
+				ListenerHook.class.getName() }, this, properties);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			server.registerMBean(this, name);
+			registeredName = name;
+		} catch (JMException e) {
+			System.err.println("Unable to register the service registry profiler: "
+					+ e);
+		}
+	}
+
+	public void stop(BundleContext context) throws Exception {
+		hookRegistration.unregister();
+		List<Map.Entry<BundleContext, Sentinel>> added;
+		synchronized (this) {
+			added = new ArrayList<Map.Entry<BundleContext, Sentinel>>(
+					sentinels.entrySet());
+			sentinels.clear();
+		}
+		Iterator<Map.Entry<BundleContext, Sentinel>> it = added.iterator();
+		while (it.hasNext()) {
+			Map.Entry<BundleContext, Sentinel> entry = it.next();
+			try {
+				entry.getKey().removeServiceListener(entry.getValue());
+			} catch (IllegalStateException e) {
+				// The bundle has stopped, which removed it already
+			}
+		}
+		if (registeredName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						registeredName);
+			} catch (JMException e) {
+				// Already gone
+			}
+			registeredName = null;
+		}
+		System.out.print(getReport());
+	}
+
+	/**
+	 * Move the sentinel of each bundle that has added a listener after
+	 * its other listeners, adding it if the bundle does not have one.
+	 */
+	public void added(Collection<ListenerInfo> listeners) {
+		Iterator<ListenerInfo> it = listeners.iterator();
+		while (it.hasNext()) {
+			ListenerInfo info = it.next();
+			if (info.isRemoved() || SENTINEL_FILTER.equals(info.getFilter()))
+				continue;
+			BundleContext context = info.getBundleContext();
+			Sentinel sentinel;
+			synchronized (this) {
+				sentinel = sentinels.get(context);
+				if (sentinel == null) {
+					sentinel = new Sentinel(getName(context));
+					sentinels.put(context, sentinel);
+				}
+				moving.add(context);
+			}
+			try {
+				context.removeServiceListener(sentinel);
+				context.addServiceListener(sentinel, SENTINEL_FILTER);
+			} catch (IllegalStateException e) {
+				// The bundle is stopping
+			} catch (InvalidSyntaxException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				synchronized (this) {
+					moving.remove(context);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the sentinels of bundles that have stopped.
+	 */
+	public void removed(Collection<ListenerInfo> listeners) {
+		Iterator<ListenerInfo> it = listeners.iterator();
+		while (it.hasNext()) {
+			ListenerInfo info = it.next();
+			if (SENTINEL_FILTER.equals(info.getFilter()))
+				synchronized (this) {
+					if (!moving.contains(info.getBundleContext()))
+						sentinels.remove(info.getBundleContext());
+				}
+		}
+	}
+
+	public void event(ServiceEvent event,
+			Map<BundleContext, Collection<ListenerInfo>> listeners) {
+		long now = System.nanoTime();
+		int sentinelCount = 0;
+		synchronized (this) {
+			ServiceReference<?> reference = event.getServiceReference();
+			Bundle registrant = reference.getBundle();
+			ServiceRegistryStatistics registrantStatistics = registrant != null ? getStatistics(getName(registrant))
+					: null;
+			switch (event.getType()) {
+			case ServiceEvent.REGISTERED:
+				total.recordRegistration();
+				if (registrantStatistics != null)
+					registrantStatistics.recordRegistration();
+				break;
+			case ServiceEvent.MODIFIED:
+				total.recordModification();
+				if (registrantStatistics != null)
+					registrantStatistics.recordModification();
+				break;
+			case ServiceEvent.UNREGISTERING:
+				total.recordUnregistration();
+				if (registrantStatistics != null)
+					registrantStatistics.recordUnregistration();
+				break;
+			}
+
+			Iterator<Map.Entry<BundleContext, Collection<ListenerInfo>>> it = listeners
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<BundleContext, Collection<ListenerInfo>> entry = it
+						.next();
+				int count = 0;
+				Iterator<ListenerInfo> infos = entry.getValue().iterator();
+				while (infos.hasNext()) {
+					if (SENTINEL_FILTER.equals(infos.next().getFilter()))
+						sentinelCount++;
+					else
+						count++;
+				}
+				if (count == 0)
+					continue;
+				total.recordEventReceived(count);
+				// The sentinel keeps the name of a bundle that is stopping
+				Sentinel sentinel = sentinels.get(entry.getKey());
+				getStatistics(
+						sentinel != null ? sentinel.bundleName : getName(entry
+								.getKey())).recordEventReceived(count);
+			}
+		}
+		if (sentinelCount > 0)
+			dispatches.get().add(new Dispatch(event, now, sentinelCount));
+	}
+
+	/**
+	 * Called by a bundle's sentinel after the bundle's other listeners.
+	 */
+	private void sentinelCalled(ServiceEvent event, String bundleName) {
+		long now = System.nanoTime();
+		LinkedList<Dispatch> threadDispatches = dispatches.get();
+		// Drop the nested events whose sentinels were not all called
+		// (e.g. because the bundle stopped)
+		while (!threadDispatches.isEmpty()
+				&& threadDispatches.getLast().event != event)
+			threadDispatches.removeLast();
+		if (threadDispatches.isEmpty())
+			return;
+		Dispatch dispatch = threadDispatches.getLast();
+		long dispatchTime = now - dispatch.lastTime;
+		dispatch.lastTime = now;
+		if (--dispatch.remaining == 0)
+			threadDispatches.removeLast();
+		synchronized (this) {
+			total.recordDispatch(dispatchTime);
+			getStatistics(bundleName).recordDispatch(dispatchTime);
+		}
+	}
+
+	public void find(BundleContext context, String name, String filter,
+			boolean allServices, Collection<ServiceReference<?>> references) {
+		synchronized (this) {
+			total.recordFind(references.size());
+			getStatistics(getName(context)).recordFind(references.size());
+		}
+	}
+
+	private ServiceRegistryStatistics getStatistics(String bundleName) {
+		ServiceRegistryStatistics statistics = bundles.get(bundleName);
+		if (statistics == null) {
+			statistics = new ServiceRegistryStatistics(bundleName);
+			bundles.put(bundleName, statistics);
+		}
+		return statistics;
+	}
+
+	private static String getName(BundleContext context) {
+		try {
+			return getName(context.getBundle());
+		} catch (IllegalStateException e) {
+			return "(stopped bundle)";
+		}
+	}
+
+	private static String getName(Bundle bundle) {
+		String symbolicName = bundle.getSymbolicName();
+		return symbolicName != null ? symbolicName : bundle.getLocation();
+	}
+
+	public synchronized ServiceRegistryStatistics getTotal() {
+		return new ServiceRegistryStatistics(total);
+	}
+
+	public synchronized double getFindRate() {
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return seconds > 0 ? total.getFindCalls() / seconds : 0;
+	}
+
+	public synchronized List<ServiceRegistryStatistics> getBundles() {
+		List<ServiceRegistryStatistics> copy = new ArrayList<ServiceRegistryStatistics>(
+				bundles.size());
+		Iterator<ServiceRegistryStatistics> it = bundles.values().iterator();
+		while (it.hasNext())
+			copy.add(new ServiceRegistryStatistics(it.next()));
+		Collections.sort(copy, ServiceRegistryStatistics.HOTTEST_FIRST);
+		return copy;
+	}
+
+	public String getReport() {
+		List<ServiceRegistryStatistics> hottest;
+		ServiceRegistryStatistics totals;
+		double findRate;
+		synchronized (this) {
+			hottest = getBundles();
+			totals = getTotal();
+			findRate = getFindRate();
+		}
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(
+				"Bundles registered %,d services (%,d modified, %,d unregistered); "
+						+ "listeners took %.1f ms; %,d service lookups (%.1f/s)\n",
+				totals.getRegistrations(), totals.getModifications(), totals
+						.getUnregistrations(),
+				totals.getDispatchTime() / 1000.0, totals.getFindCalls(),
+				findRate));
+		if (hottest.isEmpty())
+			return report.toString();
+		report.append(String.format("%12s %10s %10s %10s %8s  %s\n",
+				"listeners", "events", "registered", "lookups", "found",
+				"bundle"));
+		for (int i = 0; i < hottest.size() && i < REPORT_SIZE; i++) {
+			ServiceRegistryStatistics statistics = hottest.get(i);
+			report.append(String.format(
+					"%9.1f ms %,10d %,10d %,10d %,8d  %s\n", statistics
+							.getDispatchTime() / 1000.0, statistics
+							.getEventsReceived(), statistics.getRegistrations(),
+					statistics.getFindCalls(), statistics.getReferencesFound(),
+					statistics.getBundle()));
+		}
+		return report.toString();
+	}
+
+	public synchronized void reset() {
+		total = new ServiceRegistryStatistics("total");
+		bundles = new HashMap<String, ServiceRegistryStatistics>();
+		startTime = System.nanoTime();
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.util.List;
+
+/**
+ * The management interface of {@link ServiceRegistryProfiler},
+ * registered with the platform MBean server as
+ * {@value ServiceRegistryProfiler#OBJECT_NAME}. Times are in
+ * microseconds.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public interface ServiceRegistryProfilerMXBean {
+	/**
+	 * @return the totals of every bundle
+	 */
+	ServiceRegistryStatistics getTotal();
+
+	/**
+	 * @return the calls of getServiceReferences per second, since the
+	 * profiler started or was reset
+	 */
+	double getFindRate();
+
+	/**
+	 * @return the statistics of each bundle, the ones whose listeners
+	 * took longest first
+	 */
+	List<ServiceRegistryStatistics> getBundles();
+
+	/**
+	 * @return a report of the busiest bundles
+	 */
+	String getReport();
+
+	/**
+	 * Clear the statistics.
+	 */
+	void reset();
+}
@@ -0,0 +1,334 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+/**
+ * Records a timeline of the framework startup and writes it as a
+ * Chrome trace (the JSON format read by chrome://tracing and Perfetto)
+ * once the framework has started.
+ *
+ * The timeline has the launcher's phases (see {@link #recordPhase}),
+ * every bundle event, the time each bundle spent starting (from
+ * STARTING to STARTED, which is mostly its activator), the framework
+ * events and the start level. Times are from when the virtual machine
+ * started, and each event is shown on the thread it happened on.
+ *
+ * It is a system bundle activator so that it sees the bundles
+ * installed and updated during {@link org.osgi.framework.launch.Framework#init()}
+ * and the auto-processor.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class StartupTraceActivator implements BundleActivator,
+		SynchronousBundleListener, FrameworkListener {
+	private static final String[] BUNDLE_EVENT_NAMES = new String[0x201];
+	static {
+		BUNDLE_EVENT_NAMES[BundleEvent.INSTALLED] = "installed";
+		BUNDLE_EVENT_NAMES[BundleEvent.STARTED] = "started";
+		BUNDLE_EVENT_NAMES[BundleEvent.STOPPED] = "stopped";
+		BUNDLE_EVENT_NAMES[BundleEvent.UPDATED] = "updated";
+		BUNDLE_EVENT_NAMES[BundleEvent.UNINSTALLED] = "uninstalled";
+		BUNDLE_EVENT_NAMES[BundleEvent.RESOLVED] = "resolved";
+		BUNDLE_EVENT_NAMES[BundleEvent.UNRESOLVED] = "unresolved";
+		BUNDLE_EVENT_NAMES[BundleEvent.STARTING] = "starting";
+		BUNDLE_EVENT_NAMES[BundleEvent.STOPPING] = "stopping";
+		BUNDLE_EVENT_NAMES[BundleEvent.LAZY_ACTIVATION] = "lazy activation";
+	}
+
+	/** The thread ID of events that are not on a thread */
+	private static final long STARTUP_TRACK = 0;
+
+	private final File traceFile;
+	/** The nanoTime of when the virtual machine started */
+	private final long originNanos;
+	/** JSON objects of the events recorded so far */
+	private final List<String> events = new ArrayList<String>();
+	/** When each bundle that is being started started, by bundle ID */
+	private final Map<Long, Long> starting = new HashMap<Long, Long>();
+	private final Set<Long> namedThreads = new HashSet<Long>();
+	private BundleContext context;
+	private int lastStartLevel = -1;
+	private boolean written = false;
+
+	/**
+	 * @param traceFile the file the trace is written to
+	 */
+	public StartupTraceActivator(File traceFile) {
+		this.traceFile = traceFile;
+		originNanos = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(ManagementFactory
+						.getRuntimeMXBean().getUptime());
+		events.add("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"Felix\"}}");
+		events.add("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+				+ STARTUP_TRACK + ",\"args\":{\"name\":\"Startup\"}}");
+	}
+
+	public void start(BundleContext context) throws Exception {
+		this.context = context;
+		context.addBundleListener(this);
+		context.addFrameworkListener(this);
+		recordStartLevel();
+	}
+
+	public void stop(BundleContext context) throws Exception {
+		context.removeFrameworkListener(this);
+		context.removeBundleListener(this);
+		// The framework stopped before it finished starting
+		write();
+	}
+
+	/**
+	 * Record a phase of the launcher on the calling thread, from the given
+	 * time until now.
+	 *
+	 * @param name the name of the phase
+	 * @param startNanos the {@link System#nanoTime()} the phase started at
+	 */
+	public void recordPhase(String name, long startNanos) {
+		long now = System.nanoTime();
+		record("{\"name\":" + quote(name) + ",\"cat\":\"launcher\",\"ph\":\"X\""
+				+ timestamp(startNanos) + ",\"dur\":" + micros(now - startNanos)
+				+ thread() + "}");
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		long now = System.nanoTime();
+		Bundle bundle = event.getBundle();
+		String name = getName(bundle);
+		int type = event.getType();
+		String eventName = type < BUNDLE_EVENT_NAMES.length
+				&& BUNDLE_EVENT_NAMES[type] != null ? BUNDLE_EVENT_NAMES[type]
+				: "event " + type;
+		String args = ",\"args\":{\"bundle\":" + quote(name) + ",\"id\":"
+				+ bundle.getBundleId() + ",\"location\":"
+				+ quote(bundle.getLocation()) + "}";
+		record("{\"name\":" + quote(eventName + " " + name)
+				+ ",\"cat\":\"bundle\",\"ph\":\"i\",\"s\":\"t\"" + timestamp(now)
+				+ thread() + args + "}");
+
+		Long id = Long.valueOf(bundle.getBundleId());
+		if (type == BundleEvent.STARTING) {
+			synchronized (this) {
+				starting.put(id, Long.valueOf(now));
+			}
+			// The framework only sends STARTLEVEL_CHANGED when the start
+			// level is set, not while it rises during startup
+			recordStartLevel();
+		} else if (type == BundleEvent.STARTED || type == BundleEvent.STOPPED) {
+			// STOPPED without STARTED is an activator that failed
+			Long startNanos;
+			synchronized (this) {
+				startNanos = starting.remove(id);
+			}
+			if (startNanos != null)
+				record("{\"name\":" + quote("start " + name)
+						+ ",\"cat\":\"activator\",\"ph\":\"X\""
+						+ timestamp(startNanos.longValue()) + ",\"dur\":"
+						+ micros(now - startNanos.longValue()) + thread() + args
+						+ "}");
+		}
+	}
+
+	public void frameworkEvent(FrameworkEvent event) {
+		long now = System.nanoTime();
+		String name;
+		switch (event.getType()) {
+		case FrameworkEvent.STARTED:
+			name = "framework started";
+			break;
+		case FrameworkEvent.ERROR:
+			name = "error";
+			break;
+		case FrameworkEvent.WARNING:
+			name = "warning";
+			break;
+		case FrameworkEvent.INFO:
+			name = "info";
+			break;
+		case FrameworkEvent.PACKAGES_REFRESHED:
+			name = "packages refreshed";
+			break;
+		case FrameworkEvent.STARTLEVEL_CHANGED:
+			name = "start level changed";
+			break;
+		default:
+			name = "framework event " + event.getType();
+		}
+		StringBuilder args = new StringBuilder(",\"args\":{\"bundle\":");
+		args.append(quote(getName(event.getBundle())));
+		if (event.getThrowable() != null)
+			args.append(",\"throwable\":").append(
+					quote(event.getThrowable().toString()));
+		args.append("}");
+		record("{\"name\":" + quote(name)
+				+ ",\"cat\":\"framework\",\"ph\":\"i\",\"s\":\"g\""
+				+ timestamp(now) + thread() + args + "}");
+
+		if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED
+				|| event.getType() == FrameworkEvent.STARTED)
+			recordStartLevel();
+		if (event.getType() == FrameworkEvent.STARTED) {
+			record("{\"name\":\"startup\",\"cat\":\"launcher\",\"ph\":\"X\""
+					+ timestamp(originNanos) + ",\"dur\":"
+					+ micros(now - originNanos) + ",\"pid\":1,\"tid\":"
+					+ STARTUP_TRACK + "}");
+			write();
+		}
+	}
+
+	/**
+	 * Record the framework start level as a counter, if it has changed.
+	 */
+	private void recordStartLevel() {
+		if (context == null)
+			return;
+		FrameworkStartLevel startLevel = context.getBundle(0).adapt(
+				FrameworkStartLevel.class);
+		if (startLevel == null)
+			return;
+		int level = startLevel.getStartLevel();
+		synchronized (this) {
+			if (level == lastStartLevel)
+				return;
+			lastStartLevel = level;
+		}
+		record("{\"name\":\"start level\",\"cat\":\"framework\",\"ph\":\"C\""
+				+ timestamp(System.nanoTime()) + ",\"pid\":1,\"args\":{\"level\":"
+				+ level + "}}");
+	}
+
+	/**
+	 * Write the trace, unless it has been written already.
+	 */
+	private void write() {
+		List<String> written;
+		synchronized (this) {
+			if (this.written)
+				return;
+			this.written = true;
+			written = new ArrayList<String>(events);
+		}
+		try {
+			File parent = traceFile.getAbsoluteFile().getParentFile();
+			if (parent != null)
+				parent.mkdirs();
+			Writer writer = new OutputStreamWriter(new FileOutputStream(
+					traceFile), "UTF-8");
+			try {
+				writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+				Iterator<String> it = written.iterator();
+				while (it.hasNext()) {
+					writer.write(it.next());
+					writer.write(it.hasNext() ? ",\n" : "\n");
+				}
+				writer.write("]}\n");
+			} finally {
+				writer.close();
+			}
+			System.out.println("Wrote the startup trace to " + traceFile);
+		} catch (IOException e) {
+			System.err.println("Unable to write the startup trace to "
+					+ traceFile + ": " + e);
+		}
+	}
+
+	private synchronized void record(String event) {
+		if (!written)
+			events.add(event);
+	}
+
+	/**
+	 * @return the thread fields of an event on the calling thread, naming
+	 * the thread the first time it is seen
+	 */
+	private String thread() {
+		Thread thread = Thread.currentThread();
+		// Shifted so that no thread is on the startup track
+		long tid = thread.getId() + 1;
+		synchronized (this) {
+			if (namedThreads.add(Long.valueOf(tid)))
+				record("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+						+ tid + ",\"args\":{\"name\":"
+						+ quote(thread.getName()) + "}}");
+		}
+		return ",\"pid\":1,\"tid\":" + tid;
+	}
+
+	private String timestamp(long nanos) {
+		return ",\"ts\":" + micros(nanos - originNanos);
+	}
+
+	private static String micros(long nanos) {
+		return Long.toString(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	private static String getName(Bundle bundle) {
+		if (bundle == null)
+			return "";
+		String symbolicName = bundle.getSymbolicName();
+		return symbolicName != null ? symbolicName : bundle.getLocation();
+	}
+
+	/**
+	 * @return a JSON string
+	 */
+	static String quote(String value) {
+		if (value == null)
+			return "null";
+		StringBuilder quoted = new StringBuilder(value.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
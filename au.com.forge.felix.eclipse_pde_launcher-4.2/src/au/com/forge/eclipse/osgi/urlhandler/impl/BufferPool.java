@@ -0,0 +1,78 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of the buffers used to copy resource files into bundles, so
+ * that building a bundle of many small class files does not allocate a
+ * new buffer for each one. Every builder and read-ahead worker takes
+ * its buffers from here.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BufferPool {
+	/**
+	 * The size of a pooled buffer. Files up to this size are read with
+	 * a single read.
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * At most this many free buffers are kept.
+	 */
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private static final List<byte[]> freeBuffers = new ArrayList<byte[]>();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Take a buffer of {@link #BUFFER_SIZE} bytes from the pool,
+	 * allocating one if the pool is empty.
+	 * @return the buffer, which should be given back with {@link #release(byte[])}
+	 */
+	public static byte[] acquire() {
+		synchronized (freeBuffers) {
+			if (!freeBuffers.isEmpty())
+				return freeBuffers.remove(freeBuffers.size() - 1);
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Give a buffer back to the pool. Buffers that were not taken from
+	 * the pool are ignored.
+	 * @param buffer the buffer
+	 */
+	public static void release(byte[] buffer) {
+		if (buffer.length != BUFFER_SIZE)
+			return;
+		synchronized (freeBuffers) {
+			if (freeBuffers.size() < MAX_POOLED_BUFFERS)
+				freeBuffers.add(buffer);
+		}
+	}
+}
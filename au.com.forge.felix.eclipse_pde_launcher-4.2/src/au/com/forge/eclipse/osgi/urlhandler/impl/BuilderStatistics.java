@@ -0,0 +1,231 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the builds of eclipse-project bundles, the bundle cache
+ * lookups and the auto-updater's updates, per project and in total,
+ * and the latency of the watcher's reloads, so that they can be
+ * watched with jconsole or any other JMX client.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BuilderStatistics implements BuilderStatisticsMXBean {
+	/**
+	 * The name the statistics are registered with in the platform MBean
+	 * server.
+	 */
+	public static final String OBJECT_NAME = "au.com.forge.felix:type=EclipseProjectBuilder";
+
+	private ProjectBuildStatistics total = new ProjectBuildStatistics("total");
+	/** By canonical project path */
+	private final Map<String, ProjectBuildStatistics> projects = new TreeMap<String, ProjectBuildStatistics>();
+	private long reloadCount;
+	/** In milliseconds */
+	private long lastReloadLatency;
+	private long maxReloadLatency;
+	private long totalReloadLatency;
+
+	/**
+	 * Record a build.
+	 *
+	 * @param projectDirectory the Eclipse project directory
+	 * @param buildTime the time taken by the build, in nanoseconds
+	 * @param writeTime the part of it spent writing entries, in nanoseconds
+	 * @param files the number of files written
+	 * @param bytes the size of the bundle
+	 */
+	public synchronized void recordBuild(File projectDirectory,
+			long buildTime, long writeTime, int files, long bytes) {
+		total.recordBuild(buildTime, writeTime, files, bytes);
+		getProject(projectDirectory).recordBuild(buildTime, writeTime, files,
+				bytes);
+	}
+
+	/**
+	 * Record a bundle served from the bundle cache or the memory cache.
+	 *
+	 * @param projectDirectory the Eclipse project directory
+	 */
+	public synchronized void recordCacheHit(File projectDirectory) {
+		total.recordCacheHit();
+		getProject(projectDirectory).recordCacheHit();
+	}
+
+	/**
+	 * Record a bundle that was not cached.
+	 *
+	 * @param projectDirectory the Eclipse project directory
+	 */
+	public synchronized void recordCacheMiss(File projectDirectory) {
+		total.recordCacheMiss();
+		getProject(projectDirectory).recordCacheMiss();
+	}
+
+	/**
+	 * Record an update of a project bundle.
+	 *
+	 * @param projectDirectory the Eclipse project directory (or overlay
+	 * directory) of the bundle
+	 */
+	public synchronized void recordUpdate(File projectDirectory) {
+		total.recordUpdate();
+		getProject(projectDirectory).recordUpdate();
+	}
+
+	/**
+	 * Record the watcher updating the bundles of changed projects.
+	 *
+	 * @param latency the time from the first change until the bundles
+	 * were updated and refreshed, in milliseconds
+	 */
+	public synchronized void recordReload(long latency) {
+		reloadCount++;
+		lastReloadLatency = latency;
+		maxReloadLatency = Math.max(maxReloadLatency, latency);
+		totalReloadLatency += latency;
+	}
+
+	/**
+	 * @param projectDirectory the Eclipse project directory
+	 * @return a copy of the statistics of the project, or null if
+	 * nothing has been recorded for it
+	 */
+	public synchronized ProjectBuildStatistics getProjectStatistics(
+			File projectDirectory) {
+		ProjectBuildStatistics statistics = projects
+				.get(canonicalPath(projectDirectory));
+		return statistics != null ? new ProjectBuildStatistics(statistics)
+				: null;
+	}
+
+	private ProjectBuildStatistics getProject(File projectDirectory) {
+		String key = canonicalPath(projectDirectory);
+		ProjectBuildStatistics statistics = projects.get(key);
+		if (statistics == null) {
+			statistics = new ProjectBuildStatistics(key);
+			projects.put(key, statistics);
+		}
+		return statistics;
+	}
+
+	private static String canonicalPath(File projectDirectory) {
+		try {
+			return projectDirectory.getCanonicalPath();
+		} catch (IOException e) {
+			return projectDirectory.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * @return a copy of the totals
+	 */
+	public synchronized ProjectBuildStatistics getTotal() {
+		return new ProjectBuildStatistics(total);
+	}
+
+	public long getBuildCount() {
+		return getTotal().getBuildCount();
+	}
+
+	public long[] getBuildTimeHistogram() {
+		return getTotal().getBuildTimeHistogram();
+	}
+
+	public long[] getBuildTimeHistogramBounds() {
+		return ProjectBuildStatistics.BUILD_TIME_BOUNDS.clone();
+	}
+
+	public long getBuildTime() {
+		return getTotal().getBuildTime();
+	}
+
+	public long getWalkTime() {
+		return getTotal().getWalkTime();
+	}
+
+	public long getWriteTime() {
+		return getTotal().getWriteTime();
+	}
+
+	public long getFilesWritten() {
+		return getTotal().getFilesWritten();
+	}
+
+	public long getBytesWritten() {
+		return getTotal().getBytesWritten();
+	}
+
+	public long getCacheHits() {
+		return getTotal().getCacheHits();
+	}
+
+	public long getCacheMisses() {
+		return getTotal().getCacheMisses();
+	}
+
+	public long getUpdateCount() {
+		return getTotal().getUpdateCount();
+	}
+
+	public synchronized long getReloadCount() {
+		return reloadCount;
+	}
+
+	public synchronized long getLastReloadLatency() {
+		return lastReloadLatency;
+	}
+
+	public synchronized long getMaxReloadLatency() {
+		return maxReloadLatency;
+	}
+
+	public synchronized long getAverageReloadLatency() {
+		return reloadCount > 0 ? totalReloadLatency / reloadCount : 0;
+	}
+
+	public synchronized List<ProjectBuildStatistics> getProjects() {
+		List<ProjectBuildStatistics> copies = new ArrayList<ProjectBuildStatistics>(
+				projects.size());
+		Iterator<ProjectBuildStatistics> it = projects.values().iterator();
+		while (it.hasNext())
+			copies.add(new ProjectBuildStatistics(it.next()));
+		return copies;
+	}
+
+	public synchronized void reset() {
+		total = new ProjectBuildStatistics("total");
+		projects.clear();
+		reloadCount = 0;
+		lastReloadLatency = 0;
+		maxReloadLatency = 0;
+		totalReloadLatency = 0;
+	}
+}
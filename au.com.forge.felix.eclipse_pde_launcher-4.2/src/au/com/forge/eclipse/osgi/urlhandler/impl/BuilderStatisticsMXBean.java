@@ -0,0 +1,128 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.util.List;
+
+/**
+ * The management interface of {@link BuilderStatistics}, registered
+ * with the platform MBean server as
+ * {@value BuilderStatistics#OBJECT_NAME}. Times are in milliseconds.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public interface BuilderStatisticsMXBean {
+	/**
+	 * @return the number of bundles built
+	 */
+	long getBuildCount();
+
+	/**
+	 * @return the number of builds that took up to each of
+	 * {@link #getBuildTimeHistogramBounds()}, plus the number that took
+	 * longer than the last bound
+	 */
+	long[] getBuildTimeHistogram();
+
+	/**
+	 * @return the upper bounds of the buckets of
+	 * {@link #getBuildTimeHistogram()}
+	 */
+	long[] getBuildTimeHistogramBounds();
+
+	/**
+	 * @return the total time spent building bundles
+	 */
+	long getBuildTime();
+
+	/**
+	 * @return the part of {@link #getBuildTime()} not spent writing
+	 * entries: reading the project configuration, walking its
+	 * directories and waiting for files read ahead
+	 */
+	long getWalkTime();
+
+	/**
+	 * @return the part of {@link #getBuildTime()} spent reading files
+	 * and writing their entries
+	 */
+	long getWriteTime();
+
+	/**
+	 * @return the number of files written into bundles
+	 */
+	long getFilesWritten();
+
+	/**
+	 * @return the number of bytes of bundle written
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return the number of bundles served from the bundle cache or
+	 * the memory cache
+	 */
+	long getCacheHits();
+
+	/**
+	 * @return the number of bundles that were not in the bundle cache
+	 * or the memory cache, and so were built
+	 */
+	long getCacheMisses();
+
+	/**
+	 * @return the number of bundles updated by the auto-updater
+	 */
+	long getUpdateCount();
+
+	/**
+	 * @return the number of times the watcher has updated the bundles of
+	 * changed projects
+	 */
+	long getReloadCount();
+
+	/**
+	 * @return the time from the first change to a project until its
+	 * bundle was updated and refreshed, for the last reload
+	 */
+	long getLastReloadLatency();
+
+	/**
+	 * @return the longest reload latency
+	 */
+	long getMaxReloadLatency();
+
+	/**
+	 * @return the average reload latency
+	 */
+	long getAverageReloadLatency();
+
+	/**
+	 * @return the statistics of each project
+	 */
+	List<ProjectBuildStatistics> getProjects();
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	void reset();
+}
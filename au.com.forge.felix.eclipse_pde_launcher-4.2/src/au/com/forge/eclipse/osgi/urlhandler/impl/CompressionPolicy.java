@@ -0,0 +1,122 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decides which bundle entries are compressed. An entry is stored
+ * uncompressed unless its extension is one of the deflated extensions,
+ * or it is at least the deflate size; entries with one of the stored
+ * extensions (which are already compressed, or are loaded too often
+ * to be worth inflating, like .class files) are always stored.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class CompressionPolicy {
+	/**
+	 * Extensions that are stored unless the stored extensions are
+	 * configured.
+	 */
+	public static final String DEFAULT_STORED_EXTENSIONS = "class,jar,zip,gz,png,jpg,jpeg,gif";
+
+	/**
+	 * The policy that stores every entry.
+	 */
+	public static final CompressionPolicy STORE_ALL = new CompressionPolicy(
+			"", DEFAULT_STORED_EXTENSIONS, 0);
+
+	private final Set<String> deflatedExtensions;
+	private final Set<String> storedExtensions;
+	private final long deflateSize;
+
+	/**
+	 * @param deflatedExtensions a comma separated list of the extensions
+	 * of entries to deflate (e.g. "txt,xml"), or null
+	 * @param storedExtensions a comma separated list of the extensions of
+	 * entries that are never deflated, or null
+	 * @param deflateSize entries at least this large are deflated unless
+	 * they have a stored extension (0 to deflate by extension only)
+	 */
+	public CompressionPolicy(String deflatedExtensions,
+			String storedExtensions, long deflateSize) {
+		this.deflatedExtensions = parseExtensions(deflatedExtensions);
+		this.storedExtensions = parseExtensions(storedExtensions);
+		this.deflateSize = deflateSize;
+	}
+
+	private static Set<String> parseExtensions(String extensions) {
+		Set<String> parsed = new TreeSet<String>();
+		if (extensions == null)
+			return parsed;
+		String[] values = extensions.split(",");
+		for (int i = 0; i < values.length; i++) {
+			String extension = values[i].trim().toLowerCase();
+			// Accept "txt", ".txt" and "*.txt"
+			if (extension.startsWith("*"))
+				extension = extension.substring(1);
+			if (extension.startsWith("."))
+				extension = extension.substring(1);
+			if (!extension.equals(""))
+				parsed.add(extension);
+		}
+		return Collections.unmodifiableSet(parsed);
+	}
+
+	/**
+	 * @return true if this policy deflates any entries
+	 */
+	public boolean deflatesAnything() {
+		return deflateSize > 0 || !deflatedExtensions.isEmpty();
+	}
+
+	/**
+	 * Decide whether to deflate an entry.
+	 * @param name the entry name
+	 * @param size the size of the entry
+	 * @return true to deflate it, false to store it
+	 */
+	public boolean shouldDeflate(String name, long size) {
+		if (!deflatesAnything())
+			return false;
+		int slash = name.lastIndexOf('/');
+		int dot = name.lastIndexOf('.');
+		String extension = dot > slash ? name.substring(dot + 1)
+				.toLowerCase() : "";
+		if (storedExtensions.contains(extension))
+			return false;
+		if (deflatedExtensions.contains(extension))
+			return true;
+		return deflateSize > 0 && size >= deflateSize;
+	}
+
+	/**
+	 * @return a description of the policy, which changes whenever the
+	 * entries it deflates change
+	 */
+	public String toString() {
+		return "deflate=" + deflatedExtensions + ";store=" + storedExtensions
+				+ ";size=" + deflateSize;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directory walking helpers shared by the bundle builder and the
+ * fingerprint calculation. Each file is examined with a single
+ * attribute read, and symbolic link loops are detected by comparing
+ * the file keys of the directories being walked rather than by
+ * limiting the depth of the walk.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+final class FileTrees {
+	private FileTrees() {
+	}
+
+	/**
+	 * Read the attributes of a file, following symbolic links.
+	 * @param path the file
+	 * @return its attributes, or null if it does not exist (or is a
+	 * broken symbolic link)
+	 * @throws IOException thrown if the attributes cannot be read
+	 */
+	static BasicFileAttributes readAttributes(Path path) throws IOException {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Identify a directory, so that it can be recognised when a symbolic
+	 * link leads back to it.
+	 * @param directory the directory
+	 * @param attributes its attributes
+	 * @return the file key of the directory, or its real path on file
+	 * systems that have no file keys
+	 * @throws IOException thrown if the real path cannot be determined
+	 */
+	static Object directoryKey(Path directory, BasicFileAttributes attributes)
+			throws IOException {
+		Object key = attributes.fileKey();
+		return key != null ? key : directory.toRealPath();
+	}
+
+	/**
+	 * List a directory in name order.
+	 * @param directory the directory
+	 * @return its entries, sorted by name
+	 * @throws IOException thrown if the directory cannot be read
+	 */
+	static List<Path> list(Path directory) throws IOException {
+		List<Path> entries = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try {
+			for (Path entry : stream)
+				entries.add(entry);
+		} finally {
+			stream.close();
+		}
+		// Directory streams make no promises about ordering
+		Collections.sort(entries);
+		return entries;
+	}
+}
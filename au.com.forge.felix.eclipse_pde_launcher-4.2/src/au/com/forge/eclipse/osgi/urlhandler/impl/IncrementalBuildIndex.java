@@ -0,0 +1,189 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Records where each entry of a built bundle came from: the source
+ * file, its size and modification time when it was read, and the CRC
+ * of its contents. It is saved next to the bundle so the next build of
+ * the same project can tell which entries are unchanged.
+ *
+ * The index also records the size and modification time of the bundle
+ * it describes, so an index that does not belong to the bundle next to
+ * it is never used.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class IncrementalBuildIndex {
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Where a single bundle entry came from.
+	 */
+	public static class Entry {
+		private final String sourcePath;
+		private final long size;
+		private final long lastModified;
+		private final long crc;
+
+		public Entry(String sourcePath, long size, long lastModified, long crc) {
+			this.sourcePath = sourcePath;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.crc = crc;
+		}
+
+		/**
+		 * @return the absolute path of the file the entry was read from
+		 */
+		public String getSourcePath() {
+			return sourcePath;
+		}
+
+		/**
+		 * @return the size of the source file (and of the entry)
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the modification time of the source file
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the CRC-32 of the entry contents
+		 */
+		public long getCrc() {
+			return crc;
+		}
+
+		/**
+		 * Determine if the source file is unchanged since this entry
+		 * was written.
+		 * @param sourceFile the file the entry would be read from now
+		 * @param currentSize its current size
+		 * @param currentLastModified its current modification time
+		 * @return true if the entry can be reused
+		 */
+		public boolean matches(File sourceFile, long currentSize,
+				long currentLastModified) {
+			return size == currentSize && lastModified == currentLastModified
+					&& sourcePath.equals(sourceFile.getAbsolutePath());
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * @param outputResource the path of the entry in the bundle
+	 * @return the index entry, or null if there is none
+	 */
+	public Entry get(String outputResource) {
+		return entries.get(outputResource);
+	}
+
+	/**
+	 * @param outputResource the path of the entry in the bundle
+	 * @param entry where the entry came from
+	 */
+	public void put(String outputResource, Entry entry) {
+		entries.put(outputResource, entry);
+	}
+
+	/**
+	 * Read the index of a bundle.
+	 * @param indexFile the index file
+	 * @param bundleFile the bundle the index must describe
+	 * @return the index, or null if the index is missing or
+	 * does not belong to <code>bundleFile</code>
+	 * @throws IOException thrown if the index cannot be read
+	 */
+	public static IncrementalBuildIndex read(File indexFile, File bundleFile)
+			throws IOException {
+		if (!indexFile.isFile() || !bundleFile.isFile())
+			return null;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			if (input.readInt() != FORMAT_VERSION
+					|| input.readLong() != bundleFile.length()
+					|| input.readLong() != bundleFile.lastModified())
+				return null;
+			IncrementalBuildIndex index = new IncrementalBuildIndex();
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				String outputResource = input.readUTF();
+				index.put(outputResource, new Entry(input.readUTF(), input
+						.readLong(), input.readLong(), input.readLong()));
+			}
+			return index;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Write the index of a bundle.
+	 * @param indexFile the index file
+	 * @param bundleFile the bundle the index describes
+	 * @throws IOException thrown if the index cannot be written
+	 */
+	public void write(File indexFile, File bundleFile) throws IOException {
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			output.writeInt(FORMAT_VERSION);
+			output.writeLong(bundleFile.length());
+			output.writeLong(bundleFile.lastModified());
+			output.writeInt(entries.size());
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> mapEntry = it.next();
+				Entry entry = mapEntry.getValue();
+				output.writeUTF(mapEntry.getKey());
+				output.writeUTF(entry.getSourcePath());
+				output.writeLong(entry.getSize());
+				output.writeLong(entry.getLastModified());
+				output.writeLong(entry.getCrc());
+			}
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a large file in fixed-size chunks on a {@link ForkJoinPool}.
+ * Each chunk is compressed independently, primed with the 32 KB of the
+ * file before it as a dictionary, and ended with a sync flush so the
+ * compressed chunks can simply be concatenated; the last chunk ends the
+ * deflate stream. The result is a single raw deflate stream that any
+ * inflater can read, only slightly larger than one made serially.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ParallelDeflater {
+	/**
+	 * The amount of uncompressed data in each chunk.
+	 */
+	public static final int CHUNK_SIZE = 128 * 1024;
+
+	/**
+	 * The size of the deflate window, which is how much of the previous
+	 * chunk is used as the dictionary of the next.
+	 */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private final ForkJoinPool pool;
+	private final int level;
+
+	/**
+	 * @param pool the pool the chunks are compressed on
+	 * @param level the deflate level
+	 */
+	public ParallelDeflater(ForkJoinPool pool, int level) {
+		this.pool = pool;
+		this.level = level;
+	}
+
+	private static class Chunk {
+		final byte[] data;
+		final int dataOffset;
+		final int dataLength;
+		final byte[] compressed;
+		final int compressedLength;
+
+		Chunk(byte[] data, int dataOffset, int dataLength, byte[] compressed,
+				int compressedLength) {
+			this.data = data;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+			this.compressed = compressed;
+			this.compressedLength = compressedLength;
+		}
+	}
+
+	/**
+	 * Deflate the first <code>size</code> bytes of a file. Only a few
+	 * chunks per worker are in memory at a time.
+	 * @param file the file
+	 * @param size the size of the file
+	 * @param out the stream to write the raw deflate data to
+	 * @param crc a checksum that is updated with the uncompressed data
+	 * @throws IOException thrown if the file cannot be read, or is shorter
+	 * than <code>size</code>
+	 */
+	public void deflate(final File file, final long size, OutputStream out,
+			CRC32 crc) throws IOException {
+		final FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		LinkedList<Future<Chunk>> inFlight = new LinkedList<Future<Chunk>>();
+		try {
+			long chunks = Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			int maxInFlight = pool.getParallelism() * 2;
+			for (long i = 0; i < chunks; i++) {
+				final long start = i * CHUNK_SIZE;
+				final boolean last = i == chunks - 1;
+				inFlight.add(pool.submit(new Callable<Chunk>() {
+					public Chunk call() throws IOException {
+						return compress(file, channel, start, Math.min(size,
+								start + CHUNK_SIZE), last);
+					}
+				}));
+				if (inFlight.size() >= maxInFlight)
+					write(ParallelResourceWalker.await(inFlight.removeFirst()),
+							out, crc);
+			}
+			while (!inFlight.isEmpty())
+				write(ParallelResourceWalker.await(inFlight.removeFirst()), out,
+						crc);
+		} finally {
+			Iterator<Future<Chunk>> it = inFlight.iterator();
+			while (it.hasNext())
+				it.next().cancel(false);
+			channel.close();
+		}
+	}
+
+	private static void write(Chunk chunk, OutputStream out, CRC32 crc)
+			throws IOException {
+		crc.update(chunk.data, chunk.dataOffset, chunk.dataLength);
+		out.write(chunk.compressed, 0, chunk.compressedLength);
+	}
+
+	private Chunk compress(File file, FileChannel channel, long start,
+			long end, boolean last) throws IOException {
+		long dictionaryStart = Math.max(0, start - DICTIONARY_SIZE);
+		int dictionaryLength = (int) (start - dictionaryStart);
+		int dataLength = (int) (end - start);
+		byte[] data = new byte[dictionaryLength + dataLength];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, dictionaryStart + buffer.position()) == -1)
+				throw new IOException(file
+						+ " changed while the bundle was being built");
+		}
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionaryLength > 0)
+				deflater.setDictionary(data, 0, dictionaryLength);
+			deflater.setInput(data, dictionaryLength, dataLength);
+			byte[] compressed = new byte[dataLength / 2 + 64];
+			int compressedLength = 0;
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					if (compressedLength == compressed.length)
+						compressed = Arrays.copyOf(compressed,
+								compressed.length * 2);
+					compressedLength += deflater.deflate(compressed,
+							compressedLength, compressed.length
+									- compressedLength);
+				}
+			} else {
+				// A sync flush ends the chunk on a byte boundary, without
+				// ending the deflate stream
+				while (true) {
+					if (compressedLength == compressed.length)
+						compressed = Arrays.copyOf(compressed,
+								compressed.length * 2);
+					int space = compressed.length - compressedLength;
+					int deflated = deflater.deflate(compressed,
+							compressedLength, space, Deflater.SYNC_FLUSH);
+					compressedLength += deflated;
+					if (deflated < space)
+						break;
+				}
+			}
+			return new Chunk(data, dictionaryLength, dataLength, compressed,
+					compressedLength);
+		} finally {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,446 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Walks resource directories and reads resource files on a
+ * {@link ForkJoinPool}, for {@link EclipseProjectToOSGiBundleBuilder}.
+ *
+ * A walk returns the resources of a directory tree in a fixed order
+ * (sorted by name, depth first), whatever order the workers finish
+ * in, so the bundle built from them is the same on every build.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ParallelResourceWalker {
+	/**
+	 * Files larger than this are not read ahead, but copied straight
+	 * from disk when they are written, so the memory used by a build
+	 * stays bounded.
+	 */
+	private static final long MAX_READ_AHEAD_FILE_SIZE = 1024 * 1024;
+
+	/**
+	 * A file (or internal JAR directory) found by a walk.
+	 */
+	public static class Resource {
+		private final String outputPath;
+		private final File file;
+		private final BasicFileAttributes attributes;
+		private final boolean internalJar;
+
+		Resource(String outputPath, File file, BasicFileAttributes attributes,
+				boolean internalJar) {
+			this.outputPath = outputPath;
+			this.file = file;
+			this.attributes = attributes;
+			this.internalJar = internalJar;
+		}
+
+		/**
+		 * @return the path of the resource in the bundle
+		 */
+		public String getOutputPath() {
+			return outputPath;
+		}
+
+		/**
+		 * @return the file or directory the resource is built from
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the attributes of the file when it was found by the walk
+		 */
+		public BasicFileAttributes getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return true if this is a directory that is packaged as an
+		 * internal JAR (its name ends with .jar)
+		 */
+		public boolean isInternalJar() {
+			return internalJar;
+		}
+	}
+
+	/**
+	 * The contents of a file that was read ahead of being written.
+	 * Small files are read into a {@link BufferPool} buffer, which the
+	 * writer gives back once the contents are written. Files the
+	 * compression policy deflates are also deflated by the reader.
+	 */
+	public static class ResourceContents {
+		private final long size;
+		private final long lastModified;
+		private final byte[] data;
+		private final int length;
+		private final long crc;
+		private final byte[] compressed;
+		private final int compressedLength;
+
+		ResourceContents(long size, long lastModified, byte[] data,
+				int length, long crc, byte[] compressed, int compressedLength) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.data = data;
+			this.length = length;
+			this.crc = crc;
+			this.compressed = compressed;
+			this.compressedLength = compressedLength;
+		}
+
+		/**
+		 * @return the size of the file before it was read
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the modification time of the file before it was read
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the buffer holding the file contents, which may be
+		 * longer than the contents
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return the length of the file contents
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the CRC-32 of the file contents
+		 */
+		public long getCrc() {
+			return crc;
+		}
+
+		/**
+		 * @return the raw deflate data of the file contents, or null if
+		 * the file is to be stored
+		 */
+		public byte[] getCompressed() {
+			return compressed;
+		}
+
+		/**
+		 * @return the length of the deflate data
+		 */
+		public int getCompressedLength() {
+			return compressedLength;
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param pool the pool that walks directories and reads files
+	 */
+	public ParallelResourceWalker(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the pool that walks directories and reads files
+	 */
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return how many files the writer should have read ahead of it
+	 */
+	public int getReadAhead() {
+		return pool.getParallelism() * 4;
+	}
+
+	/**
+	 * Walk a directory tree.
+	 * @param prefix the path of the directory in the bundle ("" for the root)
+	 * @param directory the directory to walk
+	 * @return the resources in the tree, in bundle order
+	 * @throws IOException thrown if the tree cannot be read
+	 */
+	public List<Resource> walk(String prefix, File directory)
+			throws IOException {
+		// Use '/' as ZIP files are always constructed with forward slash
+		if (File.separatorChar == '\\')
+			prefix = prefix.replace('\\', '/');
+		Path root = directory.toPath();
+		BasicFileAttributes attributes = FileTrees.readAttributes(root);
+		if (attributes == null || !attributes.isDirectory())
+			return new ArrayList<Resource>();
+		Set<Object> ancestors = new HashSet<Object>();
+		ancestors.add(FileTrees.directoryKey(root, attributes));
+		try {
+			return pool.invoke(new WalkTask(prefix, root, ancestors));
+		} catch (WalkException e) {
+			throw e.getIOException();
+		}
+	}
+
+	/**
+	 * Start reading a file in the background.
+	 * @param resource the file to read
+	 * @param incrementalBuild the incremental build the file is being written
+	 * to, or null. Files it can copy from the previous build are not read.
+	 * @param crcCache the CRCs of files read by earlier builds. The CRC of
+	 * the file is calculated on the worker if it is not in the cache.
+	 * @param compressionPolicy decides whether the file is deflated on the
+	 * worker
+	 * @return the future contents of the file, which are null if the file
+	 * is too large to read ahead or unchanged since the previous build
+	 */
+	public Future<ResourceContents> read(final Resource resource,
+			final IncrementalBuildStore.IncrementalBuild incrementalBuild,
+			final CrcCache crcCache, final CompressionPolicy compressionPolicy) {
+		return pool.submit(new Callable<ResourceContents>() {
+			public ResourceContents call() throws IOException {
+				File file = resource.getFile();
+				long size = resource.getAttributes().size();
+				long lastModified = resource.getAttributes().lastModifiedTime()
+						.toMillis();
+				if (size > MAX_READ_AHEAD_FILE_SIZE)
+					return null;
+				if (incrementalBuild != null
+						&& incrementalBuild.isUnchanged(resource
+								.getOutputPath(), file, size, lastModified))
+					return null;
+				byte[] data = size <= BufferPool.BUFFER_SIZE ? BufferPool
+						.acquire() : new byte[(int) size];
+				int length;
+				InputStream input = new FileInputStream(file);
+				try {
+					length = readFully(input, data, (int) size);
+				} finally {
+					input.close();
+				}
+				long crc = length == size ? crcCache.get(file, size,
+						lastModified) : -1;
+				if (crc == -1) {
+					CRC32 checksum = new CRC32();
+					checksum.update(data, 0, length);
+					crc = checksum.getValue();
+					if (length == size)
+						crcCache.put(file, size, lastModified, crc);
+				}
+				if (!compressionPolicy.shouldDeflate(resource.getOutputPath(),
+						length))
+					return new ResourceContents(size, lastModified, data,
+							length, crc, null, 0);
+				Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+						true);
+				try {
+					deflater.setInput(data, 0, length);
+					deflater.finish();
+					byte[] compressed = new byte[length / 2 + 64];
+					int compressedLength = 0;
+					while (!deflater.finished()) {
+						if (compressedLength == compressed.length)
+							compressed = Arrays.copyOf(compressed,
+									compressed.length * 2);
+						compressedLength += deflater.deflate(compressed,
+								compressedLength, compressed.length
+										- compressedLength);
+					}
+					return new ResourceContents(size, lastModified, data,
+							length, crc, compressed, compressedLength);
+				} finally {
+					deflater.end();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for a file started by {@link #read(Resource, IncrementalBuildStore.IncrementalBuild, CrcCache, CompressionPolicy)},
+	 * or any other task that reads bundle resources.
+	 * @param contents the future contents
+	 * @return the contents of the file, or null
+	 * @throws IOException thrown if the file could not be read
+	 */
+	public static <T> T await(Future<T> contents)
+			throws IOException {
+		try {
+			return contents.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted reading bundle resources.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Unable to read bundle resource: "
+					+ e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Read a file whose size is already known. A regular file is
+	 * normally read in a single read; nothing past <code>size</code> is
+	 * read, so the contents always match the size the file had when it
+	 * was examined (unless it was truncated in the meantime).
+	 * @param input the file
+	 * @param buffer the buffer to read it into
+	 * @param size the size of the file
+	 * @return the number of bytes read
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	static int readFully(InputStream input, byte[] buffer, int size)
+			throws IOException {
+		int length = 0;
+		while (length < size) {
+			int read = input.read(buffer, length, size - length);
+			if (read == -1)
+				break;
+			length += read;
+		}
+		return length;
+	}
+
+	/**
+	 * Carries an {@link IOException} out of a {@link WalkTask}.
+	 */
+	private static class WalkException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		WalkException(IOException cause) {
+			super(cause);
+		}
+
+		IOException getIOException() {
+			// The fork/join framework may rethrow a copy of the
+			// exception that wraps the original one
+			Throwable cause = getCause();
+			while (cause != null && !(cause instanceof IOException))
+				cause = cause.getCause();
+			return cause != null ? (IOException) cause : new IOException(this);
+		}
+	}
+
+	/**
+	 * Lists a directory, walking each of its subdirectories as a
+	 * separate task.
+	 */
+	private static class WalkTask extends RecursiveTask<List<Resource>> {
+		private static final long serialVersionUID = 1L;
+
+		private final String prefix;
+		private final Path directory;
+		/** The keys of this directory and the directories above it */
+		private final Set<Object> ancestors;
+
+		WalkTask(String prefix, Path directory, Set<Object> ancestors) {
+			this.prefix = prefix;
+			this.directory = directory;
+			this.ancestors = ancestors;
+		}
+
+		protected List<Resource> compute() {
+			try {
+				return walk();
+			} catch (IOException e) {
+				throw new WalkException(e);
+			}
+		}
+
+		private List<Resource> walk() throws IOException {
+			List<Path> files = FileTrees.list(directory);
+			List<Resource> resources = new ArrayList<Resource>();
+
+			// Fork all the subdirectories first, then collect the
+			// results in order
+			Object[] children = new Object[files.size()];
+			for (int i = 0; i < children.length; i++) {
+				Path file = files.get(i);
+				BasicFileAttributes attributes = FileTrees.readAttributes(file);
+				if (attributes == null)
+					continue;
+				String name = file.getFileName().toString();
+				String outputPath = prefix.equals("") ? name : prefix + "/"
+						+ name;
+				if (attributes.isRegularFile()) {
+					children[i] = new Resource(outputPath, file.toFile(),
+							attributes, false);
+				} else if (attributes.isDirectory()) {
+					if (outputPath.endsWith(".jar")) {
+						children[i] = new Resource(outputPath, file.toFile(),
+								attributes, true);
+						continue;
+					}
+					Object key = FileTrees.directoryKey(file, attributes);
+					if (ancestors.contains(key)) {
+						System.err.println("Skipping symbolic link loop at "
+								+ file);
+						continue;
+					}
+					Set<Object> subdirectoryAncestors = new HashSet<Object>(
+							ancestors);
+					subdirectoryAncestors.add(key);
+					WalkTask subdirectory = new WalkTask(outputPath, file,
+							subdirectoryAncestors);
+					subdirectory.fork();
+					children[i] = subdirectory;
+				}
+			}
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] instanceof Resource)
+					resources.add((Resource) children[i]);
+				else if (children[i] instanceof WalkTask)
+					resources.addAll(((WalkTask) children[i]).join());
+			}
+			return resources;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+/**
+ * Assembles an Eclipse project as an exploded bundle directory that
+ * Felix can install with a <code>reference:file:</code> URL. Instead of
+ * copying resources, the overlay directory links to the project's
+ * output folders and <code>bin.includes</code> resources, following
+ * the same rules as {@link EclipseProjectToOSGiBundleBuilder}: a
+ * directory is linked as a whole unless another source contributes to
+ * the same path, in which case it becomes a real directory holding
+ * links to the children of both. An internal library JAR
+ * (<code>output.*.jar</code>) is linked as an embedded directory.
+ *
+ * Symbolic links are used where the platform allows them, so class
+ * files recompiled by Eclipse are seen through the overlay straight
+ * away. Otherwise the directory tree is recreated with hard links to
+ * the files (or copies, if the overlay is on another file system), and
+ * the overlay has to be assembled again to see new files.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ReferenceOverlayBuilder {
+	private final EclipseProjectMetadata metadata;
+	private final File projectDirectory;
+	/** Output directories already linked, by output path and canonical path */
+	private final Set<String> linkedDirectories = new HashSet<String>();
+	private Path overlayRoot;
+	private boolean symbolicLinks = true;
+
+	/**
+	 * @param metadata the Eclipse project configuration
+	 */
+	public ReferenceOverlayBuilder(EclipseProjectMetadata metadata) {
+		this.metadata = metadata;
+		this.projectDirectory = metadata.getProjectDirectory();
+	}
+
+	/**
+	 * Choose the overlay directory of a project. Projects with the same
+	 * name in different places get different directories.
+	 * @param overlaysDirectory the directory holding every overlay
+	 * @param projectDirectory the Eclipse project directory
+	 * @return the overlay directory of the project
+	 * @throws IOException thrown if the project path cannot be resolved
+	 */
+	public static File getOverlayDirectory(File overlaysDirectory,
+			File projectDirectory) throws IOException {
+		File canonical = projectDirectory.getCanonicalFile();
+		return new File(overlaysDirectory, canonical.getName() + "-"
+				+ Integer.toHexString(canonical.getPath().hashCode()));
+	}
+
+	/**
+	 * @return true if the overlay was assembled with symbolic links,
+	 * false if the platform did not allow them
+	 */
+	public boolean isSymbolicLinks() {
+		return symbolicLinks;
+	}
+
+	/**
+	 * Assemble the overlay, replacing whatever the directory held
+	 * before. Only the links are removed, never the files they lead to.
+	 * @param overlayDirectory the directory to assemble the bundle in
+	 * @throws IOException thrown if the project configuration is invalid,
+	 * or the overlay cannot be written
+	 */
+	public void build(File overlayDirectory) throws IOException {
+		overlayRoot = overlayDirectory.toPath().toAbsolutePath();
+		delete(overlayRoot);
+		Files.createDirectories(overlayRoot);
+		Properties buildProperties = metadata.getBuildProperties();
+		handleManifest(buildProperties);
+		handleBuildProperties(buildProperties);
+		handleClasspath();
+	}
+
+	/**
+	 * Link the bundle manifest first, so that it wins over any other
+	 * META-INF/MANIFEST.MF (as it does in a built bundle).
+	 */
+	private void handleManifest(Properties buildProperties) throws IOException {
+		File manifestFile = new File(projectDirectory, JarFile.MANIFEST_NAME);
+		String binIncludes = buildProperties.getProperty("bin.includes");
+		if (!manifestFile.isFile() || binIncludes == null)
+			return;
+		String[] binFiles = binIncludes.split(",");
+		for (int i = 0; i < binFiles.length; ++i) {
+			String binFile = binFiles[i].trim();
+			if (binFile.equals("META-INF") || binFile.equals("META-INF/")
+					|| binFile.equals(JarFile.MANIFEST_NAME)) {
+				link(JarFile.MANIFEST_NAME, manifestFile.toPath());
+				return;
+			}
+		}
+	}
+
+	private void handleBuildProperties(Properties buildProperties)
+			throws IOException {
+		String binIncludes = buildProperties.getProperty("bin.includes");
+		if (binIncludes == null)
+			return;
+		String[] binFiles = binIncludes.split(",");
+		for (int i = 0; i < binFiles.length; ++i) {
+			String binFile = binFiles[i].trim();
+			// "." is made up of the .classpath output directories
+			if (binFile.equals("") || binFile.equals("."))
+				continue;
+
+			String binOutput = buildProperties.getProperty("output."
+					+ binFiles[i]);
+			if (binOutput != null) {
+				linkOutputDirectory(binFile, new File(projectDirectory,
+						binOutput));
+			} else {
+				File resource = new File(projectDirectory, binFiles[i]);
+				if (!resource.exists())
+					throw new IOException(
+							"Invalid binary build include in build.properties: "
+									+ binFiles[i]);
+				if (resource.isFile())
+					link(binFile, resource.toPath());
+				else
+					linkOutputDirectory(binFile, resource);
+			}
+		}
+	}
+
+	private void handleClasspath() throws IOException {
+		Iterator<String> it = metadata.getClasspathOutputs().iterator();
+		while (it.hasNext()) {
+			File inputPath = new File(projectDirectory, it.next());
+			if (inputPath.isDirectory())
+				linkOutputDirectory(".", inputPath);
+		}
+	}
+
+	/**
+	 * Link an output directory into the overlay, unless the same
+	 * directory has already been linked to the same place.
+	 */
+	private void linkOutputDirectory(String outputPath, File inputDirectory)
+			throws IOException {
+		// A missing output directory just means nothing has been built
+		if (!inputDirectory.isDirectory())
+			return;
+		String key = new File(outputPath).getPath() + File.pathSeparator
+				+ inputDirectory.getCanonicalPath();
+		if (!linkedDirectories.add(key))
+			return;
+		if (outputPath.equals(".") || outputPath.equals("")) {
+			List<Path> children = FileTrees.list(inputDirectory.toPath());
+			for (int i = 0; i < children.size(); i++)
+				link(children.get(i).getFileName().toString(), children.get(i));
+		} else {
+			link(outputPath, inputDirectory.toPath());
+		}
+	}
+
+	/**
+	 * Link a file or directory into the overlay. A file that is already
+	 * in the overlay is left alone; a directory that is already in the
+	 * overlay is merged with it.
+	 * @param outputPath the path in the bundle
+	 * @param source the file or directory to link to
+	 * @throws IOException
+	 */
+	private void link(String outputPath, Path source) throws IOException {
+		// Use '/' as bundle paths always use forward slashes
+		if (File.separatorChar == '\\')
+			outputPath = outputPath.replace('\\', '/');
+		while (outputPath.endsWith("/"))
+			outputPath = outputPath.substring(0, outputPath.length() - 1);
+		Path target = overlayRoot.resolve(outputPath).normalize();
+		if (!target.startsWith(overlayRoot) || target.equals(overlayRoot))
+			throw new IOException("Bundle path " + outputPath
+					+ " is outside the bundle");
+		BasicFileAttributes sourceAttributes = FileTrees
+				.readAttributes(source);
+		if (sourceAttributes == null)
+			return;
+		source = source.toAbsolutePath();
+
+		if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+			createDirectory(target.getParent());
+			createLink(target, source, sourceAttributes);
+			return;
+		}
+		// Something else got here first: only directories are merged
+		if (!sourceAttributes.isDirectory() || !Files.isDirectory(target))
+			return;
+		if (Files.isSymbolicLink(target)) {
+			if (Files.isSameFile(target, source))
+				return;
+			expand(target);
+		}
+		List<Path> children = FileTrees.list(source);
+		for (int i = 0; i < children.size(); i++)
+			link(outputPath + "/" + children.get(i).getFileName(), children
+					.get(i));
+	}
+
+	/**
+	 * Make sure a directory of the overlay is a real directory, replacing
+	 * a symbolic link to a directory with links to its children.
+	 */
+	private void createDirectory(Path directory) throws IOException {
+		if (directory.equals(overlayRoot))
+			return;
+		createDirectory(directory.getParent());
+		if (Files.isSymbolicLink(directory))
+			expand(directory);
+		else if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS))
+			Files.createDirectory(directory);
+	}
+
+	/**
+	 * Replace a symbolic link to a directory with a real directory that
+	 * links to each of its children.
+	 */
+	private void expand(Path link) throws IOException {
+		Path source = link.getParent().resolve(Files.readSymbolicLink(link));
+		Files.delete(link);
+		Files.createDirectory(link);
+		List<Path> children = FileTrees.list(source);
+		for (int i = 0; i < children.size(); i++) {
+			Path child = children.get(i);
+			BasicFileAttributes attributes = FileTrees.readAttributes(child);
+			if (attributes != null)
+				createLink(link.resolve(child.getFileName().toString()), child,
+						attributes);
+		}
+	}
+
+	private void createLink(Path target, Path source,
+			BasicFileAttributes sourceAttributes) throws IOException {
+		if (symbolicLinks) {
+			try {
+				Files.createSymbolicLink(target, source);
+				return;
+			} catch (UnsupportedOperationException e) {
+				symbolicLinks = false;
+			} catch (FileSystemException e) {
+				// e.g. Windows without the privilege to create them
+				symbolicLinks = false;
+			}
+		}
+		if (!sourceAttributes.isDirectory()) {
+			try {
+				Files.createLink(target, source);
+			} catch (IOException e) {
+				// Hard links cannot cross file systems
+				Files.copy(source, target);
+			}
+			return;
+		}
+		Files.createDirectory(target);
+		Set<Object> ancestors = new HashSet<Object>();
+		ancestors.add(FileTrees.directoryKey(source, sourceAttributes));
+		copyTree(target, source, ancestors);
+	}
+
+	/**
+	 * Recreate a directory tree with hard links to its files.
+	 */
+	private void copyTree(Path target, Path source, Set<Object> ancestors)
+			throws IOException {
+		List<Path> children = FileTrees.list(source);
+		for (int i = 0; i < children.size(); i++) {
+			Path child = children.get(i);
+			BasicFileAttributes attributes = FileTrees.readAttributes(child);
+			if (attributes == null)
+				continue;
+			Path childTarget = target.resolve(child.getFileName().toString());
+			if (!attributes.isDirectory()) {
+				createLink(childTarget, child, attributes);
+				continue;
+			}
+			Object key = FileTrees.directoryKey(child, attributes);
+			if (!ancestors.add(key)) {
+				System.err.println("Skipping symbolic link loop at " + child);
+				continue;
+			}
+			Files.createDirectory(childTarget);
+			copyTree(childTarget, child, ancestors);
+			ancestors.remove(key);
+		}
+	}
+
+	/**
+	 * Delete an overlay directory without following its links.
+	 */
+	private static void delete(Path directory) throws IOException {
+		if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS))
+			return;
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException {
+				if (e != null)
+					throw e;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
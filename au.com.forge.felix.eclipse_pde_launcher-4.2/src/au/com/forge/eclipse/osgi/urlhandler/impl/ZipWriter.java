@@ -0,0 +1,366 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP file whose entries are either stored, with their size
+ * and CRC given up front, or deflated by the caller. Unlike
+ * {@link java.util.zip.ZipOutputStream}, the data written to a deflated
+ * entry is written as it is, so entries can be compressed elsewhere
+ * (e.g. in parallel chunks by {@link ParallelDeflater}).
+ *
+ * Entry data is written with the {@link OutputStream} methods between
+ * starting and closing the entry.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ZipWriter extends OutputStream {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int FLAG_UTF8 = 0x800;
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static class Entry {
+		final byte[] name;
+		final int method;
+		final long offset;
+		long size;
+		long compressedSize;
+		long crc;
+
+		Entry(byte[] name, int method, long offset) {
+			this.name = name;
+			this.method = method;
+			this.offset = offset;
+		}
+	}
+
+	private final OutputStream out;
+	private final int dosTime;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Set<String> names = new HashSet<String>();
+	private byte[] header = new byte[256];
+	private long written = 0;
+	private Entry current = null;
+	private long currentStart;
+	private boolean finished = false;
+
+	/**
+	 * @param out the stream to write the ZIP file to
+	 */
+	public ZipWriter(OutputStream out) {
+		this.out = out;
+		this.dosTime = toDosTime(System.currentTimeMillis());
+	}
+
+	/**
+	 * Start a stored (uncompressed) entry.
+	 * @param name the entry name
+	 * @param size the size of the entry data
+	 * @param crc the CRC-32 of the entry data
+	 * @throws IOException
+	 */
+	public void putStoredEntry(String name, long size, long crc)
+			throws IOException {
+		if (size >= ZIP64_MAGIC)
+			throw new ZipException("Entry too large for a bundle: " + name);
+		Entry entry = startEntry(name, METHOD_STORED);
+		entry.size = size;
+		entry.compressedSize = size;
+		entry.crc = crc;
+		writeLocalHeader(entry, 0);
+	}
+
+	/**
+	 * Start a deflated entry. The data written to it must already be
+	 * deflated (raw deflate data, with no zlib header), and the entry
+	 * must be closed with {@link #closeEntry(long, long)}.
+	 * @param name the entry name
+	 * @throws IOException
+	 */
+	public void putDeflatedEntry(String name) throws IOException {
+		Entry entry = startEntry(name, METHOD_DEFLATED);
+		// The sizes and CRC follow the data in a data descriptor
+		writeLocalHeader(entry, FLAG_DATA_DESCRIPTOR);
+	}
+
+	private Entry startEntry(String name, int method) throws IOException {
+		if (current != null)
+			throw new ZipException("Entry " + new String(current.name, UTF8)
+					+ " is still open");
+		if (!names.add(name))
+			throw new ZipException("duplicate entry: " + name);
+		Entry entry = new Entry(name.getBytes(UTF8), method, written);
+		current = entry;
+		return entry;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (current == null)
+			throw new ZipException("No current ZIP entry");
+		out.write(b, off, len);
+		written += len;
+	}
+
+	/**
+	 * Close a stored entry.
+	 * @throws IOException thrown if the wrong amount of data was written
+	 */
+	public void closeEntry() throws IOException {
+		if (current == null || current.method != METHOD_STORED)
+			throw new ZipException("No stored ZIP entry to close");
+		if (written - currentStart != current.size)
+			throw new ZipException("Invalid entry size for "
+					+ new String(current.name, UTF8) + " (expected "
+					+ current.size + " but got " + (written - currentStart)
+					+ " bytes)");
+		entries.add(current);
+		current = null;
+	}
+
+	/**
+	 * Close a deflated entry.
+	 * @param size the size of the data before it was deflated
+	 * @param crc the CRC-32 of the data before it was deflated
+	 * @throws IOException
+	 */
+	public void closeEntry(long size, long crc) throws IOException {
+		if (current == null || current.method != METHOD_DEFLATED)
+			throw new ZipException("No deflated ZIP entry to close");
+		current.size = size;
+		current.compressedSize = written - currentStart;
+		current.crc = crc;
+		if (size >= ZIP64_MAGIC || current.compressedSize >= ZIP64_MAGIC)
+			throw new ZipException("Entry too large for a bundle: "
+					+ new String(current.name, UTF8));
+		int length = 0;
+		length = putInt(length, DATA_DESCRIPTOR_SIGNATURE);
+		length = putInt(length, crc);
+		length = putInt(length, current.compressedSize);
+		length = putInt(length, size);
+		writeHeader(length);
+		entries.add(current);
+		current = null;
+	}
+
+	/**
+	 * Write the central directory. Nothing more can be written.
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		if (current != null)
+			throw new ZipException("Entry " + new String(current.name, UTF8)
+					+ " is still open");
+		finished = true;
+		long directoryOffset = written;
+		for (int i = 0; i < entries.size(); i++)
+			writeCentralHeader(entries.get(i));
+		long directorySize = written - directoryOffset;
+		int count = entries.size();
+		if (count >= ZIP64_MAGIC_COUNT || directoryOffset >= ZIP64_MAGIC
+				|| directorySize >= ZIP64_MAGIC) {
+			long zip64EndOffset = written;
+			int length = 0;
+			length = putInt(length, ZIP64_END_SIGNATURE);
+			length = putLong(length, 44);
+			length = putShort(length, 45);
+			length = putShort(length, 45);
+			length = putInt(length, 0);
+			length = putInt(length, 0);
+			length = putLong(length, count);
+			length = putLong(length, count);
+			length = putLong(length, directorySize);
+			length = putLong(length, directoryOffset);
+			length = putInt(length, ZIP64_LOCATOR_SIGNATURE);
+			length = putInt(length, 0);
+			length = putLong(length, zip64EndOffset);
+			length = putInt(length, 1);
+			writeHeader(length);
+		}
+		int length = 0;
+		length = putInt(length, END_SIGNATURE);
+		length = putShort(length, 0);
+		length = putShort(length, 0);
+		length = putShort(length, Math.min(count, ZIP64_MAGIC_COUNT));
+		length = putShort(length, Math.min(count, ZIP64_MAGIC_COUNT));
+		length = putInt(length, Math.min(directorySize, ZIP64_MAGIC));
+		length = putInt(length, Math.min(directoryOffset, ZIP64_MAGIC));
+		length = putShort(length, 0);
+		writeHeader(length);
+	}
+
+	/**
+	 * @return the number of bytes written so far, including headers
+	 */
+	public long getSize() {
+		return written;
+	}
+
+	/**
+	 * Finish the ZIP file and close the stream it is written to.
+	 */
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void writeLocalHeader(Entry entry, int flags) throws IOException {
+		int length = 0;
+		length = putInt(length, LOCAL_HEADER_SIGNATURE);
+		length = putShort(length, entry.method == METHOD_STORED ? 10 : 20);
+		length = putShort(length, flags | FLAG_UTF8);
+		length = putShort(length, entry.method);
+		length = putInt(length, dosTime);
+		length = putInt(length, entry.crc);
+		length = putInt(length, entry.compressedSize);
+		length = putInt(length, entry.size);
+		length = putShort(length, entry.name.length);
+		length = putShort(length, 0);
+		length = putBytes(length, entry.name);
+		writeHeader(length);
+		currentStart = written;
+	}
+
+	private void writeCentralHeader(Entry entry) throws IOException {
+		boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+		int version = zip64Offset ? 45 : (entry.method == METHOD_STORED ? 10
+				: 20);
+		int flags = FLAG_UTF8
+				| (entry.method == METHOD_DEFLATED ? FLAG_DATA_DESCRIPTOR : 0);
+		int length = 0;
+		length = putInt(length, CENTRAL_HEADER_SIGNATURE);
+		length = putShort(length, version);
+		length = putShort(length, version);
+		length = putShort(length, flags);
+		length = putShort(length, entry.method);
+		length = putInt(length, dosTime);
+		length = putInt(length, entry.crc);
+		length = putInt(length, entry.compressedSize);
+		length = putInt(length, entry.size);
+		length = putShort(length, entry.name.length);
+		length = putShort(length, zip64Offset ? 12 : 0);
+		length = putShort(length, 0);
+		length = putShort(length, 0);
+		length = putShort(length, 0);
+		length = putInt(length, 0);
+		length = putInt(length, zip64Offset ? ZIP64_MAGIC : entry.offset);
+		length = putBytes(length, entry.name);
+		if (zip64Offset) {
+			length = putShort(length, 0x0001);
+			length = putShort(length, 8);
+			length = putLong(length, entry.offset);
+		}
+		writeHeader(length);
+	}
+
+	/*
+	 * Headers are assembled in a buffer and written in one go, as the
+	 * stream underneath may be expensive to write to in small pieces.
+	 */
+
+	private void writeHeader(int length) throws IOException {
+		out.write(header, 0, length);
+		written += length;
+	}
+
+	private void ensureHeader(int length) {
+		if (length > header.length)
+			header = Arrays.copyOf(header, Math.max(length,
+					header.length * 2));
+	}
+
+	private int putShort(int offset, int value) {
+		ensureHeader(offset + 2);
+		header[offset] = (byte) value;
+		header[offset + 1] = (byte) (value >> 8);
+		return offset + 2;
+	}
+
+	private int putInt(int offset, long value) {
+		ensureHeader(offset + 4);
+		header[offset] = (byte) value;
+		header[offset + 1] = (byte) (value >> 8);
+		header[offset + 2] = (byte) (value >> 16);
+		header[offset + 3] = (byte) (value >> 24);
+		return offset + 4;
+	}
+
+	private int putLong(int offset, long value) {
+		offset = putInt(offset, value);
+		return putInt(offset, value >> 32);
+	}
+
+	private int putBytes(int offset, byte[] bytes) {
+		ensureHeader(offset + bytes.length);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+		return offset + bytes.length;
+	}
+
+	private static int toDosTime(long time) {
+		Calendar calendar = new GregorianCalendar();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25
+				| (calendar.get(Calendar.MONTH) + 1) << 21
+				| calendar.get(Calendar.DAY_OF_MONTH) << 16
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11
+				| calendar.get(Calendar.MINUTE) << 5
+				| calendar.get(Calendar.SECOND) >> 1;
+	}
+}
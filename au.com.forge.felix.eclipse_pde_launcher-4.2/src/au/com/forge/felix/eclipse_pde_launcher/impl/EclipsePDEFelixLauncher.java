@@ -22,25 +22,40 @@
 package au.com.forge.felix.eclipse_pde_launcher.impl;
 
 import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.felix.framework.Felix;
 import org.apache.felix.framework.FrameworkFactory;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.main.AutoProcessor;
 import org.apache.felix.main.Main;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 
 import au.com.forge.eclipse.osgi.autoupdater.impl.EclipseProjectURLAutoUpdater;
+import au.com.forge.eclipse.osgi.autoupdater.impl.EclipseProjectWatcher;
+import au.com.forge.eclipse.osgi.diagnostics.impl.ClassLoadingProfiler;
+import au.com.forge.eclipse.osgi.diagnostics.impl.ServiceRegistryProfiler;
+import au.com.forge.eclipse.osgi.diagnostics.impl.StartupTraceActivator;
 import au.com.forge.eclipse.osgi.urlhandler.impl.EPURLHandlerActivator;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectMetadata;
+import au.com.forge.eclipse.osgi.urlhandler.impl.ReferenceOverlayBuilder;
 
 /**
  * The Eclipse PDE Felix framework launcher. It automatically installs the
@@ -71,6 +86,49 @@ public class EclipsePDEFelixLauncher {
      * */
     private static final String LAUNCHER_INIT_AWT_KEY = "au.com.forge.felix.config.init.awt";
 
+	/**
+	 * Launcher property that installs eclipse-project bundles by
+	 * reference, from overlay directories linking to their output
+	 * folders, instead of building them as JARs.
+	 */
+	private static final String REFERENCE_PROPERTY_KEY = "au.com.forge.felix.builder.reference";
+
+	/**
+	 * Launcher property specifying the directory the reference overlay
+	 * of each project is assembled in. It is also read by
+	 * {@link EclipseProjectURLAutoUpdater} to find the bundles to update.
+	 */
+	private static final String REFERENCE_DIR_PROPERTY_KEY = "au.com.forge.felix.builder.reference.dir";
+
+	private static final String ECLIPSE_PROJECT_PREFIX = "eclipse-project:";
+
+	/**
+	 * Launcher property that keeps the bundle cache between launches:
+	 * bundles removed from the launch are uninstalled, bundles added to
+	 * it are installed, and the rest are used as they are in the cache.
+	 * The launch configuration only keeps the bundle cache when this is
+	 * set.
+	 */
+	private static final String WARM_START_PROPERTY_KEY = "au.com.forge.felix.config.warmstart";
+
+	/**
+	 * Launcher property specifying a file to write a Chrome trace of the
+	 * framework startup to. Nothing is traced if it is not set.
+	 */
+	private static final String TRACE_STARTUP_PROPERTY_KEY = "au.com.forge.felix.trace.startup";
+
+	/**
+	 * Launcher property that profiles the classes defined by each
+	 * bundle with a weaving hook.
+	 */
+	private static final String PROFILE_CLASS_LOADING_PROPERTY_KEY = "au.com.forge.felix.profile.classloading";
+
+	/**
+	 * Launcher property that profiles the service registrations, service
+	 * listeners and service lookups of each bundle with service hooks.
+	 */
+	private static final String PROFILE_SERVICES_PROPERTY_KEY = "au.com.forge.felix.profile.services";
+
 	/**
 	 * Launch the Felix instance.
 	 * 
@@ -85,6 +143,9 @@ public class EclipsePDEFelixLauncher {
 		Main.copySystemProperties(configProperties);
 
 		mergeWithPDELauncherProperties(configProperties);
+		if (Boolean.parseBoolean(getLauncherProperty(configProperties,
+				REFERENCE_PROPERTY_KEY)))
+			installEclipseProjectsByReference(configProperties);
 
 		String enableHook = configProperties
 				.get(Main.SHUTDOWN_HOOK_PROP);
@@ -118,18 +179,64 @@ public class EclipsePDEFelixLauncher {
 			FrameworkFactory frameworkFactory = getFrameworkFactory();
 			ArrayList<BundleActivator> activators = new ArrayList<BundleActivator>();
 
+			// The trace goes before the others so it sees everything they
+			// do to the bundles
+			String tracePath = getLauncherProperty(configProperties,
+					TRACE_STARTUP_PROPERTY_KEY);
+			StartupTraceActivator trace = null;
+			if (tracePath != null) {
+				trace = new StartupTraceActivator(new File(tracePath));
+				activators.add(trace);
+			}
+			if (Boolean.parseBoolean(getLauncherProperty(configProperties,
+					PROFILE_CLASS_LOADING_PROPERTY_KEY)))
+				activators.add(new ClassLoadingProfiler());
+			if (Boolean.parseBoolean(getLauncherProperty(configProperties,
+					PROFILE_SERVICES_PROPERTY_KEY)))
+				activators.add(new ServiceRegistryProfiler());
+
 			// Must put the URL handler first because it is used during
 			// the auto-update process.
-			activators.add(new EPURLHandlerActivator());
-			activators.add(new EclipseProjectURLAutoUpdater());
+			EPURLHandlerActivator handlerActivator = new EPURLHandlerActivator();
+			activators.add(handlerActivator);
+			EclipseProjectURLAutoUpdater updater = new EclipseProjectURLAutoUpdater();
+			updater.setStatistics(handlerActivator.getStatistics());
+			activators.add(updater);
+			EclipseProjectWatcher watcher = new EclipseProjectWatcher(updater);
+			watcher.setStatistics(handlerActivator.getStatistics());
+			activators.add(watcher);
 
 			StringMap stringMap = new StringMap(configProperties);
 			stringMap.put("felix.systembundle.activators", activators);
 
 			framework = (Felix)frameworkFactory.newFramework(stringMap);
+			long phaseStart = System.nanoTime();
 			framework.init();
+			if (trace != null)
+				trace.recordPhase("framework.init", phaseStart);
+			boolean warmStart = Boolean.parseBoolean(getLauncherProperty(
+					configProperties, WARM_START_PROPERTY_KEY));
+			Set<String> selectedLocations = null;
+			if (warmStart) {
+				selectedLocations = LaunchedBundles
+						.getSelectedLocations(configProperties);
+				LaunchedBundles.uninstallRemoved(framework.getBundleContext(),
+						selectedLocations);
+			}
+			handlerActivator.prebuild(getProjectsToInstall(configProperties,
+					framework.getBundleContext()));
+			phaseStart = System.nanoTime();
 			AutoProcessor.process(stringMap, framework.getBundleContext());
+			if (trace != null)
+				trace.recordPhase("AutoProcessor.process", phaseStart);
+			handlerActivator.discardPrebuilt();
+			if (warmStart)
+				LaunchedBundles.record(framework.getBundleContext(),
+						selectedLocations);
+			phaseStart = System.nanoTime();
 			framework.start();
+			if (trace != null)
+				trace.recordPhase("framework.start", phaseStart);
 			framework.waitForStop(0);
 			System.exit(0);
 		} catch (BundleException e) {
@@ -144,6 +251,34 @@ public class EclipsePDEFelixLauncher {
 		}
 	}
 
+	/**
+	 * Find the eclipse-project bundles that the auto-processor is going
+	 * to install, in the order it installs them.
+	 * 
+	 * @param configProperties felix properties
+	 * @param context the system bundle context
+	 * @return the project directories of the bundles that are not
+	 * installed yet
+	 */
+	private static List<File> getProjectsToInstall(
+			Map<String, String> configProperties, BundleContext context) {
+		Set<String> installed = new HashSet<String>();
+		Bundle[] bundles = context.getBundles();
+		for (int i = 0; i < bundles.length; i++)
+			installed.add(bundles[i].getLocation());
+		List<File> projectDirectories = new ArrayList<File>();
+		Iterator<String> it = LaunchedBundles
+				.getSelectedLocationsByStartLevel(configProperties).iterator();
+		while (it.hasNext()) {
+			String location = it.next();
+			if (location.startsWith(ECLIPSE_PROJECT_PREFIX)
+					&& !installed.contains(location))
+				projectDirectories.add(new File(location
+						.substring(ECLIPSE_PROJECT_PREFIX.length())));
+		}
+		return projectDirectories;
+	}
+
 	private static FrameworkFactory getFrameworkFactory() {
 		return new org.apache.felix.framework.FrameworkFactory();
 	}
@@ -192,6 +327,94 @@ public class EclipsePDEFelixLauncher {
 		}
 	}
 
+	/**
+	 * Read a launcher property from the Felix properties, or from the
+	 * system properties (which Felix only copies for its own properties).
+	 * 
+	 * @param configProperties felix properties
+	 * @param key the property name
+	 * @return the property value, or null if it is not set
+	 */
+	private static String getLauncherProperty(
+			Map<String, String> configProperties, String key) {
+		String value = configProperties.get(key);
+		return value != null ? value : System.getProperty(key);
+	}
+
+	/**
+	 * Replace the eclipse-project locations in the auto-start and
+	 * auto-install lists with <code>reference:file:</code> locations of
+	 * overlay directories, so Felix installs the projects in place
+	 * instead of copying a built JAR into its bundle cache. A project
+	 * whose overlay cannot be assembled is still built as a JAR.
+	 * 
+	 * @param configProperties felix properties
+	 */
+	private static void installEclipseProjectsByReference(
+			Map<String, String> configProperties) {
+		String overlaysPath = getLauncherProperty(configProperties,
+				REFERENCE_DIR_PROPERTY_KEY);
+		File overlaysDirectory = overlaysPath != null ? new File(overlaysPath)
+				: new File(new File(System.getProperty("user.home"),
+						".felix-eclipse"), "reference");
+		configProperties.put(REFERENCE_DIR_PROPERTY_KEY, overlaysDirectory
+				.getAbsolutePath());
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+
+		Iterator<Map.Entry<String, String>> it = configProperties.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, String> entry = it.next();
+			if (!entry.getKey().startsWith("felix.auto.")
+					|| entry.getValue() == null
+					|| entry.getValue().indexOf(ECLIPSE_PROJECT_PREFIX) == -1)
+				continue;
+			String[] locations = entry.getValue().trim().split("\\s+");
+			StringBuilder bundleList = new StringBuilder();
+			for (int i = 0; i < locations.length; i++) {
+				String location = locations[i];
+				if (location.startsWith(ECLIPSE_PROJECT_PREFIX))
+					location = createReferenceLocation(location, factory,
+							overlaysDirectory);
+				if (bundleList.length() > 0)
+					bundleList.append(" ");
+				bundleList.append(location);
+			}
+			entry.setValue(bundleList.toString());
+		}
+	}
+
+	/**
+	 * Assemble the overlay directory of an eclipse-project bundle.
+	 * 
+	 * @param location the eclipse-project location
+	 * @param factory the parser factory used to read .classpath files
+	 * @param overlaysDirectory the directory holding the overlays
+	 * @return the reference location of the overlay, or the original
+	 * location if the overlay could not be assembled
+	 */
+	private static String createReferenceLocation(String location,
+			SAXParserFactory factory, File overlaysDirectory) {
+		File projectDirectory = new File(location
+				.substring(ECLIPSE_PROJECT_PREFIX.length()));
+		try {
+			File overlayDirectory = ReferenceOverlayBuilder
+					.getOverlayDirectory(overlaysDirectory, projectDirectory);
+			ReferenceOverlayBuilder builder = new ReferenceOverlayBuilder(
+					EclipseProjectMetadata.load(projectDirectory, factory));
+			builder.build(overlayDirectory);
+			if (!builder.isSymbolicLinks())
+				System.err.println("Symbolic links are not available, so "
+						+ overlayDirectory + " links to the files of "
+						+ projectDirectory + " instead");
+			return "reference:" + overlayDirectory.toURI();
+		} catch (IOException e) {
+			System.err.println("Unable to install " + projectDirectory
+					+ " by reference: " + e.getMessage());
+			return location;
+		}
+	}
+
 	/**
 	 * Combine a Felix bundle list string with another
 	 * 
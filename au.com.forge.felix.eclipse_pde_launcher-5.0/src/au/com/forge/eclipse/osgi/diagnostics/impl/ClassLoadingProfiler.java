@@ -0,0 +1,309 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+
+/**
+ * Profiles the classes defined by bundles, with a {@link WeavingHook}
+ * that sees each class just before it is defined. It counts the
+ * classes and class file bytes of each bundle and package and, on a
+ * framework with woven class listeners (OSGi R6, e.g. Felix 5), the
+ * time from the hook being called until the class is defined.
+ *
+ * The hottest bundles and packages are printed when the framework
+ * stops, and the statistics can be read at any time through the
+ * {@link ClassLoadingProfilerMXBean}.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ClassLoadingProfiler implements BundleActivator, WeavingHook,
+		ClassLoadingProfilerMXBean {
+	/**
+	 * The name the profiler is registered with in the platform MBean
+	 * server.
+	 */
+	public static final String OBJECT_NAME = "au.com.forge.felix:type=ClassLoadingProfiler";
+
+	/**
+	 * The woven class listener interface, added in OSGi R6.
+	 */
+	private static final String LISTENER_CLASS_NAME = "org.osgi.framework.hooks.weaving.WovenClassListener";
+
+	/** WovenClass.TRANSFORMED */
+	private static final int TRANSFORMED = 0x2;
+
+	/** WovenClass.DEFINED */
+	private static final int DEFINED = 0x4;
+
+	/** The number of bundles and packages in the report */
+	private static final int REPORT_SIZE = 10;
+
+	/**
+	 * A class that is being woven and defined.
+	 */
+	private static class PendingClass {
+		private final long startTime;
+		private final String bundleName;
+		private final String packageName;
+
+		PendingClass(long startTime, String bundleName, String packageName) {
+			this.startTime = startTime;
+			this.bundleName = bundleName;
+			this.packageName = packageName;
+		}
+	}
+
+	private ClassLoadingStatistics total = new ClassLoadingStatistics("total");
+	private Map<String, ClassLoadingStatistics> bundles = new HashMap<String, ClassLoadingStatistics>();
+	private Map<String, ClassLoadingStatistics> packages = new HashMap<String, ClassLoadingStatistics>();
+	/** The classes that have been woven but not defined yet */
+	private final Map<WovenClass, PendingClass> pending = new IdentityHashMap<WovenClass, PendingClass>();
+	/** WovenClass.getState(), or null if there are no woven class listeners */
+	private Method getStateMethod = null;
+
+	private ServiceRegistration<?> hookRegistration;
+	private ServiceRegistration<?> listenerRegistration;
+	private ObjectName registeredName;
+
+	public void start(BundleContext context) throws Exception {
+		// Called before any other hook, so the define time includes them
+		Dictionary<String, Object> properties = new Hashtable<String, Object>();
+		properties.put(Constants.SERVICE_RANKING, Integer
+				.valueOf(Integer.MAX_VALUE));
+		hookRegistration = context.registerService(WeavingHook.class
+				.getName(), this, properties);
+		registerListener(context);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			server.registerMBean(this, name);
+			registeredName = name;
+		} catch (JMException e) {
+			System.err.println("Unable to register the class loading profiler: "
+					+ e);
+		}
+	}
+
+	public void stop(BundleContext context) throws Exception {
+		hookRegistration.unregister();
+		if (listenerRegistration != null)
+			listenerRegistration.unregister();
+		if (registeredName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						registeredName);
+			} catch (JMException e) {
+				// Already gone
+			}
+			registeredName = null;
+		}
+		System.out.print(getReport());
+	}
+
+	/**
+	 * Register a woven class listener, if the framework has them, to
+	 * find out when each class has been defined. The launcher is compiled
+	 * against an older framework, so it is a proxy.
+	 */
+	private void registerListener(BundleContext context) {
+		ClassLoader loader = WeavingHook.class.getClassLoader();
+		Class<?> listenerClass;
+		try {
+			listenerClass = Class.forName(LISTENER_CLASS_NAME, false, loader);
+			getStateMethod = WovenClass.class.getMethod("getState");
+		} catch (ClassNotFoundException e) {
+			return;
+		} catch (NoSuchMethodException e) {
+			return;
+		}
+		Object listener = Proxy.newProxyInstance(loader,
+				new Class<?>[] { listenerClass }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class)
+							return method.invoke(this, args);
+						modified((WovenClass) args[0]);
+						return null;
+					}
+				});
+		listenerRegistration = context.registerService(LISTENER_CLASS_NAME,
+				listener, null);
+	}
+
+	public void weave(WovenClass wovenClass) {
+		long now = System.nanoTime();
+		Bundle bundle = wovenClass.getBundleWiring().getBundle();
+		String bundleName = bundle.getSymbolicName() != null ? bundle
+				.getSymbolicName() : bundle.getLocation();
+		String className = wovenClass.getClassName();
+		int lastDot = className.lastIndexOf('.');
+		String packageName = lastDot != -1 ? className.substring(0, lastDot)
+				: "(default package)";
+		long bytes = wovenClass.getBytes().length;
+		synchronized (this) {
+			total.recordClass(bytes);
+			getStatistics(bundles, bundleName).recordClass(bytes);
+			getStatistics(packages, packageName).recordClass(bytes);
+			if (getStateMethod != null)
+				pending.put(wovenClass, new PendingClass(now, bundleName,
+						packageName));
+		}
+	}
+
+	/**
+	 * Called by the woven class listener when a class has been
+	 * transformed, defined or has failed to be.
+	 */
+	private void modified(WovenClass wovenClass) throws Exception {
+		int state = ((Integer) getStateMethod.invoke(wovenClass)).intValue();
+		// Still to be defined
+		if (state == TRANSFORMED)
+			return;
+		long now = System.nanoTime();
+		synchronized (this) {
+			PendingClass pendingClass = pending.remove(wovenClass);
+			if (pendingClass == null || state != DEFINED)
+				return;
+			long defineTime = now - pendingClass.startTime;
+			total.recordDefine(defineTime);
+			getStatistics(bundles, pendingClass.bundleName).recordDefine(
+					defineTime);
+			getStatistics(packages, pendingClass.packageName).recordDefine(
+					defineTime);
+		}
+	}
+
+	private static ClassLoadingStatistics getStatistics(
+			Map<String, ClassLoadingStatistics> map, String name) {
+		ClassLoadingStatistics statistics = map.get(name);
+		if (statistics == null) {
+			statistics = new ClassLoadingStatistics(name);
+			map.put(name, statistics);
+		}
+		return statistics;
+	}
+
+	public synchronized long getClassCount() {
+		return total.getClassCount();
+	}
+
+	public synchronized long getBytes() {
+		return total.getBytes();
+	}
+
+	public synchronized long getDefineTime() {
+		return total.getDefineTime();
+	}
+
+	public boolean isDefineTimeMeasured() {
+		return getStateMethod != null;
+	}
+
+	public synchronized List<ClassLoadingStatistics> getBundles() {
+		return sortedCopy(bundles);
+	}
+
+	public synchronized List<ClassLoadingStatistics> getPackages() {
+		return sortedCopy(packages);
+	}
+
+	private static List<ClassLoadingStatistics> sortedCopy(
+			Map<String, ClassLoadingStatistics> map) {
+		List<ClassLoadingStatistics> copy = new ArrayList<ClassLoadingStatistics>(
+				map.size());
+		Iterator<ClassLoadingStatistics> it = map.values().iterator();
+		while (it.hasNext())
+			copy.add(new ClassLoadingStatistics(it.next()));
+		Collections.sort(copy, ClassLoadingStatistics.HOTTEST_FIRST);
+		return copy;
+	}
+
+	public String getReport() {
+		List<ClassLoadingStatistics> hottestBundles;
+		List<ClassLoadingStatistics> hottestPackages;
+		ClassLoadingStatistics totals;
+		synchronized (this) {
+			hottestBundles = getBundles();
+			hottestPackages = getPackages();
+			totals = new ClassLoadingStatistics(total);
+		}
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(
+				"Bundles defined %,d classes (%,d bytes)", totals
+						.getClassCount(), totals.getBytes()));
+		if (isDefineTimeMeasured())
+			report.append(String.format(" in %.1f ms",
+					totals.getDefineTime() / 1000.0));
+		report.append("\n");
+		appendHottest(report, "bundles", hottestBundles);
+		appendHottest(report, "packages", hottestPackages);
+		return report.toString();
+	}
+
+	private void appendHottest(StringBuilder report, String title,
+			List<ClassLoadingStatistics> hottest) {
+		if (hottest.isEmpty())
+			return;
+		report.append("Hottest ").append(title).append(":\n");
+		for (int i = 0; i < hottest.size() && i < REPORT_SIZE; i++) {
+			ClassLoadingStatistics statistics = hottest.get(i);
+			if (isDefineTimeMeasured())
+				report.append(String.format("%10.1f ms (%,d us/class)",
+						statistics.getDefineTime() / 1000.0, statistics
+								.getMeanDefineTime()));
+			report.append(String.format("%,8d classes %,14d bytes  %s\n",
+					statistics.getClassCount(), statistics.getBytes(),
+					statistics.getName()));
+		}
+	}
+
+	public synchronized void reset() {
+		total = new ClassLoadingStatistics("total");
+		bundles = new HashMap<String, ClassLoadingStatistics>();
+		packages = new HashMap<String, ClassLoadingStatistics>();
+	}
+}
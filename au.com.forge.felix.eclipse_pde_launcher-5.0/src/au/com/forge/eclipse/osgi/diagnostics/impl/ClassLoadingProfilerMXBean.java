@@ -0,0 +1,74 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.util.List;
+
+/**
+ * The management interface of {@link ClassLoadingProfiler}, registered
+ * with the platform MBean server as
+ * {@value ClassLoadingProfiler#OBJECT_NAME}. Times are in microseconds.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public interface ClassLoadingProfilerMXBean {
+	/**
+	 * @return the number of classes defined by bundles
+	 */
+	long getClassCount();
+
+	/**
+	 * @return the total size of their class files
+	 */
+	long getBytes();
+
+	/**
+	 * @return the total time taken to weave and define them
+	 */
+	long getDefineTime();
+
+	/**
+	 * @return true if the define time is measured, which needs a
+	 * framework with woven class listeners (OSGi R6, e.g. Felix 5)
+	 */
+	boolean isDefineTimeMeasured();
+
+	/**
+	 * @return the classes defined by each bundle, hottest first
+	 */
+	List<ClassLoadingStatistics> getBundles();
+
+	/**
+	 * @return the classes defined in each package, hottest first
+	 */
+	List<ClassLoadingStatistics> getPackages();
+
+	/**
+	 * @return a report of the hottest bundles and packages
+	 */
+	String getReport();
+
+	/**
+	 * Clear the statistics.
+	 */
+	void reset();
+}
@@ -0,0 +1,182 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.diagnostics.impl;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The use of the service registry by one bundle (or by every bundle,
+ * for the totals of {@link ServiceRegistryProfiler}): the service events
+ * it caused, the service events dispatched to its listeners and its
+ * service lookups. Times are in microseconds.
+ *
+ * Instances are only changed by {@link ServiceRegistryProfiler}, which
+ * hands out copies.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ServiceRegistryStatistics {
+	/**
+	 * Orders the bundles that take longest to dispatch to first, then
+	 * the ones that register the most services.
+	 */
+	static final Comparator<ServiceRegistryStatistics> HOTTEST_FIRST = new Comparator<ServiceRegistryStatistics>() {
+		public int compare(ServiceRegistryStatistics a,
+				ServiceRegistryStatistics b) {
+			if (a.dispatchTime != b.dispatchTime)
+				return a.dispatchTime > b.dispatchTime ? -1 : 1;
+			if (a.registrations != b.registrations)
+				return a.registrations > b.registrations ? -1 : 1;
+			return a.bundle.compareTo(b.bundle);
+		}
+	};
+
+	private final String bundle;
+	private long registrations;
+	private long modifications;
+	private long unregistrations;
+	private long eventsReceived;
+	private long listenersOffered;
+	/** In nanoseconds */
+	private long dispatchTime;
+	private long findCalls;
+	private long referencesFound;
+
+	ServiceRegistryStatistics(String bundle) {
+		this.bundle = bundle;
+	}
+
+	ServiceRegistryStatistics(ServiceRegistryStatistics other) {
+		this(other.bundle);
+		registrations = other.registrations;
+		modifications = other.modifications;
+		unregistrations = other.unregistrations;
+		eventsReceived = other.eventsReceived;
+		listenersOffered = other.listenersOffered;
+		dispatchTime = other.dispatchTime;
+		findCalls = other.findCalls;
+		referencesFound = other.referencesFound;
+	}
+
+	void recordRegistration() {
+		registrations++;
+	}
+
+	void recordModification() {
+		modifications++;
+	}
+
+	void recordUnregistration() {
+		unregistrations++;
+	}
+
+	/**
+	 * @param listeners the number of the bundle's listeners the event is
+	 * offered to
+	 */
+	void recordEventReceived(int listeners) {
+		eventsReceived++;
+		listenersOffered += listeners;
+	}
+
+	/**
+	 * @param dispatchTime the time taken by the bundle's listeners, in
+	 * nanoseconds
+	 */
+	void recordDispatch(long dispatchTime) {
+		this.dispatchTime += dispatchTime;
+	}
+
+	/**
+	 * @param references the number of service references found
+	 */
+	void recordFind(int references) {
+		findCalls++;
+		referencesFound += references;
+	}
+
+	/**
+	 * @return the bundle symbolic name, or "total"
+	 */
+	public String getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return the services registered by the bundle
+	 */
+	public long getRegistrations() {
+		return registrations;
+	}
+
+	/**
+	 * @return the changes to the properties of its services
+	 */
+	public long getModifications() {
+		return modifications;
+	}
+
+	/**
+	 * @return the services it unregistered
+	 */
+	public long getUnregistrations() {
+		return unregistrations;
+	}
+
+	/**
+	 * @return the service events dispatched to its listeners
+	 */
+	public long getEventsReceived() {
+		return eventsReceived;
+	}
+
+	/**
+	 * @return the number of times one of its listeners was offered an
+	 * event (before the listener's filter is matched)
+	 */
+	public long getListenersOffered() {
+		return listenersOffered;
+	}
+
+	/**
+	 * @return the time its listeners took to handle the service events,
+	 * including any events they caused themselves
+	 */
+	public long getDispatchTime() {
+		return TimeUnit.NANOSECONDS.toMicros(dispatchTime);
+	}
+
+	/**
+	 * @return its calls of getServiceReferences (and getServiceReference)
+	 */
+	public long getFindCalls() {
+		return findCalls;
+	}
+
+	/**
+	 * @return the service references those calls found
+	 */
+	public long getReferencesFound() {
+		return referencesFound;
+	}
+}
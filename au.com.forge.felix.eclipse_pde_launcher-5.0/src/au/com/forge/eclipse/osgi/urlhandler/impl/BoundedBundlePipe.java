@@ -0,0 +1,181 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A fixed-size pipe between the thread building a bundle and the
+ * thread reading it (usually Felix copying it into its bundle cache).
+ *
+ * Unlike {@link java.io.PipedInputStream}, a failure on the writing
+ * side is handed over to the reader, so a partially built bundle is
+ * reported as an {@link IOException} instead of looking like a
+ * truncated (but otherwise valid) stream. Closing the reading side
+ * makes the writer fail on its next write, which stops the build.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BoundedBundlePipe {
+	private final byte[] buffer;
+	private int readPosition = 0;
+	private int count = 0;
+	private boolean writerClosed = false;
+	private boolean readerClosed = false;
+	private IOException failure = null;
+
+	private final InputStream inputStream = new InputStream() {
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read == -1 ? -1 : (single[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readFromPipe(b, off, len);
+		}
+
+		public int available() {
+			synchronized (BoundedBundlePipe.this) {
+				return count;
+			}
+		}
+
+		public void close() {
+			closeReader();
+		}
+	};
+
+	private final OutputStream outputStream = new OutputStream() {
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			writeToPipe(b, off, len);
+		}
+
+		public void close() {
+			closeWriter();
+		}
+	};
+
+	/**
+	 * Create a new pipe.
+	 * @param bufferSize the maximum number of bytes held by the pipe
+	 * before the writer blocks
+	 */
+	public BoundedBundlePipe(int bufferSize) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Pipe buffer size must be positive: " + bufferSize);
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * @return the stream the bundle builder writes to
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * @return the stream the bundle is read from
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Abort the pipe because the writer could not finish the
+	 * bundle. The next read will throw an {@link IOException}
+	 * with <code>cause</code> as its cause.
+	 * @param cause the reason the bundle could not be written
+	 */
+	public synchronized void fail(Throwable cause) {
+		if (failure == null) {
+			failure = new IOException("Unable to build bundle: " + cause.getMessage());
+			failure.initCause(cause);
+		}
+		notifyAll();
+	}
+
+	private synchronized void writeToPipe(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			while (count == buffer.length && !readerClosed)
+				waitForPipe();
+			if (readerClosed)
+				throw new IOException("The bundle stream was closed by its reader.");
+			if (writerClosed)
+				throw new IOException("Write to a closed bundle stream.");
+
+			int writePosition = (readPosition + count) % buffer.length;
+			int chunk = Math.min(len, Math.min(buffer.length - count, buffer.length - writePosition));
+			System.arraycopy(b, off, buffer, writePosition, chunk);
+			count += chunk;
+			off += chunk;
+			len -= chunk;
+			notifyAll();
+		}
+	}
+
+	private synchronized int readFromPipe(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (count == 0 && !writerClosed && failure == null && !readerClosed)
+			waitForPipe();
+		if (failure != null)
+			throw failure;
+		if (readerClosed)
+			throw new IOException("Read from a closed bundle stream.");
+		if (count == 0)
+			return -1;
+
+		int chunk = Math.min(len, Math.min(count, buffer.length - readPosition));
+		System.arraycopy(buffer, readPosition, b, off, chunk);
+		readPosition = (readPosition + chunk) % buffer.length;
+		count -= chunk;
+		notifyAll();
+		return chunk;
+	}
+
+	private synchronized void closeWriter() {
+		writerClosed = true;
+		notifyAll();
+	}
+
+	private synchronized void closeReader() {
+		readerClosed = true;
+		notifyAll();
+	}
+
+	private void waitForPipe() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the bundle stream.");
+		}
+	}
+}
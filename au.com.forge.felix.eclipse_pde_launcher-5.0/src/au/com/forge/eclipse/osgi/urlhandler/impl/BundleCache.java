@@ -0,0 +1,205 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An on-disk cache of built eclipse-project bundles, keyed by the
+ * {@link BundleInputFingerprint} of the project they were built from.
+ *
+ * The cache directory may be shared by several launches at once (it
+ * is shared by all launch configurations by default). New entries are
+ * written to a temporary file and renamed into place, so a reader
+ * never sees a partially written bundle. When the total size of the
+ * cache exceeds its limit, the least recently used bundles are removed.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BundleCache {
+	private static final String BUNDLE_SUFFIX = ".jar";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Temporary files older than this were left behind by a launch
+	 * that was killed while building, and can be removed.
+	 */
+	private static final long STALE_TEMP_FILE_AGE = 60 * 60 * 1000L;
+
+	private final File directory;
+	private final long maximumSize;
+
+	/**
+	 * Create a bundle cache.
+	 * @param directory the cache directory (created if it does not exist)
+	 * @param maximumSize the maximum total size of cached bundles in bytes
+	 */
+	public BundleCache(File directory, long maximumSize) {
+		this.directory = directory;
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Look up a bundle in the cache.
+	 * @param key the fingerprint of the project
+	 * @return the cached bundle, or null if there is none
+	 */
+	public File get(String key) {
+		File bundle = new File(directory, key + BUNDLE_SUFFIX);
+		if (!bundle.isFile())
+			return null;
+		// The modification time records when the entry was last used
+		bundle.setLastModified(System.currentTimeMillis());
+		return bundle;
+	}
+
+	/**
+	 * Start adding a bundle to the cache. The bundle only becomes
+	 * visible once {@link PendingEntry#commit()} is called.
+	 * @param key the fingerprint of the project
+	 * @return the entry to write the bundle to
+	 * @throws IOException thrown if the cache directory cannot be written
+	 */
+	public PendingEntry create(String key) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create bundle cache directory "
+					+ directory);
+		File tempFile = File.createTempFile(key, TEMP_SUFFIX, directory);
+		return new PendingEntry(key, tempFile);
+	}
+
+	/**
+	 * Remove the least recently used bundles until the cache is
+	 * within its size limit.
+	 * @param keep a bundle that must not be removed
+	 */
+	private synchronized void evict(File keep) {
+		File[] bundles = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(BUNDLE_SUFFIX);
+			}
+		});
+		if (bundles == null)
+			return;
+		long total = 0;
+		for (int i = 0; i < bundles.length; i++)
+			total += bundles[i].length();
+		if (total > maximumSize) {
+			Arrays.sort(bundles, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long la = a.lastModified(), lb = b.lastModified();
+					return la < lb ? -1 : (la == lb ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < bundles.length && total > maximumSize; i++) {
+				if (bundles[i].equals(keep))
+					continue;
+				long length = bundles[i].length();
+				// Deleting can fail on Windows if another launch is
+				// reading the bundle, in which case it stays.
+				if (bundles[i].delete())
+					total -= length;
+			}
+		}
+		removeStaleTempFiles();
+	}
+
+	private void removeStaleTempFiles() {
+		final long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+		File[] tempFiles = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(TEMP_SUFFIX)
+						&& file.lastModified() < staleBefore;
+			}
+		});
+		if (tempFiles == null)
+			return;
+		for (int i = 0; i < tempFiles.length; i++)
+			tempFiles[i].delete();
+	}
+
+	/**
+	 * A bundle that is being written to the cache.
+	 */
+	public class PendingEntry {
+		private final String key;
+		private final File tempFile;
+		private final OutputStream outputStream;
+		private boolean finished = false;
+
+		private PendingEntry(String key, File tempFile) throws IOException {
+			this.key = key;
+			this.tempFile = tempFile;
+			this.outputStream = new BufferedOutputStream(new FileOutputStream(
+					tempFile), 64 * 1024);
+		}
+
+		/**
+		 * @return the stream to write the bundle to
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Add the written bundle to the cache.
+		 * @return the cached bundle
+		 * @throws IOException thrown if the bundle could not be moved into the cache
+		 */
+		public File commit() throws IOException {
+			finished = true;
+			outputStream.close();
+			File bundle = new File(directory, key + BUNDLE_SUFFIX);
+			if (!tempFile.renameTo(bundle)) {
+				// Another launch may have stored the same bundle first
+				tempFile.delete();
+				if (!bundle.isFile())
+					throw new IOException("Unable to store bundle in cache: "
+							+ bundle);
+			}
+			evict(bundle);
+			return bundle;
+		}
+
+		/**
+		 * Discard the bundle, because it could not be built. Does
+		 * nothing if the entry has already been committed.
+		 */
+		public void abort() {
+			if (finished)
+				return;
+			finished = true;
+			try {
+				outputStream.close();
+			} catch (IOException e) {
+			}
+			tempFile.delete();
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Calculates a fingerprint of everything an eclipse-project bundle is
+ * built from: the .classpath and build.properties files, and the path,
+ * size and modification time of every file under the output directories
+ * and <code>bin.includes</code> resources. Two builds of a project with
+ * the same fingerprint produce the same bundle.
+ *
+ * By default ({@link #FILE_METADATA}) the contents of the output files
+ * are not read, so calculating a fingerprint is much cheaper than
+ * building the bundle. {@link #FILE_CONTENTS} reads them instead, for
+ * when the project is rebuilt with identical class files that only
+ * differ in their modification times.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BundleInputFingerprint {
+	/**
+	 * Version of the bundle layout produced by
+	 * {@link EclipseProjectToOSGiBundleBuilder}. It is part of every
+	 * fingerprint, so it must be changed whenever the builder output
+	 * changes for the same input.
+	 */
+	public static final String BUILDER_FORMAT_VERSION = "4";
+
+	/**
+	 * Describes a file by its size and modification time.
+	 */
+	public static final FingerprintStrategy FILE_METADATA = new FingerprintStrategy() {
+		public String getName() {
+			return "metadata";
+		}
+
+		public String describe(Path file, BasicFileAttributes attributes) {
+			return attributes.size() + ":"
+					+ attributes.lastModifiedTime().toMillis();
+		}
+	};
+
+	/**
+	 * Describes a file by its size and a digest of its contents.
+	 */
+	public static final FingerprintStrategy FILE_CONTENTS = new FingerprintStrategy() {
+		public String getName() {
+			return "content";
+		}
+
+		public String describe(Path file, BasicFileAttributes attributes)
+				throws IOException {
+			MessageDigest contentDigest = createDigest();
+			updateDigest(contentDigest, file.toFile());
+			return attributes.size() + ":" + toHex(contentDigest.digest());
+		}
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final MessageDigest digest;
+	private final File projectDirectory;
+	private final FingerprintStrategy strategy;
+
+	private BundleInputFingerprint(File projectDirectory,
+			FingerprintStrategy strategy) {
+		this.projectDirectory = projectDirectory;
+		this.strategy = strategy;
+		this.digest = createDigest();
+		update(strategy.getName());
+	}
+
+	/**
+	 * Find a strategy by name.
+	 *
+	 * @param name "metadata" or "content"
+	 * @return the strategy, or null if there is none with that name
+	 */
+	public static FingerprintStrategy getStrategy(String name) {
+		if (name.equals(FILE_METADATA.getName()))
+			return FILE_METADATA;
+		if (name.equals(FILE_CONTENTS.getName()))
+			return FILE_CONTENTS;
+		return null;
+	}
+
+	/**
+	 * Calculate the fingerprint of a project that the bundle cache keys
+	 * its bundles with.
+	 *
+	 * @param metadata the project configuration
+	 * @param compressionPolicy the policy the bundle is built with
+	 * @return the fingerprint as a hexadecimal string
+	 * @throws IOException thrown if the project configuration cannot be read
+	 */
+	public static String compute(EclipseProjectMetadata metadata,
+			CompressionPolicy compressionPolicy) throws IOException {
+		return compute(metadata, compressionPolicy.toString(), FILE_METADATA);
+	}
+
+	/**
+	 * Calculate the fingerprint of the inputs of a project, whatever the
+	 * bundle is built with.
+	 *
+	 * @param metadata the project configuration
+	 * @param strategy how the output files are described
+	 * @return the fingerprint as a hexadecimal string
+	 * @throws IOException thrown if the project configuration cannot be
+	 * read, or (with {@link #FILE_CONTENTS}) an output file cannot be read
+	 */
+	public static String compute(EclipseProjectMetadata metadata,
+			FingerprintStrategy strategy) throws IOException {
+		return compute(metadata, "", strategy);
+	}
+
+	/**
+	 * Calculate the fingerprint of a directory tree, such as an overlay
+	 * directory assembled by {@link ReferenceOverlayBuilder}. Symbolic
+	 * links are followed.
+	 *
+	 * @param directory the directory
+	 * @param strategy how the files are described
+	 * @return the fingerprint as a hexadecimal string
+	 * @throws IOException thrown if the tree cannot be read
+	 */
+	public static String computeTree(File directory,
+			FingerprintStrategy strategy) throws IOException {
+		BundleInputFingerprint fingerprint = new BundleInputFingerprint(
+				directory, strategy);
+		fingerprint.update(directory.getCanonicalPath());
+		fingerprint.updateTree(directory);
+		return toHex(fingerprint.digest.digest());
+	}
+
+	private static String compute(EclipseProjectMetadata metadata,
+			String buildConfiguration, FingerprintStrategy strategy)
+			throws IOException {
+		File projectDirectory = metadata.getProjectDirectory();
+		BundleInputFingerprint fingerprint = new BundleInputFingerprint(
+				projectDirectory, strategy);
+		fingerprint.update(BUILDER_FORMAT_VERSION);
+		fingerprint.update(buildConfiguration);
+		fingerprint.update(projectDirectory.getCanonicalPath());
+		fingerprint.updateContents(new File(projectDirectory, ".classpath"));
+		fingerprint.updateContents(new File(projectDirectory,
+				"build.properties"));
+
+		Properties buildProperties = metadata.getBuildProperties();
+		String binIncludes = buildProperties.getProperty("bin.includes");
+		if (binIncludes != null) {
+			String[] binFiles = binIncludes.split(",");
+			for (int i = 0; i < binFiles.length; ++i) {
+				String binFile = binFiles[i].trim();
+				if (binFile.equals("") || binFile.equals("."))
+					continue;
+				String binOutput = buildProperties.getProperty("output."
+						+ binFiles[i]);
+				fingerprint.update("bin.includes:" + binFiles[i]);
+				fingerprint.updateTree(new File(projectDirectory,
+						binOutput != null ? binOutput : binFiles[i]));
+			}
+		}
+
+		Iterator<String> it = metadata.getClasspathOutputs().iterator();
+		while (it.hasNext()) {
+			String path = it.next();
+			fingerprint.update("classpath:" + path);
+			fingerprint.updateTree(new File(projectDirectory, path));
+		}
+		return toHex(fingerprint.digest.digest());
+	}
+
+	private void update(String value) {
+		try {
+			digest.update(value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		digest.update((byte) 0);
+	}
+
+	private void updateContents(File file) throws IOException {
+		update(file.getName());
+		if (!file.isFile()) {
+			update("<missing>");
+			return;
+		}
+		updateDigest(digest, file);
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static void updateDigest(MessageDigest digest, File file)
+			throws IOException {
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] readBuffer = new byte[8 * 1024];
+			int read;
+			while ((read = input.read(readBuffer)) != -1)
+				digest.update(readBuffer, 0, read);
+		} finally {
+			input.close();
+		}
+	}
+
+	private void updateTree(File file) throws IOException {
+		updateTree(file.toPath(), new HashSet<Object>());
+	}
+
+	/**
+	 * @param file the file or directory to add
+	 * @param ancestors the keys of the directories above <code>file</code>
+	 */
+	private void updateTree(Path file, Set<Object> ancestors)
+			throws IOException {
+		String path = relativePath(file.toFile());
+		BasicFileAttributes attributes = FileTrees.readAttributes(file);
+		if (attributes != null && attributes.isRegularFile()) {
+			update(path);
+			update(strategy.describe(file, attributes));
+		} else if (attributes != null && attributes.isDirectory()) {
+			Object key = FileTrees.directoryKey(file, attributes);
+			if (!ancestors.add(key)) {
+				// A symbolic link loop, which the builder skips too
+				update(path + "<loop>");
+				return;
+			}
+			update(path + "/");
+			Iterator<Path> it = FileTrees.list(file).iterator();
+			while (it.hasNext())
+				updateTree(it.next(), ancestors);
+			ancestors.remove(key);
+		} else {
+			update(path + "<missing>");
+		}
+	}
+
+	private String relativePath(File file) {
+		String projectPath = projectDirectory.getPath();
+		String path = file.getPath();
+		if (path.startsWith(projectPath))
+			path = path.substring(projectPath.length());
+		return path.replace(File.separatorChar, '/');
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
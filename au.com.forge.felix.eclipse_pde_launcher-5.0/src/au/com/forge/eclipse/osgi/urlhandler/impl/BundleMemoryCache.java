@@ -0,0 +1,430 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory cache of built eclipse-project bundles, keyed by the
+ * {@link BundleInputFingerprint} of the project they were built from,
+ * so that opening the same project again (e.g. to update it) does not
+ * build it again when it has not changed.
+ *
+ * The cache has a memory budget that is shared with the bundles being
+ * built into it: a build reserves each block of memory from the budget
+ * before allocating it, evicting the least recently used bundles to make
+ * room. Bundles are kept in the blocks they were built into, so they are
+ * never copied to grow or trim them. A build that cannot get enough
+ * memory even then is moved to a temporary file, so building many large
+ * projects at once stays within the budget. Cached bundles are also only
+ * softly reachable, so the garbage collector can reclaim them before the
+ * heap runs out.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BundleMemoryCache {
+	/**
+	 * The size of the first block of a bundle being built.
+	 */
+	private static final int INITIAL_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * The size that the blocks of a bundle being built double up to.
+	 */
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	private static class Entry {
+		final SoftReference<byte[][]> blocks;
+		final long length;
+		/** The size of the blocks holding the bundle */
+		final long size;
+
+		Entry(byte[][] blocks, long length, long size) {
+			this.blocks = new SoftReference<byte[][]>(blocks);
+			this.length = length;
+			this.size = size;
+		}
+	}
+
+	private final long maximumSize;
+	/** Least recently used first */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	/** The bytes held by cached bundles and by bundles being built */
+	private long usedSize = 0;
+
+	/**
+	 * Create a bundle memory cache.
+	 * @param maximumSize the memory budget in bytes
+	 */
+	public BundleMemoryCache(long maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * @return the memory budget in bytes
+	 */
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @return the bytes held by cached bundles and bundles being built
+	 */
+	public synchronized long getUsedSize() {
+		return usedSize;
+	}
+
+	/**
+	 * Look up a bundle in the cache.
+	 * @param key the fingerprint of the project
+	 * @return the cached bundle, or null if there is none
+	 */
+	public synchronized BuiltBundle get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		byte[][] blocks = entry.blocks.get();
+		if (blocks == null) {
+			// Reclaimed by the garbage collector
+			remove(key);
+			return null;
+		}
+		return new BuiltBundle(blocks, entry.length, null);
+	}
+
+	/**
+	 * Start building a bundle into the cache. The bundle only becomes
+	 * visible once {@link PendingEntry#commit()} is called.
+	 * @param key the fingerprint of the project
+	 * @return the entry to write the bundle to
+	 */
+	public PendingEntry create(String key) {
+		return new PendingEntry(key);
+	}
+
+	/**
+	 * Reserve memory for a bundle being built, evicting the least
+	 * recently used bundles if necessary. If all of it cannot be
+	 * reserved, what is left of the budget is reserved instead.
+	 * @param minimum the fewest bytes that are of any use
+	 * @param maximum the bytes wanted
+	 * @return the number of bytes reserved, or 0 if not even
+	 * <code>minimum</code> bytes are left after the bundles being built
+	 */
+	private synchronized long reserve(long minimum, long maximum) {
+		if (usedSize + maximum > maximumSize)
+			removeReclaimed();
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (usedSize + maximum > maximumSize && it.hasNext()) {
+			usedSize -= it.next().getValue().size;
+			it.remove();
+		}
+		long size = Math.min(maximum, maximumSize - usedSize);
+		if (size < minimum)
+			return 0;
+		usedSize += size;
+		return size;
+	}
+
+	private synchronized void release(long size) {
+		usedSize -= size;
+	}
+
+	private synchronized void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			usedSize -= entry.size;
+	}
+
+	private void removeReclaimed() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next().getValue();
+			if (entry.blocks.get() == null) {
+				usedSize -= entry.size;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A bundle that has been built, in memory or in a temporary file.
+	 */
+	public static class BuiltBundle {
+		private final byte[][] blocks;
+		private final long length;
+		private final File file;
+
+		/**
+		 * @param bundle the bundle, or null if it is in a file
+		 * @param file the temporary file holding the bundle, or null if
+		 * it is in memory
+		 */
+		BuiltBundle(byte[] bundle, File file) {
+			this(bundle != null ? new byte[][] { bundle } : null,
+					bundle != null ? bundle.length : 0, file);
+		}
+
+		private BuiltBundle(byte[][] blocks, long length, File file) {
+			this.blocks = blocks;
+			this.length = length;
+			this.file = file;
+		}
+
+		/**
+		 * Open the bundle. A bundle in a temporary file can only be read
+		 * once: the file is deleted when the stream is closed.
+		 * @return the stream of the bundle
+		 * @throws IOException thrown if the temporary file has already
+		 * been read (or cannot be read)
+		 */
+		public InputStream open() throws IOException {
+			if (file == null)
+				return new BlockInputStream(blocks, length);
+			return new FileInputStream(file) {
+				public void close() throws IOException {
+					super.close();
+					file.delete();
+				}
+			};
+		}
+
+		/**
+		 * Release the bundle without reading it.
+		 */
+		public void discard() {
+			if (file != null)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Reads the bytes of a bundle from the blocks holding it.
+	 */
+	private static class BlockInputStream extends InputStream {
+		private final byte[][] blocks;
+		private long remaining;
+		private int block = 0;
+		private int position = 0;
+
+		BlockInputStream(byte[][] blocks, long length) {
+			this.blocks = blocks;
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int count = 0;
+			while (len > 0 && remaining > 0) {
+				if (position == blocks[block].length) {
+					block++;
+					position = 0;
+				}
+				int n = (int) Math.min(Math.min(len, remaining),
+						blocks[block].length - position);
+				System.arraycopy(blocks[block], position, b, off, n);
+				position += n;
+				remaining -= n;
+				off += n;
+				len -= n;
+				count += n;
+			}
+			return count;
+		}
+
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * A bundle that is being built into the cache.
+	 */
+	public class PendingEntry {
+		private final String key;
+		private final OutputStream outputStream;
+		private List<byte[]> blocks = new ArrayList<byte[]>();
+		/** The block being written to */
+		private byte[] block = null;
+		private int blockLength = 0;
+		private long length = 0;
+		/** The bytes of the budget held by the blocks */
+		private long reserved = 0;
+		private File spillFile = null;
+		private OutputStream spillStream = null;
+		private boolean finished = false;
+
+		private PendingEntry(String key) {
+			this.key = key;
+			this.outputStream = new OutputStream() {
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len)
+						throws IOException {
+					PendingEntry.this.write(b, off, len);
+				}
+
+				public void flush() throws IOException {
+					if (spillStream != null)
+						spillStream.flush();
+				}
+
+				public void close() throws IOException {
+					if (spillStream != null)
+						spillStream.close();
+				}
+			};
+		}
+
+		/**
+		 * @return the stream to write the bundle to
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		private void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0 && spillStream == null) {
+				if ((block == null || blockLength == block.length)
+						&& !addBlock(len)) {
+					spill();
+					break;
+				}
+				int n = Math.min(len, block.length - blockLength);
+				System.arraycopy(b, off, block, blockLength, n);
+				blockLength += n;
+				length += n;
+				off += n;
+				len -= n;
+			}
+			if (len > 0)
+				spillStream.write(b, off, len);
+		}
+
+		/**
+		 * Reserve and add another block, twice the size of the last one
+		 * (up to {@link #MAX_BLOCK_SIZE}), or what is left of the budget
+		 * if that is less.
+		 * @param needed the bytes waiting to be written
+		 * @return false if not even <code>needed</code> bytes are left
+		 */
+		private boolean addBlock(int needed) {
+			int size = block == null ? INITIAL_BLOCK_SIZE : Math.min(
+					MAX_BLOCK_SIZE, block.length * 2);
+			size = (int) reserve(Math.min(needed, size), size);
+			if (size == 0)
+				return false;
+			reserved += size;
+			block = new byte[size];
+			blockLength = 0;
+			blocks.add(block);
+			return true;
+		}
+
+		/**
+		 * Move the bundle to a temporary file, giving its memory back.
+		 */
+		private void spill() throws IOException {
+			spillFile = File.createTempFile("felix-eclipse", ".jar");
+			spillFile.deleteOnExit();
+			spillStream = new BufferedOutputStream(new FileOutputStream(
+					spillFile), 64 * 1024);
+			long remaining = length;
+			for (int i = 0; i < blocks.size(); i++) {
+				byte[] b = blocks.get(i);
+				int n = (int) Math.min(b.length, remaining);
+				spillStream.write(b, 0, n);
+				remaining -= n;
+			}
+			releaseBlocks();
+		}
+
+		private void releaseBlocks() {
+			release(reserved);
+			reserved = 0;
+			blocks = null;
+			block = null;
+		}
+
+		/**
+		 * Finish the bundle, adding it to the cache unless it had to be
+		 * moved to a temporary file.
+		 * @return the built bundle
+		 * @throws IOException thrown if the temporary file cannot be written
+		 */
+		public BuiltBundle commit() throws IOException {
+			finished = true;
+			if (spillStream != null) {
+				spillStream.close();
+				return new BuiltBundle(null, spillFile);
+			}
+			byte[][] bundle = blocks.toArray(new byte[blocks.size()][]);
+			synchronized (BundleMemoryCache.this) {
+				remove(key);
+				// The blocks' reservation now belongs to the cache entry
+				entries.put(key, new Entry(bundle, length, reserved));
+			}
+			return new BuiltBundle(bundle, length, null);
+		}
+
+		/**
+		 * Discard the bundle, because it could not be built. Does
+		 * nothing if the entry has already been committed.
+		 */
+		public void abort() {
+			if (finished)
+				return;
+			finished = true;
+			if (spillStream != null) {
+				try {
+					spillStream.close();
+				} catch (IOException e) {
+				}
+			}
+			if (spillFile != null)
+				spillFile.delete();
+			if (blocks != null)
+				releaseBlocks();
+		}
+	}
+}
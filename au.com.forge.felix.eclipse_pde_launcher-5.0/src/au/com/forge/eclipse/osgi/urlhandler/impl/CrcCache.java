@@ -0,0 +1,87 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the CRC-32 of the resource files written to bundles, so
+ * that the CRC of a stored (uncompressed) entry does not have to be
+ * calculated before the entry is written when its file has not changed.
+ * A file is considered unchanged while its size and modification time
+ * are the same.
+ *
+ * The cache may be used by several threads at once.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class CrcCache {
+	/**
+	 * The cache is cleared when it holds more files than this, which
+	 * is far more than a workspace normally has.
+	 */
+	private static final int MAX_ENTRIES = 500000;
+
+	private static class Entry {
+		final long size;
+		final long lastModified;
+		final long crc;
+
+		Entry(long size, long lastModified, long crc) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.crc = crc;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Look up the CRC of a file.
+	 * @param file the file
+	 * @param size its current size
+	 * @param lastModified its current modification time
+	 * @return the CRC of the file, or -1 if it is not known for this
+	 * size and modification time
+	 */
+	public long get(File file, long size, long lastModified) {
+		Entry entry = entries.get(file.getAbsolutePath());
+		if (entry == null || entry.size != size
+				|| entry.lastModified != lastModified)
+			return -1;
+		return entry.crc;
+	}
+
+	/**
+	 * Remember the CRC of a file.
+	 * @param file the file
+	 * @param size its size when it was read
+	 * @param lastModified its modification time when it was read
+	 * @param crc the CRC-32 of its contents
+	 */
+	public void put(File file, long size, long lastModified, long crc) {
+		if (entries.size() >= MAX_ENTRIES)
+			entries.clear();
+		entries.put(file.getAbsolutePath(), new Entry(size, lastModified, crc));
+	}
+}
@@ -20,9 +20,22 @@
  */
 package au.com.forge.eclipse.osgi.urlhandler.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URLStreamHandler;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javax.xml.parsers.SAXParserFactory;
 
@@ -40,13 +53,115 @@ import org.osgi.service.url.URLStreamHandlerService;
  * framework) launcher in order to start up the framework with
  * Eclipse Project directories as startup bundles.
  * 
+ * The {@link BuilderStatistics} of the handler are registered with the
+ * platform MBean server while the activator is started.
+ * 
  * @author Christopher Armstrong
  *
  */
 public class EPURLHandlerActivator implements BundleActivator {
 
+	/**
+	 * Launcher property that enables streaming of eclipse-project
+	 * bundles to the framework while they are being built.
+	 */
+	private static final String STREAMING_PROPERTY_KEY = "au.com.forge.felix.builder.streaming";
+
+	/**
+	 * Launcher property specifying the size (in bytes) of the pipe
+	 * used when streaming bundles.
+	 */
+	private static final String STREAMING_BUFFER_PROPERTY_KEY = "au.com.forge.felix.builder.streaming.buffer";
+
+	/**
+	 * Launcher property that enables the on-disk cache of built
+	 * eclipse-project bundles.
+	 */
+	private static final String CACHE_PROPERTY_KEY = "au.com.forge.felix.builder.cache";
+
+	/**
+	 * Launcher property specifying the bundle cache directory. The
+	 * default is shared by every launch configuration.
+	 */
+	private static final String CACHE_DIR_PROPERTY_KEY = "au.com.forge.felix.builder.cache.dir";
+
+	/**
+	 * Launcher property specifying the maximum size of the bundle
+	 * cache in megabytes.
+	 */
+	private static final String CACHE_SIZE_PROPERTY_KEY = "au.com.forge.felix.builder.cache.size";
+
+	private static final int DEFAULT_CACHE_SIZE_MB = 512;
+
+	/**
+	 * Launcher property that enables incremental rebuilds of
+	 * eclipse-project bundles.
+	 */
+	private static final String INCREMENTAL_PROPERTY_KEY = "au.com.forge.felix.builder.incremental";
+
+	/**
+	 * Launcher property specifying the directory the previous build
+	 * of each project is kept in for incremental rebuilds.
+	 */
+	private static final String INCREMENTAL_DIR_PROPERTY_KEY = "au.com.forge.felix.builder.incremental.dir";
+
+	/**
+	 * Launcher property specifying the number of workers used to walk
+	 * project directories and read resources while building a bundle.
+	 * A value of 1 builds bundles on a single thread.
+	 */
+	private static final String WORKERS_PROPERTY_KEY = "au.com.forge.felix.builder.workers";
+
+	/**
+	 * Launcher property specifying the size (in bytes) up to which an
+	 * internal library JAR is held in memory while it is built.
+	 */
+	private static final String NESTED_JAR_BUFFER_PROPERTY_KEY = "au.com.forge.felix.builder.nestedjar.buffer";
+
+	/**
+	 * Launcher property listing the extensions of bundle entries that
+	 * are deflated (e.g. "txt,xml,properties").
+	 */
+	private static final String COMPRESSION_DEFLATE_PROPERTY_KEY = "au.com.forge.felix.builder.compression.deflate";
+
+	/**
+	 * Launcher property listing the extensions of bundle entries that
+	 * are always stored uncompressed.
+	 */
+	private static final String COMPRESSION_STORE_PROPERTY_KEY = "au.com.forge.felix.builder.compression.store";
+
+	/**
+	 * Launcher property specifying the size (in bytes) from which
+	 * bundle entries are deflated whatever their extension.
+	 */
+	private static final String COMPRESSION_SIZE_PROPERTY_KEY = "au.com.forge.felix.builder.compression.size";
+
+	/**
+	 * Launcher property specifying the memory budget (in megabytes) of
+	 * the bundles built in memory, both cached and being built. Bundles
+	 * are not cached in memory if it is not set or is 0.
+	 */
+	private static final String MEMORY_PROPERTY_KEY = "au.com.forge.felix.builder.memory";
+
+	/**
+	 * Launcher property that enables building the eclipse-project
+	 * bundles of the auto-install and auto-start lists on a pool of
+	 * threads before they are installed.
+	 */
+	private static final String PREBUILD_PROPERTY_KEY = "au.com.forge.felix.builder.prebuild";
+
+	/**
+	 * Launcher property specifying the number of bundles built at once
+	 * when prebuilding. Defaults to the number of processors.
+	 */
+	private static final String PREBUILD_THREADS_PROPERTY_KEY = "au.com.forge.felix.builder.prebuild.threads";
+
 	private ServiceRegistration<URLStreamHandlerService> eclipseHandlerReg;
+	private ForkJoinPool builderPool;
 	private EclipseProjectURLHandler eclipseHandler;
+	private BundleContext context;
+	private final BuilderStatistics statistics = new BuilderStatistics();
+	private ObjectName statisticsName;
 
 	/*
 	 * (non-Javadoc)
@@ -56,19 +171,222 @@ public class EPURLHandlerActivator implements BundleActivator {
 	 * )
 	 */
 	public void start(BundleContext context) throws Exception {
+		this.context = context;
 
 		SAXParserFactory factory = SAXParserFactory.newInstance();
 		Dictionary<String, String> serviceProps = new Hashtable<String, String>();
 		serviceProps.put(URLConstants.URL_HANDLER_PROTOCOL,
 				EclipseProjectURLHandler.URL_PROTOCOL);
 		eclipseHandler = new EclipseProjectURLHandler(factory);
+		eclipseHandler.setStatistics(statistics);
+		eclipseHandler.setStreaming(Boolean.parseBoolean(context
+				.getProperty(STREAMING_PROPERTY_KEY)));
+		eclipseHandler.setStreamingBufferSize(getIntProperty(context,
+				STREAMING_BUFFER_PROPERTY_KEY,
+				EclipseProjectURLHandler.DEFAULT_STREAMING_BUFFER_SIZE));
+		eclipseHandler.setNestedJarMemoryLimit(getIntProperty(context,
+				NESTED_JAR_BUFFER_PROPERTY_KEY,
+				EclipseProjectToOSGiBundleBuilder.DEFAULT_NESTED_JAR_MEMORY_LIMIT));
+		eclipseHandler.setCompressionPolicy(createCompressionPolicy(context));
+		int memoryBudget = getIntProperty(context, MEMORY_PROPERTY_KEY, 0, 0);
+		if (memoryBudget > 0)
+			eclipseHandler.setMemoryCache(new BundleMemoryCache(
+					memoryBudget * 1024L * 1024L));
+		if (Boolean.parseBoolean(context.getProperty(CACHE_PROPERTY_KEY)))
+			eclipseHandler.setBundleCache(createBundleCache(context));
+		if (Boolean.parseBoolean(context.getProperty(INCREMENTAL_PROPERTY_KEY)))
+			eclipseHandler.setIncrementalBuildStore(new IncrementalBuildStore(
+					getDirectoryProperty(context, INCREMENTAL_DIR_PROPERTY_KEY,
+							"incremental")));
+		int workers = getIntProperty(context, WORKERS_PROPERTY_KEY, 1);
+		if (workers > 1) {
+			builderPool = new ForkJoinPool(workers);
+			eclipseHandler.setParallelWalker(new ParallelResourceWalker(
+					builderPool));
+		}
 		eclipseHandlerReg = context.registerService(
 				URLStreamHandlerService.class, eclipseHandler,
 				serviceProps);
-
+		registerStatistics();
 	}
 
 	public void stop(BundleContext context) {
 		eclipseHandlerReg.unregister();
+		if (builderPool != null)
+			builderPool.shutdown();
+		unregisterStatistics();
+	}
+
+	/**
+	 * @return the statistics of the eclipse-project bundle builds, which
+	 * the auto-updater also records its updates in
+	 */
+	public BuilderStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Register the statistics as an MBean. A launch is not worth failing
+	 * over it, e.g. if another framework in the same VM got there first.
+	 */
+	private void registerStatistics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(BuilderStatistics.OBJECT_NAME);
+			server.registerMBean(statistics, name);
+			statisticsName = name;
+		} catch (JMException e) {
+			System.err.println("Unable to register the builder statistics: "
+					+ e);
+		}
+	}
+
+	private void unregisterStatistics() {
+		if (statisticsName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					statisticsName);
+		} catch (JMException e) {
+			// Already gone
+		}
+		statisticsName = null;
+	}
+
+	/**
+	 * Start building eclipse-project bundles ahead of their installation,
+	 * if prebuilding is enabled. The bundles are built in the order
+	 * given, a few at a time.
+	 * 
+	 * @param projectDirectories the project directories, in the order
+	 * their bundles will be installed
+	 */
+	public void prebuild(List<File> projectDirectories) {
+		if (!Boolean.parseBoolean(context.getProperty(PREBUILD_PROPERTY_KEY))
+				|| projectDirectories.isEmpty())
+			return;
+		int threads = getIntProperty(context, PREBUILD_THREADS_PROPERTY_KEY,
+				Runtime.getRuntime().availableProcessors());
+		// Keep a few bundles ready, but not the whole workspace
+		eclipseHandler.setMaximumPrebuilt(threads * 2);
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"Eclipse project bundle prebuilder");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		Iterator<File> it = projectDirectories.iterator();
+		while (it.hasNext()) {
+			File projectDirectory = it.next();
+			try {
+				eclipseHandler.prebuild(projectDirectory, executor);
+			} catch (IOException e) {
+				// It is built when it is installed instead
+				System.err.println("Unable to prebuild " + projectDirectory
+						+ ": " + e);
+			}
+		}
+		// The threads finish once the queued builds are done
+		executor.shutdown();
+	}
+
+	/**
+	 * Discard the prebuilt bundles that were not installed.
+	 */
+	public void discardPrebuilt() {
+		eclipseHandler.discardPrebuilt();
+	}
+
+	/**
+	 * Create the bundle cache from the launcher properties.
+	 * 
+	 * @param context the system bundle context
+	 * @return the bundle cache
+	 */
+	private static BundleCache createBundleCache(BundleContext context) {
+		File cacheDirectory = getDirectoryProperty(context,
+				CACHE_DIR_PROPERTY_KEY, "bundle-cache");
+		long cacheSize = getIntProperty(context, CACHE_SIZE_PROPERTY_KEY,
+				DEFAULT_CACHE_SIZE_MB) * 1024L * 1024L;
+		return new BundleCache(cacheDirectory, cacheSize);
+	}
+
+	/**
+	 * Create the compression policy from the launcher properties.
+	 * 
+	 * @param context the system bundle context
+	 * @return the compression policy, which stores every entry unless
+	 * one of the properties is set
+	 */
+	private static CompressionPolicy createCompressionPolicy(
+			BundleContext context) {
+		String storedExtensions = context
+				.getProperty(COMPRESSION_STORE_PROPERTY_KEY);
+		return new CompressionPolicy(context
+				.getProperty(COMPRESSION_DEFLATE_PROPERTY_KEY),
+				storedExtensions != null ? storedExtensions
+						: CompressionPolicy.DEFAULT_STORED_EXTENSIONS,
+				getIntProperty(context, COMPRESSION_SIZE_PROPERTY_KEY, 0, 0));
+	}
+
+	/**
+	 * Read a directory launcher property.
+	 * 
+	 * @param context the system bundle context
+	 * @param key the property name
+	 * @param defaultName the name of the default directory, which is
+	 * under <code>.felix-eclipse</code> in the user's home directory
+	 * (and so shared by every launch configuration)
+	 * @return the directory
+	 */
+	private static File getDirectoryProperty(BundleContext context,
+			String key, String defaultName) {
+		String value = context.getProperty(key);
+		if (value != null)
+			return new File(value);
+		return new File(new File(System.getProperty("user.home"),
+				".felix-eclipse"), defaultName);
+	}
+
+	/**
+	 * Read a positive integer launcher property, falling back to
+	 * a default if it is missing or invalid.
+	 * 
+	 * @param context the system bundle context
+	 * @param key the property name
+	 * @param defaultValue the value used when the property is not usable
+	 * @return the property value
+	 */
+	private static int getIntProperty(BundleContext context, String key,
+			int defaultValue) {
+		return getIntProperty(context, key, defaultValue, 1);
+	}
+
+	/**
+	 * Read an integer launcher property, falling back to a default if
+	 * it is missing, invalid or less than a minimum.
+	 * 
+	 * @param context the system bundle context
+	 * @param key the property name
+	 * @param defaultValue the value used when the property is not usable
+	 * @param minimumValue the smallest valid value
+	 * @return the property value
+	 */
+	private static int getIntProperty(BundleContext context, String key,
+			int defaultValue, int minimumValue) {
+		String value = context.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if (parsed >= minimumValue)
+				return parsed;
+		} catch (NumberFormatException e) {
+		}
+		System.err.println("Ignoring invalid value for " + key + ": " + value);
+		return defaultValue;
 	}
 }
@@ -0,0 +1,293 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The parts of an Eclipse project's configuration that are needed to
+ * assemble it as a bundle: the output directories listed in its
+ * .classpath file and its build.properties file.
+ *
+ * Loaded configurations are kept, and loaded again only when the
+ * modification time or size of the .classpath or build.properties file
+ * changes, so building or fingerprinting a project again does not parse
+ * its .classpath file again. Each thread reuses its own SAX parser.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class EclipseProjectMetadata {
+	/**
+	 * The configurations loaded so far, by project path.
+	 */
+	private static final ConcurrentHashMap<String, EclipseProjectMetadata> loaded = new ConcurrentHashMap<String, EclipseProjectMetadata>();
+
+	/**
+	 * A parser, and the factory it came from.
+	 */
+	private static class ThreadParser {
+		final SAXParserFactory factory;
+		final SAXParser parser;
+
+		ThreadParser(SAXParserFactory factory, SAXParser parser) {
+			this.factory = factory;
+			this.parser = parser;
+		}
+	}
+
+	/**
+	 * The parser of each thread.
+	 */
+	private static final ThreadLocal<ThreadParser> threadParser = new ThreadLocal<ThreadParser>();
+
+	private final File projectDirectory;
+	private final Set<String> classpathOutputs;
+	private final Properties buildProperties;
+	/** The modification times and sizes of the files it was loaded from */
+	private final String stamp;
+
+	private EclipseProjectMetadata(File projectDirectory,
+			Set<String> classpathOutputs, Properties buildProperties,
+			String stamp) {
+		this.projectDirectory = projectDirectory;
+		this.classpathOutputs = classpathOutputs;
+		this.buildProperties = buildProperties;
+		this.stamp = stamp;
+	}
+
+	/**
+	 * Read the configuration of an Eclipse project.
+	 *
+	 * @param projectDirectory the Eclipse project directory
+	 * @param saxParserFactory A SAX parser factory (needed to parse .classpath)
+	 * @return the project configuration
+	 * @throws IOException thrown if the .classpath or build.properties file cannot be read
+	 */
+	public static EclipseProjectMetadata load(File projectDirectory,
+			SAXParserFactory saxParserFactory) throws IOException {
+		String key = projectDirectory.getAbsolutePath();
+		// Taken before the files are read, so a change made while they
+		// are being read is noticed next time
+		String stamp = stamp(projectDirectory);
+		EclipseProjectMetadata metadata = loaded.get(key);
+		if (metadata != null && metadata.stamp.equals(stamp))
+			return metadata;
+		FlightRecorderEvent event = FlightRecorderEvent
+				.begin(FlightRecorderEvent.BUILD_PHASE);
+		Set<String> classpathOutputs = parseClasspath(projectDirectory,
+				saxParserFactory);
+		Properties buildProperties = loadBuildProperties(projectDirectory);
+		// The entries are the classpath outputs and build properties
+		event.commit(projectDirectory, "metadata", classpathOutputs.size()
+				+ buildProperties.size(), new File(projectDirectory,
+				".classpath").length()
+				+ new File(projectDirectory, "build.properties").length());
+		metadata = new EclipseProjectMetadata(projectDirectory,
+				Collections.unmodifiableSet(classpathOutputs), buildProperties,
+				stamp);
+		loaded.put(key, metadata);
+		return metadata;
+	}
+
+	private static String stamp(File projectDirectory) {
+		File classpathFile = new File(projectDirectory, ".classpath");
+		File buildPropertiesFile = new File(projectDirectory,
+				"build.properties");
+		return classpathFile.lastModified() + ":" + classpathFile.length()
+				+ ":" + buildPropertiesFile.lastModified() + ":"
+				+ buildPropertiesFile.length();
+	}
+
+	/**
+	 * Get this thread's parser, creating it if it does not have one
+	 * from the same factory.
+	 */
+	private static SAXParser getParser(SAXParserFactory saxParserFactory)
+			throws ParserConfigurationException, SAXException {
+		ThreadParser current = threadParser.get();
+		if (current != null && current.factory == saxParserFactory)
+			return current.parser;
+		SAXParser parser = saxParserFactory.newSAXParser();
+		threadParser.set(new ThreadParser(saxParserFactory, parser));
+		return parser;
+	}
+
+	/**
+	 * @return the Eclipse project directory
+	 */
+	public File getProjectDirectory() {
+		return projectDirectory;
+	}
+
+	/**
+	 * @return the output directories named in the .classpath file,
+	 * relative to the project directory (in sorted order)
+	 */
+	public Set<String> getClasspathOutputs() {
+		return classpathOutputs;
+	}
+
+	/**
+	 * @return the build.properties file, or a synthesized set of
+	 * properties if it is missing
+	 */
+	public Properties getBuildProperties() {
+		return buildProperties;
+	}
+
+	/**
+	 * @return the files and directories the bundle is built from: the
+	 * <code>bin.includes</code> resources (or their <code>output.*</code>
+	 * directories) and the .classpath output directories. Some of them
+	 * may not exist.
+	 */
+	public Set<File> getBundleInputs() {
+		Set<File> inputs = new LinkedHashSet<File>();
+		String binIncludes = buildProperties.getProperty("bin.includes");
+		if (binIncludes != null) {
+			String[] binFiles = binIncludes.split(",");
+			for (int i = 0; i < binFiles.length; ++i) {
+				String binFile = binFiles[i].trim();
+				if (binFile.equals("") || binFile.equals("."))
+					continue;
+				String binOutput = buildProperties.getProperty("output."
+						+ binFiles[i]);
+				inputs.add(new File(projectDirectory,
+						binOutput != null ? binOutput : binFiles[i]));
+			}
+		}
+		Iterator<String> it = classpathOutputs.iterator();
+		while (it.hasNext())
+			inputs.add(new File(projectDirectory, it.next()));
+		return inputs;
+	}
+
+	/**
+	 * Parse the output directories out of the .classpath file.
+	 *
+	 * @param projectDirectory the project directory
+	 * @param saxParserFactory the factory used to create the parser
+	 * @return the set of output directories
+	 * @throws IOException
+	 */
+	private static Set<String> parseClasspath(File projectDirectory,
+			SAXParserFactory saxParserFactory) throws IOException {
+		File classpathFile = new File(projectDirectory, ".classpath");
+		if (!classpathFile.exists() || !classpathFile.isFile())
+			throw new IOException(
+					"The .classpath file does not exist in the project directory or is not a file.");
+		SAXParser parser = null;
+
+		// The .classpath file is a very simple XML file, so we
+		// use a SAX parser to pull out the bits we need. Each
+		// relevant classpath string is stored in classpathSet (we
+		// need a set as duplicates are not uncommon).
+		final Set<String> classpathSet = new TreeSet<String>();
+		try {
+			parser = getParser(saxParserFactory);
+			parser.parse(classpathFile, new DefaultHandler() {
+				public void startElement(String uri, String localName,
+						String name, Attributes attributes)
+						throws SAXException {
+					if (name.equals("classpathentry")) {
+						String kind = attributes.getValue("", "kind");
+						if (kind == null || kind.equals(""))
+							throw new SAXException(
+									"Missing kind attribute on classpathentry.");
+						if (kind.equals("src")) {
+							String output = attributes.getValue("output");
+							if (output != null && !output.equals(""))
+								classpathSet.add(output);
+						} else if (kind.equals("output")) {
+							String path = attributes.getValue("path");
+							if (path != null && !path.equals(""))
+								classpathSet.add(path);
+						}
+					}
+				}
+			});
+		} catch (ParserConfigurationException e) {
+			throw new IOException(
+					"Unable to configure XML parser to parse '.classpath' file ("
+							+ e.getMessage() + ")");
+		} catch (SAXException e) {
+			throw new IOException("Unable to parse the '.classpath' file: "
+					+ e.getMessage());
+		} finally {
+			if (parser != null)
+				parser.reset();
+		}
+		return classpathSet;
+	}
+
+	/**
+	 * Load the build.properties file. This method synthesizes
+	 * a default build.properties if it is missing.
+	 *
+	 * @param projectDirectory the project directory
+	 * @return the loaded build.properties file, or a synthesized
+	 * set of properties if not found
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private static Properties loadBuildProperties(File projectDirectory)
+			throws IOException, FileNotFoundException {
+		Properties buildProperties = new Properties();
+		File buildPropertiesFile = new File(projectDirectory,
+				"build.properties");
+		if (!buildPropertiesFile.exists() || !buildPropertiesFile.isFile()) {
+			// The build.properties file is missing. We probably ended up
+			// here because there is a MANIFEST.MF file. Lets just cheat and
+			// include META-INF/ directory as if the build.properties
+			// file was just generated by the
+			// "Configure -> Convert to Plugin Project" menu
+			buildProperties.put("bin.includes", "META-INF,.");
+		} else {
+			InputStream input = new FileInputStream(buildPropertiesFile);
+			try {
+				buildProperties.load(input);
+			} finally {
+				input.close();
+			}
+		}
+		return buildProperties;
+	}
+}
@@ -1,29 +1,34 @@
 package au.com.forge.eclipse.osgi.urlhandler.impl;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
-
 /**
  * A disposable class used to convert an Eclipse project directory into
  * a JAR bundle. It uses the .classpath and build.properties file to
@@ -34,12 +39,55 @@ import org.xml.sax.helpers.DefaultHandler;
  *
  */
 public class EclipseProjectToOSGiBundleBuilder {
-	private static final int MAX_RECURSE_DEPTH = 256;
+	/**
+	 * Files at least this large are memory mapped when they are copied.
+	 */
+	private static final long MAPPED_COPY_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * A mapped file stays open until the mapping is garbage collected,
+	 * and on Windows an open file cannot be replaced, which would stop
+	 * Eclipse rebuilding the project. Large files are read there instead.
+	 */
+	private static final boolean MAP_LARGE_FILES = File.separatorChar != '\\';
+
+	/**
+	 * The default size up to which an internal library JAR is held in
+	 * memory while it is built.
+	 */
+	public static final int DEFAULT_NESTED_JAR_MEMORY_LIMIT = 1024 * 1024;
+
+	/**
+	 * Deflated files at least this large are deflated in chunks by a
+	 * {@link ParallelDeflater} when there is a parallel walker.
+	 */
+	public static final long PARALLEL_DEFLATE_THRESHOLD = 1024 * 1024;
+
 	private final SAXParserFactory saxParserFactory;
 
-	private final ZipOutputStream zipOutputStream;
+	private final ZipWriter zipWriter;
 	private final File projectDirectory;
 	private final Set<String> addedEntries = new HashSet<String>();
+	/** Output directories already written, by output path and canonical path */
+	private final Set<String> writtenDirectories = new HashSet<String>();
+	/** Directories of the internal JARs being built, by file key */
+	private final Set<Object> internalJarDirectories = new HashSet<Object>();
+	private int nestedJarMemoryLimit = DEFAULT_NESTED_JAR_MEMORY_LIMIT;
+	private CrcCache crcCache = new CrcCache();
+	private CompressionPolicy compressionPolicy = CompressionPolicy.STORE_ALL;
+	/** The copy buffer of the thread building the bundle, from {@link BufferPool} */
+	private byte[] buffer;
+	private final CRC32 crc = new CRC32();
+	/** Deflates entries on the thread building the bundle, if any are deflated */
+	private DeflatingEntryStream deflatingEntryStream = null;
+	private ParallelDeflater parallelDeflater = null;
+	private EclipseProjectMetadata metadata;
+	private IncrementalBuildStore.IncrementalBuild incrementalBuild = null;
+	private ParallelResourceWalker parallelWalker = null;
+	/** Files written into the bundle and its internal JARs */
+	private int fileCount = 0;
+	/** Nanoseconds spent reading files and writing their entries */
+	private long writeTime = 0;
 
 	/**
 	 * Create a new OSGi bundle builder
@@ -49,10 +97,98 @@ public class EclipseProjectToOSGiBundleBuilder {
 	 */
 	public EclipseProjectToOSGiBundleBuilder(File projectDirectory, OutputStream outputBundleStream, SAXParserFactory saxParserFactory) {
 		this.projectDirectory = projectDirectory;
-		this.zipOutputStream = new ZipOutputStream(outputBundleStream);
+		this.zipWriter = new ZipWriter(outputBundleStream);
 		this.saxParserFactory = saxParserFactory;
 	}
 
+	/**
+	 * Create a new OSGi bundle builder for a project whose
+	 * configuration has already been read.
+	 * @param metadata the Eclipse project configuration
+	 * @param outputBundleStream the output stream to write the bundle to
+	 */
+	public EclipseProjectToOSGiBundleBuilder(EclipseProjectMetadata metadata, OutputStream outputBundleStream) {
+		this(metadata.getProjectDirectory(), outputBundleStream, null);
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Build incrementally: entries whose source file is unchanged since
+	 * the previous build are copied out of the previous bundle instead
+	 * of being read from the project, and every entry is recorded in the
+	 * new build's index. Only applies to the entries of the bundle
+	 * itself; internal library JARs are always rebuilt.
+	 * @param incrementalBuild the incremental build
+	 */
+	public void setIncrementalBuild(IncrementalBuildStore.IncrementalBuild incrementalBuild) {
+		this.incrementalBuild = incrementalBuild;
+	}
+
+	/**
+	 * Walk resource directories and read resource files on a pool of
+	 * workers. The entries are still written by the thread calling
+	 * {@link #build()}, in a fixed order.
+	 * @param parallelWalker the walker, or null to walk and read on
+	 * the calling thread
+	 */
+	public void setParallelWalker(ParallelResourceWalker parallelWalker) {
+		this.parallelWalker = parallelWalker;
+	}
+
+	/**
+	 * Set how much of an internal library JAR (an <code>output.*.jar</code>
+	 * entry in build.properties) is held in memory while it is built.
+	 * Larger libraries are built into a temporary file instead.
+	 * @param nestedJarMemoryLimit the limit in bytes
+	 */
+	public void setNestedJarMemoryLimit(int nestedJarMemoryLimit) {
+		this.nestedJarMemoryLimit = nestedJarMemoryLimit;
+	}
+
+	/**
+	 * Set the cache of resource file CRCs. Every entry is stored
+	 * uncompressed, which needs its CRC before it is written; the cache
+	 * saves reading unchanged files twice to calculate it.
+	 * @param crcCache the cache, which may be shared between builders
+	 */
+	public void setCrcCache(CrcCache crcCache) {
+		this.crcCache = crcCache;
+	}
+
+	/**
+	 * Set which entries are deflated. Files of at least
+	 * {@link #PARALLEL_DEFLATE_THRESHOLD} bytes are deflated in chunks
+	 * on the workers of the parallel walker if there is one, and smaller
+	 * files are deflated by the workers as they are read ahead.
+	 * @param compressionPolicy the policy (entries are all stored by default)
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	/**
+	 * @return the number of files written into the bundle (including
+	 * the files of its internal library JARs)
+	 */
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * @return the time spent reading files and writing their entries,
+	 * in nanoseconds; the rest of the build is spent walking directories
+	 */
+	public long getWriteTime() {
+		return writeTime;
+	}
+
+	/**
+	 * @return the number of bytes of bundle written so far
+	 */
+	public long getBundleSize() {
+		return zipWriter.getSize();
+	}
+
 	/**
 	 * Build the OSGi bundle from an Eclipse project directory.
 	 * This method closes the output stream because it can
@@ -61,65 +197,84 @@ public class EclipseProjectToOSGiBundleBuilder {
 	 * @throws FileNotFoundException thrown if a path could not be loaded
 	 */
 	public void build() throws FileNotFoundException, IOException {
-		zipOutputStream.setLevel(ZipOutputStream.STORED);
-		
-		handleBuildProperties();
-		handleClasspath();
+		if (metadata == null)
+			metadata = EclipseProjectMetadata.load(projectDirectory, saxParserFactory);
+		Properties buildProperties = metadata.getBuildProperties();
+		buffer = BufferPool.acquire();
+		if (compressionPolicy.deflatesAnything()) {
+			deflatingEntryStream = new DeflatingEntryStream();
+			if (parallelWalker != null)
+				parallelDeflater = new ParallelDeflater(parallelWalker
+						.getPool(), Deflater.DEFAULT_COMPRESSION);
+		}
+		try {
+			FlightRecorderEvent event = FlightRecorderEvent
+					.begin(FlightRecorderEvent.BUILD_PHASE);
+			int startFileCount = fileCount;
+			long startSize = zipWriter.getSize();
+			try {
+				handleManifest(buildProperties);
+				handleBuildProperties(buildProperties);
+			} finally {
+				event.commit(projectDirectory, "build.properties", fileCount
+						- startFileCount, zipWriter.getSize() - startSize);
+			}
+			event = FlightRecorderEvent.begin(FlightRecorderEvent.BUILD_PHASE);
+			startFileCount = fileCount;
+			startSize = zipWriter.getSize();
+			try {
+				handleClasspath();
+			} finally {
+				event.commit(projectDirectory, "classpath", fileCount
+						- startFileCount, zipWriter.getSize() - startSize);
+			}
+		} finally {
+			BufferPool.release(buffer);
+			buffer = null;
+			if (deflatingEntryStream != null)
+				deflatingEntryStream.end();
+		}
 		
-		zipOutputStream.close();
+		zipWriter.close();
+	}
+
+	/**
+	 * Write the bundle manifest as the first entry of the bundle, so
+	 * that a reader of a streamed bundle sees it before anything else
+	 * (as {@link java.util.jar.JarInputStream} expects). It is only
+	 * written here if <code>bin.includes</code> would include it anyway;
+	 * the entry is then skipped when the META-INF directory is processed.
+	 * 
+	 * @param buildProperties the project build properties
+	 * @throws IOException
+	 */
+	private void handleManifest(Properties buildProperties) throws IOException {
+		File manifestFile = new File(projectDirectory, JarFile.MANIFEST_NAME);
+		if (!manifestFile.isFile())
+			return;
+
+		String binIncludes = buildProperties.getProperty("bin.includes");
+		if (binIncludes == null)
+			return;
+		String[] binFiles = binIncludes.split(",");
+		for (int i = 0; i < binFiles.length; ++i) {
+			String binFile = binFiles[i].trim();
+			if (binFile.equals("META-INF") || binFile.equals("META-INF/")
+					|| binFile.equals(JarFile.MANIFEST_NAME)) {
+				writeResourceFromFile(zipWriter, addedEntries,
+						JarFile.MANIFEST_NAME, manifestFile);
+				return;
+			}
+		}
 	}
 	/**
 	 * Adds the entries from the .classpath file to the
 	 * in-memory pseudo-bundle.
 	 * 
-	 * @param projectDirectory the project directory
-	 * @param zipOutputStream the in-memory zip file for the bundle
 	 * @throws IOException
 	 */
 	private void handleClasspath() throws IOException {
-		File classpathFile = new File(projectDirectory, ".classpath");
-		if (!classpathFile.exists() || !classpathFile.isFile())
-			throw new IOException(
-					"The .classpath file does not exist in the project directory or is not a file.");
-		SAXParser parser;
-		
-		// The .classpath file is a very simple XML file, so we
-		// use a SAX parser to pull out the bits we need. Each
-		// relevant classpath string is stored in classpathSet (we
-		// need a set as duplicates are not uncommon).
-		final Set<String> classpathSet = new TreeSet<String>();
-		try {
-			parser = saxParserFactory.newSAXParser();
-			parser.parse(classpathFile, new DefaultHandler() {
-				public void startElement(String uri, String localName,
-						String name, Attributes attributes)
-						throws SAXException {
-					if (name.equals("classpathentry")) {
-						String kind = attributes.getValue("", "kind");
-						if (kind == null || kind.equals(""))
-							throw new SAXException(
-									"Missing kind attribute on classpathentry.");
-						if (kind.equals("src")) {
-							String output = attributes.getValue("output");
-							if (output != null && !output.equals(""))
-								classpathSet.add(output);
-						} else if (kind.equals("output")) {
-							String path = attributes.getValue("path");
-							if (path != null && !path.equals(""))
-								classpathSet.add(path);
-						}
-					}
-				}
-			});
-		} catch (ParserConfigurationException e) {
-			throw new IOException(
-					"Unable to configure XML parser to parse '.classpath' file ("
-							+ e.getMessage() + ")");
-		} catch (SAXException e) {
-			throw new IOException("Unable to parse the '.classpath' file: "
-					+ e.getMessage());
-		}
-		Iterator<String> it = classpathSet.iterator();
+		Iterator<String> it = metadata.getClasspathOutputs().iterator();
 		while (it.hasNext()) {
 			String path = (String) it.next();
 			File inputPath = new File(projectDirectory, path);
@@ -128,23 +283,40 @@ public class EclipseProjectToOSGiBundleBuilder {
 			// the directory might not be created. (At least, thats the case
 			// with maven, and
 			// Eclipse seems not to care).
-			if (inputPath.exists() && inputPath.isDirectory())
-				writeResourcesFromDirectory(zipOutputStream, addedEntries, ".", inputPath, 0);
+			if (inputPath.isDirectory())
+				writeOutputDirectory(".", inputPath);
 		}
 	}
 
+	/**
+	 * Write an output directory to the bundle, unless the same
+	 * directory has already been written to the same place. A project
+	 * can name one directory several ways (e.g. "bin" and "./bin/"),
+	 * and there is no point walking it twice.
+	 * @param outputResource the name of the output path in the zip file
+	 * @param inputDirectory the directory containing files for <code>outputResource</code>
+	 * @throws IOException
+	 */
+	private void writeOutputDirectory(String outputResource,
+			File inputDirectory) throws IOException {
+		String key = new File(outputResource).getPath() + File.pathSeparator
+				+ inputDirectory.getCanonicalPath();
+		if (!writtenDirectories.add(key))
+			return;
+		writeResourcesFromDirectory(zipWriter, addedEntries,
+				outputResource, inputDirectory);
+	}
+
 	/**
 	 * Parse and build the part of in-memory bundle based on the
 	 * Eclipse build.properties file.
 	 * 
-	 * @param projectDirectory The project directory
-	 * @param zipOutputStream The in-memory zip file
+	 * @param buildProperties the loaded build.properties file
 	 * @throws IOException
 	 * @throws FileNotFoundException
 	 */
-	private void handleBuildProperties() throws IOException,
+	private void handleBuildProperties(Properties buildProperties) throws IOException,
 			FileNotFoundException {
-		Properties buildProperties = loadBuildProperties();
 
 		String binIncludes = buildProperties.getProperty("bin.includes");
 		if (binIncludes != null) {
@@ -180,8 +352,7 @@ public class EclipseProjectToOSGiBundleBuilder {
 					// This specifies a library, with an output directory
 					File outputDirectory = new File(projectDirectory,
 							binOutput);
-					writeResourcesFromDirectory(zipOutputStream, addedEntries, binFiles[i],
-							outputDirectory, 0);
+					writeOutputDirectory(binFiles[i], outputDirectory);
 				} else {
 					// This specifies a direct resource include in the
 					// binary build
@@ -194,42 +365,16 @@ public class EclipseProjectToOSGiBundleBuilder {
 						String zipPathToResource =  new File(
 								binFiles[i]).getPath();
 						
-						writeResourceFromFile(zipOutputStream, addedEntries, zipPathToResource, resource);
+						writeResourceFromFile(zipWriter, addedEntries, zipPathToResource, resource);
 					}
 					else
-						writeResourcesFromDirectory(zipOutputStream, addedEntries, new File(
-								binFiles[i]).getPath(), resource, 0);
+						writeOutputDirectory(new File(binFiles[i]).getPath(),
+								resource);
 				}
 			}
 		}
 	}
 
-	/**
-	 * Load the build.properties file. This method synthesizes
-	 * a default build.properties if it is missing.
-	 * 
-	 * @return the loaded build.properties file, or a synthesized
-	 * set of properties if not found
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private Properties loadBuildProperties()
-			throws IOException, FileNotFoundException {
-		Properties buildProperties = new Properties();
-		File buildPropertiesFile = new File(projectDirectory,
-				"build.properties");
-		if (!buildPropertiesFile.exists() || !buildPropertiesFile.isFile()) {
-			// The build.properties file is missing. We probably ended up
-			// here because there is a MANIFEST.MF file. Lets just cheat and
-			// include META-INF/ directory as if the build.properties
-			// file was just generated by the
-			// "Configure -> Convert to Plugin Project" menu
-			buildProperties.put("bin.includes", "META-INF,.");
-		} else
-			buildProperties.load(new FileInputStream(buildPropertiesFile));
-		return buildProperties;
-	}
-
 	/**
 	 * Write the resources from the specified input directory to the output
 	 * stream.
@@ -238,59 +383,191 @@ public class EclipseProjectToOSGiBundleBuilder {
 	 * @param addedEntries the entries that have been added to <code>jarFile</code> already. this set will be updated for new entries in this directory
 	 * @param outputResource the name of the output path in the zip file
 	 * @param inputDirectory the directory containing files for <code>outputResource</code>
-	 * @param recurseDepth recursion depth tracker -- incremented on recursive calls to this method
 	 * @throws IOException
 	 */
-	private static void writeResourcesFromDirectory(ZipOutputStream jarFile,
-			Set<String> addedEntries,
-			String outputResource, File inputDirectory, int recurseDepth)
+	private void writeResourcesFromDirectory(final ZipWriter jarFile,
+			final Set<String> addedEntries,
+			String outputResource, File inputDirectory)
 			throws IOException {
-		String prefix;
+		final String prefix;
 		
-		if (recurseDepth > MAX_RECURSE_DEPTH)
-			throw new IOException(
-					"Unwanted recursion building resource directory: "
-							+ inputDirectory + " for outputResource="
-							+ outputResource);
 		if (outputResource.equals(".")) {
 			prefix = ""; // project root directory -> no prefix
 		} else if (outputResource.endsWith(".jar")) {
-			// Generate internal jar
-			ByteArrayOutputStream internalJarByteBuffer = new ByteArrayOutputStream();
-			JarOutputStream internalJar = new JarOutputStream(
-					internalJarByteBuffer);
-			internalJar.setLevel(ZipOutputStream.STORED);
+			// A symbolic link inside an internal JAR directory could lead
+			// back to it, which would build the same JAR inside itself
+			BasicFileAttributes attributes = FileTrees
+					.readAttributes(inputDirectory.toPath());
+			if (attributes == null)
+				return;
+			Object key = FileTrees.directoryKey(inputDirectory.toPath(),
+					attributes);
+			if (!internalJarDirectories.add(key)) {
+				System.err.println("Skipping symbolic link loop at "
+						+ inputDirectory);
+				return;
+			}
+
+			// Generate internal jar. If it is stored uncompressed, its
+			// size and CRC have to be known before its entry is written.
+			FlightRecorderEvent event = FlightRecorderEvent
+					.begin(FlightRecorderEvent.BUILD_PHASE);
+			SpillingOutputStream internalJarBuffer = new SpillingOutputStream(
+					nestedJarMemoryLimit);
 			Set<String> internalAddedEntries = new HashSet<String>();
-			writeResourcesFromDirectory(internalJar, internalAddedEntries, ".", inputDirectory, 0);
-			internalJarByteBuffer.close();
+			try {
+				ZipWriter internalJar = new ZipWriter(internalJarBuffer);
+				writeResourcesFromDirectory(internalJar, internalAddedEntries, ".", inputDirectory);
+				internalJarDirectories.remove(key);
+				internalJar.close();
 
-			// Write its output entry
-			ZipEntry outputEntry = new ZipEntry(outputResource);
-			jarFile.putNextEntry(outputEntry);
-			jarFile.write(internalJarByteBuffer.toByteArray());
-			jarFile.closeEntry();
+				// Write its output entry
+				if (compressionPolicy.shouldDeflate(outputResource,
+						internalJarBuffer.getSize())) {
+					deflatingEntryStream.start(jarFile, outputResource);
+					internalJarBuffer.writeTo(deflatingEntryStream, buffer);
+					deflatingEntryStream.closeEntry();
+				} else {
+					jarFile.putStoredEntry(outputResource, internalJarBuffer
+							.getSize(), internalJarBuffer.getCrc());
+					internalJarBuffer.writeTo(jarFile, buffer);
+					jarFile.closeEntry();
+				}
+			} finally {
+				event.commit(projectDirectory, "nested jar " + outputResource,
+						internalAddedEntries.size(), internalJarBuffer.getSize());
+				internalJarBuffer.dispose();
+			}
 			return;
 		} else
 			prefix = outputResource;
 		if (inputDirectory.exists() == false)
 			return; // Don't think we should throw an exception here, as its
 		// possible that nothing is generated for the build.
-		File[] files = inputDirectory.listFiles();
-		for (int i = 0; i < files.length; i++) {
-			File inputFile = files[i];
-			String fileOutputPath;
-			if (prefix.equals(""))
-				fileOutputPath = inputFile.getName();
-			else
-				// Use '/' as ZIP files are always constructed with forward slash
-				fileOutputPath = prefix + "/"
-						+ inputFile.getName();
-
-			if (inputFile.isFile()) {
-				writeResourceFromFile(jarFile, addedEntries, fileOutputPath, inputFile);
-			} else if (inputFile.isDirectory()) {
-				writeResourcesFromDirectory(jarFile, addedEntries, fileOutputPath,
-						inputFile, recurseDepth + 1);
+		if (parallelWalker != null) {
+			writeResourcesInParallel(jarFile, addedEntries, prefix, inputDirectory);
+			return;
+		}
+		// Following links, the walk reports a directory that leads back
+		// to one it is already in (compared by file key) as a
+		// FileSystemLoopException instead of descending into it
+		final Path root = inputDirectory.toPath();
+		Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+				Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+					public FileVisitResult preVisitDirectory(Path directory,
+							BasicFileAttributes attributes) throws IOException {
+						if (directory.equals(root))
+							return FileVisitResult.CONTINUE;
+						String outputPath = getOutputPath(prefix, root, directory);
+						if (outputPath.endsWith(".jar")) {
+							writeResourcesFromDirectory(jarFile, addedEntries,
+									outputPath, directory.toFile());
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFile(Path file,
+							BasicFileAttributes attributes) throws IOException {
+						// Broken links and special files are left out
+						if (attributes.isRegularFile())
+							writeResourceFromFile(jarFile, addedEntries,
+									getOutputPath(prefix, root, file), file
+											.toFile(), attributes, null);
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFileFailed(Path file,
+							IOException e) throws IOException {
+						if (e instanceof FileSystemLoopException) {
+							System.err.println("Skipping symbolic link loop at "
+									+ file);
+							return FileVisitResult.CONTINUE;
+						}
+						throw e;
+					}
+				});
+	}
+
+	/**
+	 * @param prefix the path of <code>root</code> in the zip file ("" for the root)
+	 * @param root the directory being walked
+	 * @param path a file or directory in <code>root</code>
+	 * @return the path of <code>path</code> in the zip file
+	 */
+	private static String getOutputPath(String prefix, Path root, Path path) {
+		// The walk resolves each path against its parent, so its string
+		// starts with the root's. This is done on the strings, which the
+		// paths keep, because relativizing allocates a path per name
+		String rootPath = root.toString();
+		String relativePath = path.toString();
+		if (!relativePath.startsWith(rootPath))
+			throw new IllegalArgumentException(path + " is not in " + root);
+		int start = rootPath.length();
+		if (start < relativePath.length()
+				&& relativePath.charAt(start) == File.separatorChar)
+			start++;
+		relativePath = relativePath.substring(start);
+		// Use '/' as ZIP files are always constructed with forward slash
+		if (File.separatorChar != '/')
+			relativePath = relativePath.replace(File.separatorChar, '/');
+		return prefix.length() > 0 ? prefix + "/" + relativePath
+				: relativePath;
+	}
+
+	/**
+	 * Write the resources from the specified input directory to the output
+	 * stream, walking the directory and reading the files with
+	 * {@link #parallelWalker}. Files are read a few at a time ahead of
+	 * the entry being written.
+	 * @param jarFile the output JAR file
+	 * @param addedEntries the entries that have been added to <code>jarFile</code> already
+	 * @param prefix the path of <code>inputDirectory</code> in the zip file ("" for the root)
+	 * @param inputDirectory the directory to write
+	 * @throws IOException
+	 */
+	private void writeResourcesInParallel(ZipWriter jarFile,
+			Set<String> addedEntries, String prefix, File inputDirectory)
+			throws IOException {
+		List<ParallelResourceWalker.Resource> resources = parallelWalker.walk(
+				prefix, inputDirectory);
+		IncrementalBuildStore.IncrementalBuild incremental = jarFile == zipWriter ? incrementalBuild
+				: null;
+		LinkedList<Future<ParallelResourceWalker.ResourceContents>> readAhead = new LinkedList<Future<ParallelResourceWalker.ResourceContents>>();
+		int nextRead = 0;
+		try {
+			for (int i = 0; i < resources.size(); i++) {
+				while (nextRead < resources.size()
+						&& nextRead - i < parallelWalker.getReadAhead()) {
+					ParallelResourceWalker.Resource next = resources.get(nextRead++);
+					// Entries from earlier directories are already in
+					// addedEntries, so duplicates are never read
+					if (next.isInternalJar()
+							|| addedEntries.contains(next.getOutputPath()))
+						readAhead.add(null);
+					else
+						readAhead.add(parallelWalker.read(next, incremental,
+								crcCache, compressionPolicy));
+				}
+
+				ParallelResourceWalker.Resource resource = resources.get(i);
+				Future<ParallelResourceWalker.ResourceContents> contents = readAhead.removeFirst();
+				if (resource.isInternalJar())
+					writeResourcesFromDirectory(jarFile, addedEntries,
+							resource.getOutputPath(), resource.getFile());
+				else
+					writeResourceFromFile(jarFile, addedEntries, resource
+							.getOutputPath(), resource.getFile(), resource
+							.getAttributes(),
+							contents != null ? ParallelResourceWalker
+									.await(contents) : null);
+			}
+		} finally {
+			Iterator<Future<ParallelResourceWalker.ResourceContents>> it = readAhead.iterator();
+			while (it.hasNext()) {
+				Future<ParallelResourceWalker.ResourceContents> contents = it.next();
+				if (contents != null)
+					contents.cancel(false);
 			}
 		}
 	}
@@ -306,9 +583,31 @@ public class EclipseProjectToOSGiBundleBuilder {
 	 * @throws IOException
 	 * @throws FileNotFoundException
 	 */
-	private static void writeResourceFromFile(ZipOutputStream jarFile, Set<String> addedEntries,
+	private void writeResourceFromFile(ZipWriter jarFile, Set<String> addedEntries,
 			String outputResource, File inputFile) throws IOException,
 			FileNotFoundException {
+		writeResourceFromFile(jarFile, addedEntries, outputResource, inputFile, null, null);
+	}
+
+	/**
+	 * Write the specified <code>inputFile</code> to the path <code>outputResource</code>
+	 * in bundle <code>jarFile</code>
+	 * @param jarFile the output JAR file
+	 * @param addedEntries entries already added to this JAR file. this method will update
+	 * the set with <code>outputResource</code>
+	 * @param outputResource the path in the bundle to write <code>inputFile</code> to
+	 * @param inputFile the file to write to the bundle
+	 * @param attributes the attributes of <code>inputFile</code> if they have already
+	 * been read, or null to read them when they are needed
+	 * @param contents the contents of <code>inputFile</code> if they have already
+	 * been read, or null to read the file
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeResourceFromFile(ZipWriter jarFile, Set<String> addedEntries,
+			String outputResource, File inputFile, BasicFileAttributes attributes,
+			ParallelResourceWalker.ResourceContents contents) throws IOException,
+			FileNotFoundException {
 
 		// Normalise path on outputResource when running on Windows
 		if (File.separatorChar == '\\')
@@ -319,20 +618,281 @@ public class EclipseProjectToOSGiBundleBuilder {
 		if (addedEntries.contains(outputResource))
 			return; // Ignore it, it has already been found and added
 
-		ZipEntry entry = new ZipEntry(outputResource);
 		addedEntries.add(outputResource);
-		jarFile.putNextEntry(entry);
-		InputStream inputFileStream = new FileInputStream(inputFile);
-		byte[] readBuffer = new byte[100 * 1024];
-
-		int read = 0;
-		while (read != -1) {
-			read = inputFileStream.read(readBuffer);
-			if (read > 0)
-				jarFile.write(readBuffer, 0, read);
+		fileCount++;
+		long startTime = System.nanoTime();
+		try {
+			writeEntry(jarFile, outputResource, inputFile, attributes,
+					contents);
+		} finally {
+			writeTime += System.nanoTime() - startTime;
+		}
+	}
+
+	/**
+	 * Write a file as a new entry of a bundle.
+	 * @param jarFile the output JAR file
+	 * @param outputResource the path in the bundle to write <code>inputFile</code> to
+	 * @param inputFile the file to write to the bundle
+	 * @param attributes the attributes of <code>inputFile</code>, or null
+	 * @param contents the contents of <code>inputFile</code>, or null
+	 * @throws IOException
+	 */
+	private void writeEntry(ZipWriter jarFile, String outputResource,
+			File inputFile, BasicFileAttributes attributes,
+			ParallelResourceWalker.ResourceContents contents)
+			throws IOException {
+		// Incremental builds only track the entries of the bundle itself
+		IncrementalBuildStore.IncrementalBuild incremental = jarFile == zipWriter ? incrementalBuild
+				: null;
+		if (contents != null) {
+			if (contents.getCompressed() != null) {
+				jarFile.putDeflatedEntry(outputResource);
+				jarFile.write(contents.getCompressed(), 0, contents
+						.getCompressedLength());
+				jarFile.closeEntry(contents.getLength(), contents.getCrc());
+			} else {
+				jarFile.putStoredEntry(outputResource, contents.getLength(),
+						contents.getCrc());
+				jarFile.write(contents.getData(), 0, contents.getLength());
+				jarFile.closeEntry();
+			}
+			if (incremental != null)
+				incremental.record(outputResource, inputFile, contents
+						.getSize(), contents.getLastModified(), contents
+						.getCrc());
+			BufferPool.release(contents.getData());
+			return;
+		}
+		// Taken before reading, so a file modified while it is being
+		// read does not look unchanged next time
+		if (attributes == null)
+			attributes = Files.readAttributes(inputFile.toPath(),
+					BasicFileAttributes.class);
+		long size = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		boolean deflate = compressionPolicy.shouldDeflate(outputResource, size);
+		if (incremental != null) {
+			IncrementalBuildIndex.Entry previous = incremental.findUnchanged(
+					outputResource, inputFile, size, lastModified);
+			if (previous != null) {
+				OutputStream entryStream = jarFile;
+				if (deflate) {
+					deflatingEntryStream.start(jarFile, outputResource);
+					entryStream = deflatingEntryStream;
+				} else {
+					jarFile.putStoredEntry(outputResource, previous.getSize(),
+							previous.getCrc());
+				}
+				InputStream previousEntry = incremental
+						.openPrevious(outputResource);
+				try {
+					int read;
+					while ((read = previousEntry.read(buffer)) != -1)
+						entryStream.write(buffer, 0, read);
+				} finally {
+					previousEntry.close();
+				}
+				if (deflate)
+					deflatingEntryStream.closeEntry();
+				else
+					jarFile.closeEntry();
+				return;
+			}
+		}
+
+		long crcValue;
+		if (deflate) {
+			// Deflated entries have their CRC after the data, so it is
+			// calculated while the file is copied
+			if (size >= PARALLEL_DEFLATE_THRESHOLD && parallelDeflater != null) {
+				jarFile.putDeflatedEntry(outputResource);
+				crc.reset();
+				parallelDeflater.deflate(inputFile, size, jarFile, crc);
+				crcValue = crc.getValue();
+				jarFile.closeEntry(size, crcValue);
+			} else {
+				deflatingEntryStream.start(jarFile, outputResource);
+				writeFileContents(deflatingEntryStream, inputFile, size);
+				crcValue = deflatingEntryStream.closeEntry();
+			}
+			crcCache.put(inputFile, size, lastModified, crcValue);
+		} else if (size <= buffer.length) {
+			// Small files are read before their entry is started, so the
+			// entry always matches what was read
+			int length;
+			FileInputStream input = new FileInputStream(inputFile);
+			try {
+				length = ParallelResourceWalker.readFully(input, buffer,
+						(int) size);
+			} finally {
+				input.close();
+			}
+			crcValue = length == size ? crcCache.get(inputFile, size,
+					lastModified) : -1;
+			if (crcValue == -1) {
+				crc.reset();
+				crc.update(buffer, 0, length);
+				crcValue = crc.getValue();
+				if (length == size)
+					crcCache.put(inputFile, size, lastModified, crcValue);
+			}
+			jarFile.putStoredEntry(outputResource, length, crcValue);
+			jarFile.write(buffer, 0, length);
+			jarFile.closeEntry();
+			size = length;
+		} else {
+			crcValue = crcCache.get(inputFile, size, lastModified);
+			if (crcValue == -1) {
+				crcValue = calculateCrc(inputFile, size);
+				crcCache.put(inputFile, size, lastModified, crcValue);
+			}
+			jarFile.putStoredEntry(outputResource, size, crcValue);
+			writeFileContents(jarFile, inputFile, size);
+			jarFile.closeEntry();
+		}
+		if (incremental != null)
+			incremental.record(outputResource, inputFile, size, lastModified,
+					crcValue);
+	}
+
+	/**
+	 * Calculate the CRC-32 of the first <code>size</code> bytes of a file.
+	 * @param inputFile the file
+	 * @param size the size of the file
+	 * @return the CRC
+	 * @throws IOException thrown if the file is shorter than <code>size</code>
+	 */
+	private long calculateCrc(File inputFile, long size) throws IOException {
+		crc.reset();
+		FileInputStream input = new FileInputStream(inputFile);
+		try {
+			long remaining = size;
+			while (remaining > 0) {
+				int read = input.read(buffer, 0, (int) Math.min(buffer.length,
+						remaining));
+				if (read == -1)
+					throw new IOException(inputFile
+							+ " changed while the bundle was being built");
+				crc.update(buffer, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			input.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Copy the first <code>size</code> bytes of a file into the current
+	 * entry of a bundle. Large files are memory mapped rather than read
+	 * through a stream.
+	 * @param entryStream the stream of the current entry
+	 * @param inputFile the file to copy
+	 * @param size the size of the file
+	 * @throws IOException thrown if the file is shorter than <code>size</code>
+	 */
+	private void writeFileContents(OutputStream entryStream, File inputFile,
+			long size) throws IOException {
+		FileInputStream input = new FileInputStream(inputFile);
+		try {
+			if (size >= MAPPED_COPY_THRESHOLD && MAP_LARGE_FILES
+					&& size <= Integer.MAX_VALUE) {
+				FileChannel channel = input.getChannel();
+				if (channel.size() < size)
+					throw new IOException(inputFile
+							+ " changed while the bundle was being built");
+				MappedByteBuffer mapped = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, size);
+				while (mapped.hasRemaining()) {
+					int length = Math.min(buffer.length, mapped.remaining());
+					mapped.get(buffer, 0, length);
+					entryStream.write(buffer, 0, length);
+				}
+			} else {
+				long remaining = size;
+				while (remaining > 0) {
+					int read = input.read(buffer, 0, (int) Math.min(
+							buffer.length, remaining));
+					if (read == -1)
+						throw new IOException(inputFile
+								+ " changed while the bundle was being built");
+					entryStream.write(buffer, 0, read);
+					remaining -= read;
+				}
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Deflates the data written to it into a deflated entry, on the
+	 * thread building the bundle. One instance is reused for every
+	 * deflated entry of a build.
+	 */
+	private class DeflatingEntryStream extends OutputStream {
+		private final Deflater deflater = new Deflater(
+				Deflater.DEFAULT_COMPRESSION, true);
+		private final CRC32 entryCrc = new CRC32();
+		private final byte[] deflateBuffer = BufferPool.acquire();
+		private ZipWriter jarFile;
+		private long size;
+
+		/**
+		 * Start a deflated entry.
+		 * @param jarFile the output JAR file
+		 * @param outputResource the path of the entry
+		 * @throws IOException
+		 */
+		void start(ZipWriter jarFile, String outputResource)
+				throws IOException {
+			this.jarFile = jarFile;
+			this.size = 0;
+			entryCrc.reset();
+			deflater.reset();
+			jarFile.putDeflatedEntry(outputResource);
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			entryCrc.update(b, off, len);
+			size += len;
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput())
+				drain();
+		}
+
+		/**
+		 * Finish deflating and close the entry.
+		 * @return the CRC-32 of the uncompressed entry data
+		 * @throws IOException
+		 */
+		long closeEntry() throws IOException {
+			deflater.finish();
+			while (!deflater.finished())
+				drain();
+			jarFile.closeEntry(size, entryCrc.getValue());
+			jarFile = null;
+			return entryCrc.getValue();
+		}
+
+		private void drain() throws IOException {
+			int deflated = deflater.deflate(deflateBuffer);
+			if (deflated > 0)
+				jarFile.write(deflateBuffer, 0, deflated);
+		}
+
+		/**
+		 * Release the deflater at the end of the build.
+		 */
+		void end() {
+			deflater.end();
+			BufferPool.release(deflateBuffer);
 		}
-		inputFileStream.close();
-		jarFile.closeEntry();
 	}
 
 }
@@ -20,14 +20,27 @@
  */
 package au.com.forge.eclipse.osgi.urlhandler.impl;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.parsers.SAXParserFactory;
 
@@ -43,6 +56,17 @@ import org.osgi.service.url.AbstractURLStreamHandlerService;
  * Don't use this handler during deployment because it builds
  * the pseudo-bundle in memory.
  * 
+ * If there is a {@link BundleMemoryCache}, bundles built in memory are
+ * kept in it, so opening an unchanged project again serves the bundle
+ * built before.
+ * 
+ * Bundles can be built ahead of time with {@link #prebuild(File, Executor)},
+ * so that the framework gets the finished bundle when it opens the URL.
+ * Requests for a project that is already being built in memory wait
+ * for that build instead of starting another one.
+ * 
+ * Every build and cache lookup is recorded in a {@link BuilderStatistics}.
+ * 
  * @author Christopher Armstrong
  * 
  */
@@ -52,7 +76,40 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 	 * handler expects
 	 */
 	public static final String URL_PROTOCOL = "eclipse-project";
+
+	/**
+	 * Default size of the pipe used in streaming mode.
+	 */
+	public static final int DEFAULT_STREAMING_BUFFER_SIZE = 256 * 1024;
+
 	private SAXParserFactory saxParserFactory;
+	private boolean streaming = false;
+	private int streamingBufferSize = DEFAULT_STREAMING_BUFFER_SIZE;
+	private BundleCache bundleCache = null;
+	private IncrementalBuildStore incrementalBuildStore = null;
+	private ParallelResourceWalker parallelWalker = null;
+	private int nestedJarMemoryLimit = EclipseProjectToOSGiBundleBuilder.DEFAULT_NESTED_JAR_MEMORY_LIMIT;
+	private final CrcCache crcCache = new CrcCache();
+	private CompressionPolicy compressionPolicy = CompressionPolicy.STORE_ALL;
+	private BundleMemoryCache memoryCache = null;
+	private BuilderStatistics statistics = new BuilderStatistics();
+	/**
+	 * Builds that are running or waiting to be claimed, by canonical
+	 * project path. A null result means the bundle was built into the
+	 * bundle cache (or failed to be, in which case the next request
+	 * builds it again).
+	 */
+	private final ConcurrentHashMap<String, FutureTask<BundleMemoryCache.BuiltBundle>> builds = new ConcurrentHashMap<String, FutureTask<BundleMemoryCache.BuiltBundle>>();
+	/** Builds started by {@link #prebuild(File, Executor)} */
+	private final ConcurrentHashMap<String, FutureTask<BundleMemoryCache.BuiltBundle>> prebuilds = new ConcurrentHashMap<String, FutureTask<BundleMemoryCache.BuiltBundle>>();
+	/**
+	 * Prebuilds that are building or holding a bundle nobody has claimed
+	 * yet. Also guards {@link #claimedPrebuilds}.
+	 */
+	private final Set<FutureTask<BundleMemoryCache.BuiltBundle>> heldPrebuilds = new HashSet<FutureTask<BundleMemoryCache.BuiltBundle>>();
+	/** Prebuilds that a request is waiting for */
+	private final Set<FutureTask<BundleMemoryCache.BuiltBundle>> claimedPrebuilds = new HashSet<FutureTask<BundleMemoryCache.BuiltBundle>>();
+	private int maximumPrebuilt = Integer.MAX_VALUE;
 
 	/**
 	 * @param factory
@@ -88,6 +145,374 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 	public void setSAXParserFactory(SAXParserFactory arg1) {
 		this.saxParserFactory = arg1;
 	}
+
+	/**
+	 * Enable or disable streaming mode. In streaming mode the bundle
+	 * is built on a separate thread and handed to the reader through
+	 * a fixed-size pipe while it is being built, instead of being
+	 * assembled in memory first.
+	 * 
+	 * @param streaming true to stream bundles to the reader
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * @param streamingBufferSize the size of the pipe between the
+	 * builder thread and the reader in streaming mode
+	 */
+	public void setStreamingBufferSize(int streamingBufferSize) {
+		this.streamingBufferSize = streamingBufferSize;
+	}
+
+	/**
+	 * Set the cache that built bundles are stored in and served from.
+	 * 
+	 * @param bundleCache the bundle cache, or null to always build bundles
+	 */
+	public void setBundleCache(BundleCache bundleCache) {
+		this.bundleCache = bundleCache;
+	}
+
+	/**
+	 * Set the store of previous builds used to rebuild bundles
+	 * incrementally.
+	 * 
+	 * @param incrementalBuildStore the store, or null to always build
+	 * bundles from scratch
+	 */
+	public void setIncrementalBuildStore(
+			IncrementalBuildStore incrementalBuildStore) {
+		this.incrementalBuildStore = incrementalBuildStore;
+	}
+
+	/**
+	 * Set the walker used to walk project directories and read
+	 * resources on a pool of workers.
+	 * 
+	 * @param parallelWalker the walker, or null to build bundles on
+	 * a single thread
+	 */
+	public void setParallelWalker(ParallelResourceWalker parallelWalker) {
+		this.parallelWalker = parallelWalker;
+	}
+
+	/**
+	 * @param nestedJarMemoryLimit the size up to which an internal
+	 * library JAR is held in memory while it is built, before it is
+	 * moved to a temporary file
+	 */
+	public void setNestedJarMemoryLimit(int nestedJarMemoryLimit) {
+		this.nestedJarMemoryLimit = nestedJarMemoryLimit;
+	}
+
+	/**
+	 * @param compressionPolicy decides which bundle entries are deflated
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	/**
+	 * Set the cache that bundles built in memory are kept in. Its
+	 * memory budget also limits the memory used by bundles being built.
+	 * There is no memory cache by default.
+	 * 
+	 * @param memoryCache the bundle memory cache, or null to not cache
+	 * bundles built in memory
+	 */
+	public void setMemoryCache(BundleMemoryCache memoryCache) {
+		this.memoryCache = memoryCache;
+	}
+
+	/**
+	 * @param statistics where builds and cache lookups are recorded
+	 */
+	public void setStatistics(BuilderStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Set how many prebuilt bundles can be building or waiting to be
+	 * claimed at once. Further prebuilds wait until one is claimed, so
+	 * that prebuilding does not get far ahead of the framework. The
+	 * default is no limit.
+	 * 
+	 * @param maximumPrebuilt the number of bundles
+	 */
+	public void setMaximumPrebuilt(int maximumPrebuilt) {
+		synchronized (heldPrebuilds) {
+			this.maximumPrebuilt = maximumPrebuilt;
+			heldPrebuilds.notifyAll();
+		}
+	}
+
+	/**
+	 * Start building the bundle of a project, so that it is ready when
+	 * the framework opens its URL. The bundle is kept in memory (or in
+	 * the bundle cache, if there is one) until then, or until
+	 * {@link #discardPrebuilt()} is called. The build waits to start
+	 * while there are already as many unclaimed prebuilt bundles as
+	 * {@link #setMaximumPrebuilt(int)} allows.
+	 * 
+	 * @param projectDirectory the Eclipse project directory
+	 * @param executor the executor to build the bundle on
+	 * @throws IOException thrown if the project path cannot be resolved
+	 */
+	public void prebuild(final File projectDirectory, Executor executor)
+			throws IOException {
+		String key = projectDirectory.getCanonicalPath();
+		final FutureTask<BundleMemoryCache.BuiltBundle> task = new FutureTask<BundleMemoryCache.BuiltBundle>(
+				new Callable<BundleMemoryCache.BuiltBundle>() {
+					public BundleMemoryCache.BuiltBundle call()
+							throws IOException {
+						return buildInMemory(EclipseProjectMetadata.load(
+								projectDirectory, saxParserFactory));
+					}
+				});
+		if (builds.putIfAbsent(key, task) != null)
+			return;
+		prebuilds.put(key, task);
+		executor.execute(new Runnable() {
+			public void run() {
+				if (!holdPrebuilt(task))
+					return;
+				task.run();
+				// A bundle in the bundle cache takes no memory to hold
+				if (bundleCache != null)
+					releasePrebuilt(task);
+			}
+		});
+	}
+
+	/**
+	 * Wait until there is room for another unclaimed prebuilt bundle,
+	 * or until a request claims this one.
+	 * 
+	 * @param task the prebuild
+	 * @return false if the prebuild should not be run, because it has
+	 * already run or been cancelled
+	 */
+	private boolean holdPrebuilt(FutureTask<BundleMemoryCache.BuiltBundle> task) {
+		synchronized (heldPrebuilds) {
+			try {
+				while (heldPrebuilds.size() >= maximumPrebuilt
+						&& !claimedPrebuilds.contains(task) && !task.isDone())
+					heldPrebuilds.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				task.cancel(false);
+				return false;
+			}
+			if (task.isDone())
+				return false;
+			if (!claimedPrebuilds.contains(task))
+				heldPrebuilds.add(task);
+			return true;
+		}
+	}
+
+	/**
+	 * Record that a request is waiting for a prebuild, so that it does
+	 * not wait for room.
+	 */
+	private void claimPrebuilt(FutureTask<BundleMemoryCache.BuiltBundle> task) {
+		synchronized (heldPrebuilds) {
+			claimedPrebuilds.add(task);
+			heldPrebuilds.notifyAll();
+		}
+	}
+
+	/**
+	 * Give back the room taken by a prebuild, once its bundle has been
+	 * claimed or discarded.
+	 */
+	private void releasePrebuilt(
+			FutureTask<BundleMemoryCache.BuiltBundle> task) {
+		synchronized (heldPrebuilds) {
+			heldPrebuilds.remove(task);
+			claimedPrebuilds.remove(task);
+			heldPrebuilds.notifyAll();
+		}
+	}
+
+	/**
+	 * Discard the prebuilt bundles that have not been claimed (e.g.
+	 * because the framework already had them installed), and cancel the
+	 * builds that have not started.
+	 */
+	public void discardPrebuilt() {
+		Iterator<Map.Entry<String, FutureTask<BundleMemoryCache.BuiltBundle>>> it = prebuilds
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, FutureTask<BundleMemoryCache.BuiltBundle>> entry = it
+					.next();
+			FutureTask<BundleMemoryCache.BuiltBundle> build = entry.getValue();
+			build.cancel(false);
+			builds.remove(entry.getKey(), build);
+			it.remove();
+			releasePrebuilt(build);
+			if (build.isDone() && !build.isCancelled()) {
+				try {
+					BundleMemoryCache.BuiltBundle bundle = build.get();
+					if (bundle != null)
+						bundle.discard();
+				} catch (Exception e) {
+					// The build failed, so there is nothing to discard
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for a build, then stop sharing it.
+	 * 
+	 * @return the stream of the bundle, or null if it was built into the
+	 * bundle cache, the build was cancelled, or the bundle was in a
+	 * temporary file that another request has already read
+	 */
+	private InputStream openBuild(String key,
+			FutureTask<BundleMemoryCache.BuiltBundle> build) throws IOException {
+		boolean prebuilt = prebuilds.get(key) == build;
+		try {
+			if (prebuilt) {
+				claimPrebuilt(build);
+				// Build it here if no prebuilder has got to it yet
+				build.run();
+			}
+			BundleMemoryCache.BuiltBundle bundle = build.get();
+			return bundle != null ? bundle.open() : null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted waiting for the bundle of " + key);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Unable to build the bundle of " + key
+					+ ": " + e.getCause(), e.getCause());
+		} finally {
+			builds.remove(key, build);
+			prebuilds.remove(key, build);
+			if (prebuilt)
+				releasePrebuilt(build);
+		}
+	}
+
+	/**
+	 * Build a bundle into the memory cache, or into the bundle cache if
+	 * there is one, unless the cache has the bundle already. Without
+	 * either cache, the bundle is just built into memory.
+	 * 
+	 * @param metadata the project configuration
+	 * @return the bundle, or null if it is in the bundle cache
+	 * @throws IOException
+	 */
+	private BundleMemoryCache.BuiltBundle buildInMemory(
+			EclipseProjectMetadata metadata) throws IOException {
+		if (bundleCache == null && memoryCache == null) {
+			// Nothing to look the bundle up in, so no fingerprint
+			ByteArrayOutputStream bundleBuffer = new ByteArrayOutputStream();
+			buildBundle(metadata, bundleBuffer);
+			byte[] bundle = bundleBuffer.toByteArray();
+			return new BundleMemoryCache.BuiltBundle(bundle, null);
+		}
+		String fingerprint = BundleInputFingerprint.compute(metadata,
+				compressionPolicy);
+		File projectDirectory = metadata.getProjectDirectory();
+		if (bundleCache != null) {
+			if (bundleCache.get(fingerprint) == null) {
+				statistics.recordCacheMiss(projectDirectory);
+				buildIntoCache(metadata, fingerprint);
+			} else {
+				statistics.recordCacheHit(projectDirectory);
+			}
+			return null;
+		}
+		BundleMemoryCache.BuiltBundle bundle = memoryCache.get(fingerprint);
+		if (bundle != null) {
+			statistics.recordCacheHit(projectDirectory);
+			return bundle;
+		}
+		statistics.recordCacheMiss(projectDirectory);
+		BundleMemoryCache.PendingEntry entry = memoryCache.create(fingerprint);
+		try {
+			buildBundle(metadata, entry.getOutputStream());
+			return entry.commit();
+		} finally {
+			entry.abort();
+		}
+	}
+
+	/**
+	 * Build a bundle into the bundle cache.
+	 * 
+	 * @param metadata the project configuration
+	 * @param fingerprint the fingerprint of the project
+	 * @return the cached bundle
+	 * @throws IOException
+	 */
+	private File buildIntoCache(EclipseProjectMetadata metadata,
+			String fingerprint) throws IOException {
+		BundleCache.PendingEntry entry = bundleCache.create(fingerprint);
+		try {
+			buildBundle(metadata, entry.getOutputStream());
+			return entry.commit();
+		} finally {
+			entry.abort();
+		}
+	}
+
+	/**
+	 * Build the bundle, incrementally if there is an incremental
+	 * build store, and record the build in the statistics.
+	 * 
+	 * @param metadata the project configuration
+	 * @param bundleStream the stream to write the bundle to (closed
+	 * when the bundle is complete)
+	 * @throws IOException
+	 */
+	private void buildBundle(EclipseProjectMetadata metadata,
+			OutputStream bundleStream) throws IOException {
+		long startTime = System.nanoTime();
+		EclipseProjectToOSGiBundleBuilder builder;
+		if (incrementalBuildStore == null) {
+			builder = createBuilder(metadata, bundleStream);
+			builder.build();
+		} else {
+			IncrementalBuildStore.IncrementalBuild incrementalBuild = incrementalBuildStore
+					.open(metadata.getProjectDirectory());
+			try {
+				builder = createBuilder(metadata, new TeeOutputStream(
+						bundleStream, incrementalBuild.getOutputStream()));
+				builder.setIncrementalBuild(incrementalBuild);
+				builder.build();
+				incrementalBuild.commit();
+			} finally {
+				incrementalBuild.abort();
+			}
+		}
+		long buildTime = System.nanoTime() - startTime;
+		statistics.recordBuild(metadata.getProjectDirectory(), buildTime,
+				builder.getWriteTime(), builder.getFileCount(), builder
+						.getBundleSize());
+	}
+
+	private EclipseProjectToOSGiBundleBuilder createBuilder(
+			EclipseProjectMetadata metadata, OutputStream bundleStream) {
+		EclipseProjectToOSGiBundleBuilder builder = new EclipseProjectToOSGiBundleBuilder(
+				metadata, bundleStream);
+		builder.setParallelWalker(parallelWalker);
+		builder.setNestedJarMemoryLimit(nestedJarMemoryLimit);
+		builder.setCrcCache(crcCache);
+		builder.setCompressionPolicy(compressionPolicy);
+		return builder;
+	}
 	
 	public class EclipseProjectURLConnection extends URLConnection {
 
@@ -111,13 +536,229 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 			if (!projectDirectory.exists() || !projectDirectory.isDirectory())
 				throw new IOException("The path " + url.getPath()
 						+ " does not exist or is not a directory.");
-			ByteArrayOutputStream bundleBuffer = new ByteArrayOutputStream();
-			EclipseProjectToOSGiBundleBuilder builder = new EclipseProjectToOSGiBundleBuilder(projectDirectory, bundleBuffer, saxParserFactory);
-			builder.build();
+			String key = projectDirectory.getCanonicalPath();
+			FlightRecorderEvent event = FlightRecorderEvent
+					.begin(FlightRecorderEvent.BUNDLE_OPEN);
+			try {
+				while (true) {
+					// Claim a prebuilt bundle, or join a build that is running
+					FutureTask<BundleMemoryCache.BuiltBundle> build = builds
+							.get(key);
+					if (build != null) {
+						InputStream bundle = openBuild(key, build);
+						if (bundle != null)
+							return opened(event, projectDirectory, "prebuilt",
+									bundle);
+					}
+					final EclipseProjectMetadata metadata = EclipseProjectMetadata
+							.load(projectDirectory, saxParserFactory);
+					if (bundleCache != null) {
+						InputStream bundle = getCachedBundle(key, metadata);
+						if (bundle != null)
+							return opened(event, projectDirectory,
+									"bundle cache", bundle);
+						// Another request is building it into the cache
+						continue;
+					}
+					// A streamed bundle can only be read once, so
+					// concurrent requests build it separately
+					if (streaming)
+						return opened(event, projectDirectory, "streamed",
+								streamBundle(metadata, null, null));
+
+					FutureTask<BundleMemoryCache.BuiltBundle> task = new FutureTask<BundleMemoryCache.BuiltBundle>(
+							new Callable<BundleMemoryCache.BuiltBundle>() {
+								public BundleMemoryCache.BuiltBundle call()
+										throws IOException {
+									return buildInMemory(metadata);
+								}
+							});
+					if (builds.putIfAbsent(key, task) != null)
+						continue;
+					task.run();
+					InputStream bundle = openBuild(key, task);
+					if (bundle != null)
+						return opened(event, projectDirectory, "memory cache",
+								bundle);
+				}
+			} catch (IOException e) {
+				opened(event, projectDirectory, "failed", null);
+				throw e;
+			}
+		}
+
+		/**
+		 * Commit the Flight Recorder event of a call of
+		 * {@link #getInputStream()}. Its counts are those of the most
+		 * recent build of the project, which is still running if the
+		 * bundle is streamed, and may have been in an earlier session
+		 * if it came from the bundle cache (when they are 0).
+		 * 
+		 * @param event the event
+		 * @param projectDirectory the project directory
+		 * @param source where the bundle came from
+		 * @param bundle the stream of the bundle
+		 * @return <code>bundle</code>
+		 */
+		private InputStream opened(FlightRecorderEvent event,
+				File projectDirectory, String source, InputStream bundle) {
+			if (!event.isEnabled())
+				return bundle;
+			ProjectBuildStatistics project = statistics
+					.getProjectStatistics(projectDirectory);
+			if (project != null)
+				event.commit(projectDirectory, source, project
+						.getLastFilesWritten(), project.getLastBytesWritten());
+			else
+				event.commit(projectDirectory, source, 0, 0);
+			return bundle;
+		}
+
+		/**
+		 * Serve the bundle from the bundle cache, building it into the
+		 * cache first if the project has changed since it was last built.
+		 * The build is shared through {@link #builds}, so that concurrent
+		 * requests for the project wait for it instead of building the
+		 * same cache entry again.
+		 * 
+		 * @param key the canonical project path
+		 * @param metadata the project configuration
+		 * @return the stream of the bundle, or null if another request is
+		 * already building it
+		 * @throws IOException
+		 */
+		private InputStream getCachedBundle(final String key,
+				EclipseProjectMetadata metadata) throws IOException {
+			String fingerprint = BundleInputFingerprint.compute(metadata,
+					compressionPolicy);
+			File cachedBundle = bundleCache.get(fingerprint);
+			if (cachedBundle != null) {
+				statistics.recordCacheHit(metadata.getProjectDirectory());
+				return new FileInputStream(cachedBundle);
+			}
+			// Completed once the bundle is in the cache
+			final FutureTask<BundleMemoryCache.BuiltBundle> build = new FutureTask<BundleMemoryCache.BuiltBundle>(
+					new Callable<BundleMemoryCache.BuiltBundle>() {
+						public BundleMemoryCache.BuiltBundle call() {
+							return null;
+						}
+					});
+			if (builds.putIfAbsent(key, build) != null)
+				return null;
+			Runnable finished = new Runnable() {
+				public void run() {
+					build.run();
+					builds.remove(key, build);
+				}
+			};
+			statistics.recordCacheMiss(metadata.getProjectDirectory());
+
+			if (streaming) {
+				BundleCache.PendingEntry cacheEntry;
+				try {
+					cacheEntry = bundleCache.create(fingerprint);
+				} catch (IOException e) {
+					finished.run();
+					throw e;
+				}
+				return streamBundle(metadata, cacheEntry, finished);
+			}
+			try {
+				return new FileInputStream(buildIntoCache(metadata,
+						fingerprint));
+			} finally {
+				finished.run();
+			}
+		}
+
+		/**
+		 * Start building the bundle on a separate thread and return
+		 * a stream that reads it as it is built. Errors from the
+		 * builder are reported by the returned stream.
+		 * 
+		 * @param metadata the project configuration
+		 * @param cacheEntry the bundle cache entry to also write the bundle
+		 * to, or null if it is not being cached
+		 * @param finished run once the bundle is built (or has failed) and
+		 * has been committed to the cache, or null
+		 * @return the stream of the bundle being built
+		 */
+		private InputStream streamBundle(final EclipseProjectMetadata metadata,
+				final BundleCache.PendingEntry cacheEntry,
+				final Runnable finished) {
+			final BoundedBundlePipe pipe = new BoundedBundlePipe(streamingBufferSize);
+			final OutputStream bundleStream = cacheEntry != null ? new TeeOutputStream(
+					pipe.getOutputStream(), cacheEntry.getOutputStream())
+					: pipe.getOutputStream();
+			Thread builderThread = new Thread("Eclipse project bundle builder: "
+					+ metadata.getProjectDirectory()) {
+				public void run() {
+					try {
+						build();
+					} finally {
+						if (finished != null)
+							finished.run();
+					}
+				}
+
+				private void build() {
+					try {
+						buildBundle(metadata, bundleStream);
+					} catch (Throwable e) {
+						if (cacheEntry != null)
+							cacheEntry.abort();
+						pipe.fail(e);
+						return;
+					}
+					if (cacheEntry != null) {
+						try {
+							cacheEntry.commit();
+						} catch (IOException e) {
+							// The reader already has the complete bundle
+							System.err.println("Unable to cache bundle: " + e);
+						}
+					}
+				}
+			};
+			builderThread.setDaemon(true);
+			builderThread.start();
+			return pipe.getInputStream();
+		}
+	}
+
+	/**
+	 * Writes everything to two output streams.
+	 */
+	private static class TeeOutputStream extends OutputStream {
+		private final OutputStream first;
+		private final OutputStream second;
+
+		TeeOutputStream(OutputStream first, OutputStream second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		public void write(int b) throws IOException {
+			first.write(b);
+			second.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			first.write(b, off, len);
+			second.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			first.flush();
+			second.flush();
+		}
 
-			return new ByteArrayInputStream(bundleBuffer.toByteArray());
+		public void close() throws IOException {
+			try {
+				first.close();
+			} finally {
+				second.close();
+			}
 		}
-		
-		
 	}
 }
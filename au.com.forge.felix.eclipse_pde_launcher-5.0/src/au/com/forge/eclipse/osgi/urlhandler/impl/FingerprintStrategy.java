@@ -0,0 +1,54 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Decides how each file under a project's output directories
+ * contributes to a {@link BundleInputFingerprint}. Strategies that read
+ * less of each file are cheaper, but notice fewer changes as a result.
+ *
+ * @author Christopher Armstrong
+ *
+ * @see BundleInputFingerprint#FILE_METADATA
+ * @see BundleInputFingerprint#FILE_CONTENTS
+ */
+public interface FingerprintStrategy {
+	/**
+	 * @return the name of the strategy, which is part of every
+	 * fingerprint it is used for
+	 */
+	String getName();
+
+	/**
+	 * Describe a regular file. Files with the same description are
+	 * assumed to be the same.
+	 * @param file the file
+	 * @param attributes the attributes of the file
+	 * @return the description
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	String describe(Path file, BasicFileAttributes attributes)
+			throws IOException;
+}
@@ -0,0 +1,239 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Java Flight Recorder event, so that the building, opening and
+ * updating of eclipse-project bundles show up in a recording along with
+ * the project they are for. Every event has the project directory, a
+ * detail that depends on its type, an entry count and a byte count.
+ *
+ * The launcher still runs on Java 7, which has no
+ * <code>jdk.jfr</code> API to extend, so the event types are defined
+ * at run time with <code>jdk.jfr.EventFactory</code>, through
+ * reflection. On a virtual machine without it (or when no recording
+ * is enabled) {@link #begin(Type)} returns an event that does nothing.
+ * Their stack traces are not recorded, as they would only show the
+ * reflection.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class FlightRecorderEvent {
+	/**
+	 * The category the events are listed under.
+	 */
+	private static final String CATEGORY = "Eclipse PDE Felix Launcher";
+
+	/**
+	 * An event type.
+	 */
+	public static class Type {
+		private final String name;
+		private final String label;
+		private final String description;
+		private final String detailName;
+		private final String detailLabel;
+		/** The jdk.jfr.EventFactory, or null if events are not recorded */
+		private Object factory;
+
+		Type(String name, String label, String description,
+				String detailName, String detailLabel) {
+			this.name = name;
+			this.label = label;
+			this.description = description;
+			this.detailName = detailName;
+			this.detailLabel = detailLabel;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * A phase of building a bundle: "metadata" (reading .classpath and
+	 * build.properties), "build.properties" (writing the binary
+	 * includes), "classpath" (walking the output folders) or
+	 * "nested jar" (building an internal library JAR).
+	 */
+	public static final Type BUILD_PHASE = new Type(
+			"au.com.forge.felix.BundleBuildPhase", "Bundle Build Phase",
+			"A phase of building an eclipse-project bundle", "phase", "Phase");
+
+	/**
+	 * A call of
+	 * {@link EclipseProjectURLHandler.EclipseProjectURLConnection#getInputStream()}.
+	 */
+	public static final Type BUNDLE_OPEN = new Type(
+			"au.com.forge.felix.BundleOpen", "Bundle Open",
+			"Opening the stream of an eclipse-project bundle", "source",
+			"Source");
+
+	/**
+	 * An update of a project bundle by the auto-updater.
+	 */
+	public static final Type BUNDLE_UPDATE = new Type(
+			"au.com.forge.felix.BundleUpdate", "Bundle Update",
+			"An update of an eclipse-project bundle by the auto-updater",
+			"location", "Bundle Location");
+
+	private static final FlightRecorderEvent DISABLED = new FlightRecorderEvent(
+			null);
+
+	private static Method newEventMethod;
+	private static Method isEnabledMethod;
+	private static Method beginMethod;
+	private static Method setMethod;
+	private static Method commitMethod;
+
+	static {
+		try {
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> valueDescriptorClass = Class
+					.forName("jdk.jfr.ValueDescriptor");
+			newEventMethod = factoryClass.getMethod("newEvent");
+			isEnabledMethod = eventClass.getMethod("isEnabled");
+			beginMethod = eventClass.getMethod("begin");
+			setMethod = eventClass.getMethod("set", int.class, Object.class);
+			commitMethod = eventClass.getMethod("commit");
+			Method createMethod = factoryClass.getMethod("create", List.class,
+					List.class);
+			Constructor<?> valueDescriptorConstructor = valueDescriptorClass
+					.getConstructor(Class.class, String.class, List.class);
+
+			Type[] types = { BUILD_PHASE, BUNDLE_OPEN, BUNDLE_UPDATE };
+			for (int i = 0; i < types.length; i++) {
+				Type type = types[i];
+				List<Object> annotations = Arrays.asList(annotation(
+						"jdk.jfr.Name", type.name), annotation("jdk.jfr.Label",
+						type.label), annotation("jdk.jfr.Description",
+						type.description), annotation("jdk.jfr.Category",
+						new String[] { CATEGORY }), annotation(
+						"jdk.jfr.StackTrace", Boolean.FALSE));
+				List<Object> fields = new ArrayList<Object>();
+				fields.add(valueDescriptorConstructor.newInstance(
+						String.class, "project", Collections
+								.singletonList(annotation("jdk.jfr.Label",
+										"Project"))));
+				fields.add(valueDescriptorConstructor.newInstance(
+						String.class, type.detailName, Collections
+								.singletonList(annotation("jdk.jfr.Label",
+										type.detailLabel))));
+				fields.add(valueDescriptorConstructor.newInstance(long.class,
+						"entries", Collections.singletonList(annotation(
+								"jdk.jfr.Label", "Entries"))));
+				fields.add(valueDescriptorConstructor.newInstance(long.class,
+						"bytes", Arrays.asList(annotation("jdk.jfr.Label",
+								"Bytes"), annotation("jdk.jfr.DataAmount",
+								"BYTES"))));
+				type.factory = createMethod.invoke(null, annotations, fields);
+			}
+		} catch (ClassNotFoundException e) {
+			// Before Java 11 (or without the jdk.jfr module), so nothing
+			// is recorded
+		} catch (Exception e) {
+			System.err.println("Unable to define the Flight Recorder events: "
+					+ e);
+		}
+	}
+
+	/**
+	 * Create a jdk.jfr.AnnotationElement.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object annotation(String annotationClassName, Object value)
+			throws Exception {
+		Class<? extends Annotation> annotationClass = (Class<? extends Annotation>) Class
+				.forName(annotationClassName);
+		return Class.forName("jdk.jfr.AnnotationElement").getConstructor(
+				Class.class, Object.class).newInstance(annotationClass, value);
+	}
+
+	/**
+	 * Start timing an event.
+	 *
+	 * @param type the event type
+	 * @return the event, which does nothing if the type is not being
+	 * recorded
+	 */
+	public static FlightRecorderEvent begin(Type type) {
+		if (type.factory == null)
+			return DISABLED;
+		try {
+			Object event = newEventMethod.invoke(type.factory);
+			if (!((Boolean) isEnabledMethod.invoke(event)).booleanValue())
+				return DISABLED;
+			beginMethod.invoke(event);
+			return new FlightRecorderEvent(event);
+		} catch (Exception e) {
+			return DISABLED;
+		}
+	}
+
+	/** The jdk.jfr.Event, or null if it is not recorded */
+	private final Object event;
+
+	private FlightRecorderEvent(Object event) {
+		this.event = event;
+	}
+
+	/**
+	 * @return true if the event is being recorded, so it is worth
+	 * working out what to commit
+	 */
+	public boolean isEnabled() {
+		return event != null;
+	}
+
+	/**
+	 * Finish timing the event and write it to the recordings.
+	 *
+	 * @param project the project directory
+	 * @param detail the detail of the event type
+	 * @param entries the number of entries
+	 * @param bytes the number of bytes
+	 */
+	public void commit(File project, String detail, long entries, long bytes) {
+		if (event == null)
+			return;
+		try {
+			setMethod.invoke(event, Integer.valueOf(0),
+					project != null ? project.getPath() : null);
+			setMethod.invoke(event, Integer.valueOf(1), detail);
+			setMethod.invoke(event, Integer.valueOf(2), Long.valueOf(entries));
+			setMethod.invoke(event, Integer.valueOf(3), Long.valueOf(bytes));
+			commitMethod.invoke(event);
+		} catch (Exception e) {
+			// The event is lost, which is no reason to fail the build
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps the last bundle built for each eclipse-project, together with
+ * its {@link IncrementalBuildIndex}, so that the next build of the project
+ * can copy unchanged entries out of the previous bundle instead of
+ * reading every file in the project again.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class IncrementalBuildStore {
+	private final File directory;
+
+	/**
+	 * @param directory the directory the previous builds are kept in
+	 * (created if it does not exist)
+	 */
+	public IncrementalBuildStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Start a new build of a project.
+	 * @param projectDirectory the Eclipse project directory
+	 * @return the build, which gives access to the previous build of
+	 * the project (if there is a usable one)
+	 * @throws IOException thrown if the store cannot be written
+	 */
+	public IncrementalBuild open(File projectDirectory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException(
+					"Unable to create incremental build directory " + directory);
+		String name = projectDirectory.getName()
+				+ "-"
+				+ Integer.toHexString(projectDirectory.getCanonicalPath()
+						.hashCode());
+		return new IncrementalBuild(new File(directory, name + ".jar"),
+				new File(directory, name + ".idx"));
+	}
+
+	/**
+	 * A build in progress, which is written next to the previous one
+	 * and replaces it when it is committed.
+	 */
+	public class IncrementalBuild {
+		private final File bundleFile;
+		private final File indexFile;
+		private final File tempFile;
+		private final OutputStream outputStream;
+		private final IncrementalBuildIndex index = new IncrementalBuildIndex();
+		private ZipFile previousBundle = null;
+		private IncrementalBuildIndex previousIndex = null;
+		private boolean finished = false;
+
+		private IncrementalBuild(File bundleFile, File indexFile)
+				throws IOException {
+			this.bundleFile = bundleFile;
+			this.indexFile = indexFile;
+			try {
+				previousIndex = IncrementalBuildIndex.read(indexFile, bundleFile);
+				if (previousIndex != null)
+					previousBundle = new ZipFile(bundleFile);
+			} catch (IOException e) {
+				// A damaged previous build just means a full rebuild
+				previousIndex = null;
+				previousBundle = null;
+			}
+			this.tempFile = File.createTempFile(bundleFile.getName(), ".tmp",
+					directory);
+			this.outputStream = new BufferedOutputStream(new FileOutputStream(
+					tempFile), 64 * 1024);
+		}
+
+		/**
+		 * @return the stream the new bundle is written to (in addition
+		 * to wherever else it is going)
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Find the entry of the previous bundle for a source file that
+		 * has not changed since it was built. The entry is recorded in the
+		 * new build's index, and must then be copied with
+		 * {@link #openPrevious(String)}.
+		 * @param outputResource the path of the entry in the bundle
+		 * @param sourceFile the file the entry would otherwise be read from
+		 * @param size the current size of <code>sourceFile</code>
+		 * @param lastModified the current modification time of <code>sourceFile</code>
+		 * @return the previous index entry (which has the size and CRC of
+		 * the entry), or null if the entry has to be read from <code>sourceFile</code>
+		 */
+		public IncrementalBuildIndex.Entry findUnchanged(String outputResource,
+				File sourceFile, long size, long lastModified) {
+			if (previousIndex == null)
+				return null;
+			IncrementalBuildIndex.Entry previous = previousIndex
+					.get(outputResource);
+			if (previous == null
+					|| !previous.matches(sourceFile, size, lastModified)
+					|| previousBundle.getEntry(outputResource) == null)
+				return null;
+			index.put(outputResource, previous);
+			return previous;
+		}
+
+		/**
+		 * Open an entry of the previous bundle.
+		 * @param outputResource the path of an entry returned by
+		 * {@link #findUnchanged(String, File, long, long)}
+		 * @return a stream of the previous entry contents
+		 * @throws IOException thrown if the previous bundle cannot be read
+		 */
+		public InputStream openPrevious(String outputResource)
+				throws IOException {
+			ZipEntry previousEntry = previousBundle.getEntry(outputResource);
+			if (previousEntry == null)
+				throw new IOException("Entry " + outputResource
+						+ " has disappeared from the previous build");
+			return previousBundle.getInputStream(previousEntry);
+		}
+
+		/**
+		 * Determine if an entry can be copied from the previous bundle.
+		 * Unlike {@link #findUnchanged(String, File, long, long)} this may
+		 * be called from any thread.
+		 * @param outputResource the path of the entry in the bundle
+		 * @param sourceFile the file the entry would otherwise be read from
+		 * @param size the current size of <code>sourceFile</code>
+		 * @param lastModified the current modification time of <code>sourceFile</code>
+		 * @return true if the source file is unchanged since the previous build
+		 */
+		public boolean isUnchanged(String outputResource, File sourceFile,
+				long size, long lastModified) {
+			if (previousIndex == null)
+				return false;
+			IncrementalBuildIndex.Entry previous = previousIndex
+					.get(outputResource);
+			return previous != null
+					&& previous.matches(sourceFile, size, lastModified);
+		}
+
+		/**
+		 * Record an entry that was read from its source file.
+		 * @param outputResource the path of the entry in the bundle
+		 * @param sourceFile the file it was read from
+		 * @param size the size of the file before it was read
+		 * @param lastModified the modification time of the file before it was read
+		 * @param crc the CRC-32 of the contents that were written
+		 */
+		public void record(String outputResource, File sourceFile, long size,
+				long lastModified, long crc) {
+			index.put(outputResource, new IncrementalBuildIndex.Entry(
+					sourceFile.getAbsolutePath(), size, lastModified, crc));
+		}
+
+		/**
+		 * Replace the previous build of the project with this one.
+		 * @throws IOException thrown if the build could not be stored
+		 */
+		public void commit() throws IOException {
+			finished = true;
+			closePreviousBundle();
+			outputStream.close();
+			indexFile.delete();
+			bundleFile.delete();
+			if (!tempFile.renameTo(bundleFile)) {
+				tempFile.delete();
+				throw new IOException("Unable to store incremental build "
+						+ bundleFile);
+			}
+			index.write(indexFile, bundleFile);
+		}
+
+		/**
+		 * Discard this build, keeping the previous one. Does nothing if
+		 * the build has already been committed.
+		 */
+		public void abort() {
+			if (finished)
+				return;
+			finished = true;
+			closePreviousBundle();
+			try {
+				outputStream.close();
+			} catch (IOException e) {
+			}
+			tempFile.delete();
+		}
+
+		private void closePreviousBundle() {
+			if (previousBundle == null)
+				return;
+			try {
+				previousBundle.close();
+			} catch (IOException e) {
+			}
+			previousBundle = null;
+		}
+	}
+}
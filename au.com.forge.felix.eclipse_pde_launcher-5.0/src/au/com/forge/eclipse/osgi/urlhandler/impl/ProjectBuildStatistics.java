@@ -0,0 +1,192 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The builds, cache lookups and updates of one project (or of every
+ * project, for the totals of {@link BuilderStatistics}). Times are in
+ * milliseconds.
+ *
+ * Instances are only changed by {@link BuilderStatistics}, which hands
+ * out copies.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class ProjectBuildStatistics {
+	/**
+	 * The upper bounds (in milliseconds) of the buckets of the build
+	 * time histogram. Builds that take longer go in one more bucket.
+	 */
+	static final long[] BUILD_TIME_BOUNDS = { 10, 25, 50, 100, 250, 500,
+			1000, 2500, 5000, 10000 };
+
+	private final String project;
+	private long buildCount;
+	private final long[] buildTimeHistogram = new long[BUILD_TIME_BOUNDS.length + 1];
+	private long buildTime;
+	private long writeTime;
+	private long lastBuildTime;
+	private long lastFilesWritten;
+	private long lastBytesWritten;
+	private long filesWritten;
+	private long bytesWritten;
+	private long cacheHits;
+	private long cacheMisses;
+	private long updateCount;
+
+	ProjectBuildStatistics(String project) {
+		this.project = project;
+	}
+
+	ProjectBuildStatistics(ProjectBuildStatistics other) {
+		this(other.project);
+		buildCount = other.buildCount;
+		System.arraycopy(other.buildTimeHistogram, 0, buildTimeHistogram, 0,
+				buildTimeHistogram.length);
+		buildTime = other.buildTime;
+		writeTime = other.writeTime;
+		lastBuildTime = other.lastBuildTime;
+		lastFilesWritten = other.lastFilesWritten;
+		lastBytesWritten = other.lastBytesWritten;
+		filesWritten = other.filesWritten;
+		bytesWritten = other.bytesWritten;
+		cacheHits = other.cacheHits;
+		cacheMisses = other.cacheMisses;
+		updateCount = other.updateCount;
+	}
+
+	/**
+	 * @param buildTime the time taken by the build, in nanoseconds
+	 * @param writeTime the part of it spent writing entries
+	 * @param files the number of files written
+	 * @param bytes the size of the bundle
+	 */
+	void recordBuild(long buildTime, long writeTime, int files, long bytes) {
+		long buildMillis = TimeUnit.NANOSECONDS.toMillis(buildTime);
+		int bucket = 0;
+		while (bucket < BUILD_TIME_BOUNDS.length
+				&& buildMillis > BUILD_TIME_BOUNDS[bucket])
+			bucket++;
+		buildCount++;
+		buildTimeHistogram[bucket]++;
+		this.buildTime += buildTime;
+		this.writeTime += writeTime;
+		lastBuildTime = buildTime;
+		lastFilesWritten = files;
+		lastBytesWritten = bytes;
+		filesWritten += files;
+		bytesWritten += bytes;
+	}
+
+	void recordCacheHit() {
+		cacheHits++;
+	}
+
+	void recordCacheMiss() {
+		cacheMisses++;
+	}
+
+	void recordUpdate() {
+		updateCount++;
+	}
+
+	/**
+	 * @return the project directory, or "total"
+	 */
+	public String getProject() {
+		return project;
+	}
+
+	public long getBuildCount() {
+		return buildCount;
+	}
+
+	/**
+	 * @return the number of builds in each bucket of
+	 * {@link BuilderStatisticsMXBean#getBuildTimeHistogramBounds()}
+	 */
+	public long[] getBuildTimeHistogram() {
+		return buildTimeHistogram.clone();
+	}
+
+	public long getBuildTime() {
+		return TimeUnit.NANOSECONDS.toMillis(buildTime);
+	}
+
+	/**
+	 * @return the time of the builds not spent writing entries
+	 */
+	public long getWalkTime() {
+		return TimeUnit.NANOSECONDS.toMillis(buildTime - writeTime);
+	}
+
+	/**
+	 * @return the time of the builds spent reading files and writing
+	 * their entries
+	 */
+	public long getWriteTime() {
+		return TimeUnit.NANOSECONDS.toMillis(writeTime);
+	}
+
+	/**
+	 * @return the time taken by the most recent build
+	 */
+	public long getLastBuildTime() {
+		return TimeUnit.NANOSECONDS.toMillis(lastBuildTime);
+	}
+
+	/**
+	 * @return the files written by the most recent build
+	 */
+	public long getLastFilesWritten() {
+		return lastFilesWritten;
+	}
+
+	/**
+	 * @return the size of the bundle of the most recent build
+	 */
+	public long getLastBytesWritten() {
+		return lastBytesWritten;
+	}
+
+	public long getFilesWritten() {
+		return filesWritten;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	public long getUpdateCount() {
+		return updateCount;
+	}
+}
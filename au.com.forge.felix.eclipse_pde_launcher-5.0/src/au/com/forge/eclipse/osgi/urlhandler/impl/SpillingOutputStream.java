@@ -0,0 +1,154 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.eclipse.osgi.urlhandler.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Holds data whose size and CRC must be known before it can be written,
+ * such as an internal library JAR that is stored in a bundle. The data
+ * is kept in memory until it grows past a threshold, and is then moved
+ * to a temporary file, so a large library never sits in the heap.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class SpillingOutputStream extends OutputStream {
+	private final int threshold;
+	private final CRC32 crc = new CRC32();
+	private byte[] memory = new byte[8 * 1024];
+	private long size = 0;
+	private File spillFile = null;
+	private OutputStream spillStream = null;
+
+	/**
+	 * @param threshold the number of bytes kept in memory before the
+	 * data is moved to a temporary file
+	 */
+	public SpillingOutputStream(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		crc.update(b, off, len);
+		if (spillStream == null && size + len > threshold)
+			spill();
+		if (spillStream != null) {
+			spillStream.write(b, off, len);
+		} else {
+			if (size + len > memory.length)
+				memory = Arrays.copyOf(memory, (int) Math.min(threshold, Math
+						.max(memory.length * 2, size + len)));
+			System.arraycopy(b, off, memory, (int) size, len);
+		}
+		size += len;
+	}
+
+	private void spill() throws IOException {
+		spillFile = File.createTempFile("felix-eclipse", ".jar");
+		spillStream = new BufferedOutputStream(new FileOutputStream(spillFile),
+				64 * 1024);
+		spillStream.write(memory, 0, (int) size);
+		memory = null;
+	}
+
+	public void flush() throws IOException {
+		if (spillStream != null)
+			spillStream.flush();
+	}
+
+	/**
+	 * Finish writing. The data stays available to
+	 * {@link #writeTo(OutputStream, byte[])} until {@link #dispose()} is called.
+	 */
+	public void close() throws IOException {
+		if (spillStream != null)
+			spillStream.close();
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the CRC-32 of the bytes written
+	 */
+	public long getCrc() {
+		return crc.getValue();
+	}
+
+	/**
+	 * @return true if the data has been moved to a temporary file
+	 */
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * Copy the data to another stream. The stream must have been closed.
+	 * @param output the stream to copy to
+	 * @param buffer a buffer to copy a temporary file through
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream output, byte[] buffer) throws IOException {
+		if (spillFile == null) {
+			output.write(memory, 0, (int) size);
+			return;
+		}
+		InputStream input = new FileInputStream(spillFile);
+		try {
+			int read;
+			while ((read = input.read(buffer)) != -1)
+				output.write(buffer, 0, read);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Release the data, deleting the temporary file if there is one.
+	 */
+	public void dispose() {
+		memory = null;
+		if (spillFile == null)
+			return;
+		try {
+			spillStream.close();
+		} catch (IOException e) {
+		}
+		spillFile.delete();
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.forge.eclipse.osgi.urlhandler.impl.BundleMemoryCache;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectMetadata;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectToOSGiBundleBuilder;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectURLHandler;
+import au.com.forge.eclipse.osgi.urlhandler.impl.ParallelResourceWalker;
+
+/**
+ * The JMH version of {@link BuilderBenchmarks}: benchmarks
+ * {@link EclipseProjectToOSGiBundleBuilder#build()} and
+ * {@link EclipseProjectURLHandler.EclipseProjectURLConnection#getInputStream()}
+ * on the same generated projects. Run it from the Maven build of this
+ * project with <code>java -jar target/benchmarks.jar -prof gc</code>,
+ * which reports the bytes allocated per operation by every thread as
+ * <code>gc.alloc.rate.norm</code>. The number of entries of each
+ * project's bundle is printed when it is set up, to turn that into bytes
+ * per entry.
+ *
+ * The projects are generated in the directory given by the
+ * <code>benchmark.dir</code> system property, as for
+ * {@link BuilderBenchmarks}.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class BundleBuilderBenchmark {
+	private static final SAXParserFactory saxParserFactory = SAXParserFactory
+			.newInstance();
+
+	/**
+	 * Creates connections for the handler being benchmarked; the
+	 * framework would normally do this.
+	 */
+	private static final URLStreamHandler URL_HANDLER = new URLStreamHandler() {
+		protected URLConnection openConnection(URL url) throws IOException {
+			throw new IOException("Not used");
+		}
+	};
+
+	/**
+	 * The project benchmarked, as named by
+	 * {@link BuilderBenchmarks#createShape(String)}.
+	 */
+	@Param( { "synthetic.files100", "synthetic.files10000",
+			"synthetic.files100000", "synthetic.deep", "synthetic.large" })
+	public String shape;
+
+	private EclipseProjectMetadata metadata;
+	private URL url;
+	private ForkJoinPool pool;
+	private EclipseProjectURLHandler cachingHandler;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		File directory = new File(System.getProperty("benchmark.dir", new File(
+				System.getProperty("java.io.tmpdir"), "felix-eclipse-benchmarks")
+				.getPath()));
+		File project = new SyntheticWorkspace(directory)
+				.createProject(BuilderBenchmarks.createShape(shape));
+		metadata = EclipseProjectMetadata.load(project, saxParserFactory);
+		System.out.println(shape + ": "
+				+ BuilderBenchmarks.countEntries(metadata) + " entries");
+		url = new URL(null, EclipseProjectURLHandler.URL_PROTOCOL + ":"
+				+ project.getAbsolutePath(), URL_HANDLER);
+		pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		cachingHandler = new EclipseProjectURLHandler(saxParserFactory);
+		cachingHandler.setMemoryCache(new BundleMemoryCache(Runtime
+				.getRuntime().maxMemory() / 4));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Build the bundle on one thread.
+	 */
+	@Benchmark
+	public long build() throws IOException {
+		EclipseProjectToOSGiBundleBuilder builder = new EclipseProjectToOSGiBundleBuilder(
+				metadata, new BuilderBenchmarks.NullOutputStream());
+		builder.build();
+		return builder.getBundleSize();
+	}
+
+	/**
+	 * Build the bundle with a {@link ParallelResourceWalker}.
+	 */
+	@Benchmark
+	public long buildParallel() throws IOException {
+		EclipseProjectToOSGiBundleBuilder builder = new EclipseProjectToOSGiBundleBuilder(
+				metadata, new BuilderBenchmarks.NullOutputStream());
+		builder.setParallelWalker(new ParallelResourceWalker(pool));
+		builder.build();
+		return builder.getBundleSize();
+	}
+
+	/**
+	 * Open the bundle's URL with nothing cached.
+	 */
+	@Benchmark
+	public long url() throws IOException {
+		// A new handler each time, so nothing is cached
+		return BuilderBenchmarks.readFully(new EclipseProjectURLHandler(
+				saxParserFactory), url);
+	}
+
+	/**
+	 * Open the bundle's URL with the bundle in the memory cache.
+	 */
+	@Benchmark
+	public long urlCached() throws IOException {
+		return BuilderBenchmarks.readFully(cachingHandler, url);
+	}
+}
@@ -0,0 +1,317 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs benchmarks in the style of JMH: a few warmup iterations that are
+ * thrown away, then measured iterations of a single operation. For each
+ * benchmark it reports the time per operation, the bytes allocated per
+ * operation (and per bundle entry, if the benchmark has entries) by
+ * every thread, and the garbage collections during the measured
+ * iterations.
+ *
+ * The mean times can be saved as a baseline and compared against in a
+ * later run, which fails if any benchmark has become slower than the
+ * allowed regression.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BenchmarkRunner {
+	/**
+	 * A benchmarked operation.
+	 */
+	public interface Operation {
+		void run() throws Exception;
+	}
+
+	/**
+	 * The measurements of one benchmark.
+	 */
+	public static class Result {
+		private final String name;
+		/** Nanoseconds per iteration, sorted */
+		private final long[] times;
+		private final long allocatedBytes;
+		private final long entries;
+		private final long collections;
+		private final long collectionTime;
+
+		Result(String name, long[] times, long allocatedBytes, long entries,
+				long collections, long collectionTime) {
+			this.name = name;
+			this.times = times;
+			this.allocatedBytes = allocatedBytes;
+			this.entries = entries;
+			this.collections = collections;
+			this.collectionTime = collectionTime;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the mean time per operation in milliseconds
+		 */
+		public double getMean() {
+			long total = 0;
+			for (int i = 0; i < times.length; i++)
+				total += times[i];
+			return total / (double) times.length / 1000000.0;
+		}
+
+		/**
+		 * @return the bytes allocated per operation, or -1 if the virtual
+		 * machine cannot tell
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes >= 0 ? allocatedBytes / times.length : -1;
+		}
+
+		/**
+		 * @return the bytes allocated per entry, or -1 if the benchmark
+		 * has no entries or the virtual machine cannot tell
+		 */
+		public long getAllocatedBytesPerEntry() {
+			return allocatedBytes >= 0 && entries > 0 ? allocatedBytes
+					/ times.length / entries : -1;
+		}
+
+		public String toString() {
+			String result = String.format(
+					"%-40s %10.1f ms/op (min %.1f, median %.1f, max %.1f)  %,14d B/op  %d GCs (%d ms)",
+					name, getMean(), times[0] / 1000000.0,
+					times[times.length / 2] / 1000000.0,
+					times[times.length - 1] / 1000000.0, getAllocatedBytes(),
+					collections, collectionTime);
+			if (entries > 0)
+				result += String.format("  %,d B/entry",
+						getAllocatedBytesPerEntry());
+			return result;
+		}
+	}
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * @param warmupIterations the iterations run before measuring
+	 * @param measurementIterations the iterations measured
+	 */
+	public BenchmarkRunner(int warmupIterations, int measurementIterations) {
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = Math.max(measurementIterations, 1);
+	}
+
+	/**
+	 * Run and measure a benchmark, printing its result.
+	 *
+	 * @param name the name of the benchmark
+	 * @param operation the operation to measure
+	 * @return the result
+	 * @throws Exception thrown by the operation
+	 */
+	public Result run(String name, Operation operation) throws Exception {
+		return run(name, 0, operation);
+	}
+
+	/**
+	 * Run and measure a benchmark that writes bundle entries, printing its
+	 * result with the bytes allocated per entry.
+	 *
+	 * @param name the name of the benchmark
+	 * @param entries the number of entries each operation writes
+	 * @param operation the operation to measure
+	 * @return the result
+	 * @throws Exception thrown by the operation
+	 */
+	public Result run(String name, long entries, Operation operation)
+			throws Exception {
+		for (int i = 0; i < warmupIterations; i++)
+			operation.run();
+		System.gc();
+
+		long[] times = new long[measurementIterations];
+		Map<Long, Long> allocatedBefore = getThreadAllocatedBytes();
+		long collectionsBefore = getCollections();
+		long collectionTimeBefore = getCollectionTime();
+		for (int i = 0; i < measurementIterations; i++) {
+			long startTime = System.nanoTime();
+			operation.run();
+			times[i] = System.nanoTime() - startTime;
+		}
+		long allocated = getAllocatedBytesSince(allocatedBefore);
+		Arrays.sort(times);
+		Result result = new Result(name, times, allocated, entries,
+				getCollections() - collectionsBefore, getCollectionTime()
+						- collectionTimeBefore);
+		results.add(result);
+		System.out.println(result);
+		return result;
+	}
+
+	/**
+	 * @return the results of every benchmark run so far
+	 */
+	public List<Result> getResults() {
+		return results;
+	}
+
+	/**
+	 * Save the mean time of every benchmark run so far.
+	 *
+	 * @param file the baseline file
+	 * @throws IOException thrown if the file cannot be written
+	 */
+	public void saveBaseline(File file) throws IOException {
+		Properties baseline = new Properties();
+		Iterator<Result> it = results.iterator();
+		while (it.hasNext()) {
+			Result result = it.next();
+			baseline.setProperty(result.getName(), Double.toString(result
+					.getMean()));
+		}
+		OutputStream output = new FileOutputStream(file);
+		try {
+			baseline.store(output, "Mean milliseconds per operation");
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Compare the benchmarks run so far against a baseline, reporting
+	 * each one that is slower than allowed. Benchmarks missing from the
+	 * baseline are ignored.
+	 *
+	 * @param file the baseline file
+	 * @param allowedRegression the fraction a benchmark may be slower
+	 * than the baseline (e.g. 0.1 for 10%)
+	 * @return true if no benchmark regressed
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	public boolean compareWithBaseline(File file, double allowedRegression)
+			throws IOException {
+		Properties baseline = new Properties();
+		InputStream input = new FileInputStream(file);
+		try {
+			baseline.load(input);
+		} finally {
+			input.close();
+		}
+		boolean passed = true;
+		Iterator<Result> it = results.iterator();
+		while (it.hasNext()) {
+			Result result = it.next();
+			String value = baseline.getProperty(result.getName());
+			if (value == null)
+				continue;
+			double limit = Double.parseDouble(value) * (1 + allowedRegression);
+			if (result.getMean() > limit) {
+				System.err.println(String.format(
+						"REGRESSION %s: %.1f ms/op, baseline %s ms/op", result
+								.getName(), result.getMean(), value));
+				passed = false;
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * @return the bytes allocated by each live thread, by thread ID, or
+	 * null if the virtual machine cannot tell
+	 */
+	private static Map<Long, Long> getThreadAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return null;
+		long[] ids = threads.getAllThreadIds();
+		long[] allocated = ((com.sun.management.ThreadMXBean) threads)
+				.getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocatedBytes = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++)
+			if (allocated[i] >= 0)
+				allocatedBytes.put(Long.valueOf(ids[i]), Long
+						.valueOf(allocated[i]));
+		return allocatedBytes;
+	}
+
+	/**
+	 * Add up the bytes allocated by every thread (the benchmark's own and
+	 * the workers it hands work to) since an earlier call of
+	 * {@link #getThreadAllocatedBytes()}. Threads that both start and finish
+	 * in between are not counted.
+	 *
+	 * @param before the earlier allocations, or null
+	 * @return the bytes allocated, or -1 if the virtual machine cannot tell
+	 */
+	private static long getAllocatedBytesSince(Map<Long, Long> before) {
+		Map<Long, Long> after = getThreadAllocatedBytes();
+		if (before == null || after == null)
+			return -1;
+		long allocated = 0;
+		Iterator<Map.Entry<Long, Long>> it = after.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Long> entry = it.next();
+			Long previous = before.get(entry.getKey());
+			allocated += entry.getValue().longValue()
+					- (previous != null ? previous.longValue() : 0);
+		}
+		return allocated;
+	}
+
+	private static long getCollections() {
+		long collections = 0;
+		Iterator<GarbageCollectorMXBean> it = ManagementFactory
+				.getGarbageCollectorMXBeans().iterator();
+		while (it.hasNext())
+			collections += Math.max(it.next().getCollectionCount(), 0);
+		return collections;
+	}
+
+	private static long getCollectionTime() {
+		long time = 0;
+		Iterator<GarbageCollectorMXBean> it = ManagementFactory
+				.getGarbageCollectorMXBeans().iterator();
+		while (it.hasNext())
+			time += Math.max(it.next().getCollectionTime(), 0);
+		return time;
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import au.com.forge.eclipse.osgi.urlhandler.impl.BundleMemoryCache;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectMetadata;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectToOSGiBundleBuilder;
+import au.com.forge.eclipse.osgi.urlhandler.impl.EclipseProjectURLHandler;
+import au.com.forge.eclipse.osgi.urlhandler.impl.ParallelResourceWalker;
+
+/**
+ * Benchmarks {@link EclipseProjectToOSGiBundleBuilder#build()} and
+ * {@link EclipseProjectURLHandler.EclipseProjectURLConnection#getInputStream()}
+ * on generated projects of 100, 10,000 and 100,000 files, a project
+ * with a deep package tree and a project with large binary resources.
+ *
+ * Configured with system properties:
+ * <ul>
+ * <li><code>benchmark.dir</code>: where the projects are generated
+ * (defaults to a directory under java.io.tmpdir)</li>
+ * <li><code>benchmark.sizes</code>: the file counts of the projects
+ * (defaults to <code>100,10000,100000</code>)</li>
+ * <li><code>benchmark.warmup</code> and <code>benchmark.iterations</code>:
+ * the warmup and measured iterations (default 3 and 5)</li>
+ * <li><code>benchmark.workers</code>: the workers of the parallel
+ * builds (defaults to the number of processors)</li>
+ * <li><code>benchmark.baseline</code>: a baseline file to compare the
+ * results with; the run fails if any benchmark is more than
+ * <code>benchmark.regression</code> (default 0.1, i.e. 10%) slower</li>
+ * <li><code>benchmark.baseline.save</code>: if true, save the results
+ * to the baseline file instead</li>
+ * </ul>
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class BuilderBenchmarks {
+	private static final SAXParserFactory saxParserFactory = SAXParserFactory
+			.newInstance();
+
+	/**
+	 * Creates connections for the handler being benchmarked; the
+	 * framework would normally do this.
+	 */
+	private static final URLStreamHandler URL_HANDLER = new URLStreamHandler() {
+		protected URLConnection openConnection(URL url) throws IOException {
+			throw new IOException("Not used");
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File(System.getProperty("benchmark.dir", new File(
+				System.getProperty("java.io.tmpdir"), "felix-eclipse-benchmarks")
+				.getPath()));
+		int workers = Integer.getInteger("benchmark.workers", Runtime
+				.getRuntime().availableProcessors());
+		BenchmarkRunner runner = new BenchmarkRunner(Integer.getInteger(
+				"benchmark.warmup", 3), Integer.getInteger(
+				"benchmark.iterations", 5));
+
+		SyntheticWorkspace workspace = new SyntheticWorkspace(directory);
+		List<SyntheticWorkspace.Shape> shapes = new ArrayList<SyntheticWorkspace.Shape>();
+		String[] sizes = System.getProperty("benchmark.sizes",
+				"100,10000,100000").split(",");
+		for (int i = 0; i < sizes.length; i++)
+			shapes.add(createShape("synthetic.files" + sizes[i].trim()));
+		shapes.add(createShape("synthetic.deep"));
+		shapes.add(createShape("synthetic.large"));
+
+		ForkJoinPool pool = new ForkJoinPool(workers);
+		try {
+			Iterator<SyntheticWorkspace.Shape> it = shapes.iterator();
+			while (it.hasNext()) {
+				SyntheticWorkspace.Shape shape = it.next();
+				System.out.println("Generating " + shape);
+				File project = workspace.createProject(shape);
+				benchmark(runner, shape.getName(), project, pool);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		String baselinePath = System.getProperty("benchmark.baseline");
+		if (baselinePath == null)
+			return;
+		File baseline = new File(baselinePath);
+		if (Boolean.getBoolean("benchmark.baseline.save")) {
+			runner.saveBaseline(baseline);
+			System.out.println("Saved the baseline to " + baseline);
+		} else if (!runner.compareWithBaseline(baseline, Double
+				.parseDouble(System.getProperty("benchmark.regression", "0.1")))) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Create the shape of one of the benchmarked projects.
+	 *
+	 * @param name <code>synthetic.files</code> followed by the number of
+	 * class files, <code>synthetic.deep</code> or
+	 * <code>synthetic.large</code>
+	 * @return the shape
+	 */
+	static SyntheticWorkspace.Shape createShape(String name) {
+		if (name.equals("synthetic.deep"))
+			return new SyntheticWorkspace.Shape(name, 1000, 12);
+		if (name.equals("synthetic.large"))
+			return new SyntheticWorkspace.Shape(name, 100, 2)
+					.setLargeResources(4, 32 * 1024 * 1024);
+		if (name.startsWith("synthetic.files")) {
+			int size = Integer.parseInt(name.substring("synthetic.files"
+					.length()));
+			return new SyntheticWorkspace.Shape(name, size, 3)
+					.setLibraryFileCount(Math.max(size / 10, 10));
+		}
+		throw new IllegalArgumentException("Unknown project shape: " + name);
+	}
+
+	/**
+	 * Count the entries of a project's bundle by building it once.
+	 *
+	 * @param metadata the project configuration
+	 * @return the number of entries
+	 * @throws IOException
+	 */
+	static int countEntries(EclipseProjectMetadata metadata)
+			throws IOException {
+		EclipseProjectToOSGiBundleBuilder builder = new EclipseProjectToOSGiBundleBuilder(
+				metadata, new NullOutputStream());
+		builder.build();
+		return builder.getFileCount();
+	}
+
+	private static void benchmark(BenchmarkRunner runner, String name,
+			final File project, final ForkJoinPool pool) throws Exception {
+		final EclipseProjectMetadata metadata = EclipseProjectMetadata.load(
+				project, saxParserFactory);
+		int entries = countEntries(metadata);
+		runner.run("build/" + name, entries, new BenchmarkRunner.Operation() {
+			public void run() throws Exception {
+				new EclipseProjectToOSGiBundleBuilder(metadata,
+						new NullOutputStream()).build();
+			}
+		});
+		runner.run("build-parallel/" + name, entries,
+				new BenchmarkRunner.Operation() {
+					public void run() throws Exception {
+						EclipseProjectToOSGiBundleBuilder builder = new EclipseProjectToOSGiBundleBuilder(
+								metadata, new NullOutputStream());
+						builder.setParallelWalker(new ParallelResourceWalker(
+								pool));
+						builder.build();
+					}
+				});
+
+		final URL url = new URL(null, EclipseProjectURLHandler.URL_PROTOCOL
+				+ ":" + project.getAbsolutePath(), URL_HANDLER);
+		runner.run("url/" + name, entries, new BenchmarkRunner.Operation() {
+			public void run() throws Exception {
+				// A new handler each time, so nothing is cached
+				readFully(new EclipseProjectURLHandler(saxParserFactory), url);
+			}
+		});
+		final EclipseProjectURLHandler cachingHandler = new EclipseProjectURLHandler(
+				saxParserFactory);
+		cachingHandler.setMemoryCache(new BundleMemoryCache(Runtime.getRuntime()
+				.maxMemory() / 4));
+		runner.run("url-cached/" + name, new BenchmarkRunner.Operation() {
+			public void run() throws Exception {
+				readFully(cachingHandler, url);
+			}
+		});
+	}
+
+	static long readFully(EclipseProjectURLHandler handler, URL url)
+			throws IOException {
+		InputStream input = handler.openConnection(url).getInputStream();
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			long total = 0;
+			int read;
+			while ((read = input.read(buffer)) != -1)
+				total += read;
+			return total;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Throws the bundle away.
+	 */
+	static class NullOutputStream extends OutputStream {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,381 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import au.com.forge.felix.eclipse_pde_launcher.benchmarks.probe.StartupProbe;
+
+/**
+ * Measures how long the launcher takes to reach a started framework,
+ * for each of the Felix versions that the launcher modules are built
+ * against. It generates a workspace of eclipse-project bundles and
+ * target platform JARs, writes the config.properties file that the
+ * launch configuration would write for them, and runs
+ * <code>EclipsePDEFelixLauncher</code> in a new virtual machine, as
+ * Eclipse does. A probe bundle reports when the framework has started
+ * and then stops it.
+ *
+ * Cold launches start with an empty bundle cache. Warm launches keep the
+ * bundle cache (<code>au.com.forge.felix.config.warmstart</code>), after
+ * one launch to fill it.
+ *
+ * Configured with system properties:
+ * <ul>
+ * <li><code>benchmark.dir</code>: where the workspace is generated
+ * (defaults to a directory under java.io.tmpdir)</li>
+ * <li><code>benchmark.projects</code> and <code>benchmark.targets</code>:
+ * the number of eclipse-project bundles and target JARs (default 50
+ * each)</li>
+ * <li><code>benchmark.iterations</code>: the launches measured of each
+ * kind (default 5)</li>
+ * <li><code>benchmark.versions</code>: the Felix versions (defaults to
+ * <code>2.0.4,4.2.1,5.0.0</code>)</li>
+ * <li><code>benchmark.root</code>: the directory holding the launcher
+ * projects (defaults to the parent of the working directory)</li>
+ * <li><code>benchmark.launcher.&lt;version&gt;</code>: the class path of
+ * a launcher (defaults to the <code>bin</code> directory and Felix JAR of
+ * its project)</li>
+ * <li><code>benchmark.jvmargs</code>: extra arguments for the launched
+ * virtual machines, separated by spaces</li>
+ * <li><code>benchmark.budget.cold</code> and
+ * <code>benchmark.budget.warm</code>: the most milliseconds the median
+ * launch may take, which can be set per version by appending
+ * <code>.&lt;version&gt;</code>; the run exits with status 1 if a budget
+ * is exceeded</li>
+ * <li><code>benchmark.timeout</code>: the seconds a launch is given
+ * before it is killed (default 300)</li>
+ * </ul>
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class StartupBenchmark {
+	private static final String LAUNCHER_MAIN_CLASS = "au.com.forge.felix.eclipse_pde_launcher.impl.EclipsePDEFelixLauncher";
+
+	private static final String LAUNCHER_CONFIG_PROPERTY_KEY = "au.com.forge.felix.config.properties";
+
+	private static final String WARM_START_PROPERTY_KEY = "au.com.forge.felix.config.warmstart";
+
+	/**
+	 * The start level the bundles are started at, which is the default
+	 * of the launch configuration.
+	 */
+	private static final int START_LEVEL = 4;
+
+	/**
+	 * The launcher project of each Felix version.
+	 */
+	private static final String[][] LAUNCHER_PROJECTS = {
+			{ "2.0.4", "au.com.forge.felix.eclipse_pde_launcher" },
+			{ "4.2.1", "au.com.forge.felix.eclipse_pde_launcher-4.2" },
+			{ "5.0.0", "au.com.forge.felix.eclipse_pde_launcher-5.0" } };
+
+	/**
+	 * The times of one kind of launch, in milliseconds.
+	 */
+	private static class Launches {
+		/** From starting the virtual machine to the framework starting */
+		final long[] frameworkTimes;
+		/** From starting the process to it exiting */
+		final long[] processTimes;
+
+		Launches(int count) {
+			frameworkTimes = new long[count];
+			processTimes = new long[count];
+		}
+
+		long getMedian() {
+			long[] sorted = frameworkTimes.clone();
+			Arrays.sort(sorted);
+			return sorted[sorted.length / 2];
+		}
+
+		public String toString() {
+			long[] sorted = frameworkTimes.clone();
+			Arrays.sort(sorted);
+			long[] process = processTimes.clone();
+			Arrays.sort(process);
+			return String.format(
+					"started after %d ms median (min %d, max %d); process %d ms median",
+					sorted[sorted.length / 2], sorted[0],
+					sorted[sorted.length - 1], process[process.length / 2]);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File(System.getProperty("benchmark.dir", new File(
+				System.getProperty("java.io.tmpdir"), "felix-eclipse-benchmarks")
+				.getPath()), "startup");
+		int iterations = Math.max(Integer.getInteger("benchmark.iterations",
+				5), 1);
+		File root = new File(System.getProperty("benchmark.root", new File(
+				System.getProperty("user.dir")).getAbsoluteFile().getParent()));
+
+		String bundles = createBundleList(new SyntheticWorkspace(new File(
+				directory, "workspace")), Integer.getInteger(
+				"benchmark.projects", 50), Integer.getInteger(
+				"benchmark.targets", 50));
+
+		boolean passed = true;
+		String[] versions = System.getProperty("benchmark.versions",
+				"2.0.4,4.2.1,5.0.0").split(",");
+		for (int i = 0; i < versions.length; i++) {
+			String version = versions[i].trim();
+			String classpath = getLauncherClasspath(root, version);
+			File configDirectory = new File(directory, "felix-" + version);
+
+			Launches cold = new Launches(iterations);
+			for (int j = 0; j < iterations; j++) {
+				SyntheticWorkspace.delete(configDirectory);
+				launch(classpath, configDirectory, bundles, false, cold, j);
+			}
+			System.out.println("Felix " + version + " cold: " + cold);
+			passed &= checkBudget("cold", version, cold);
+
+			Launches warm = new Launches(iterations);
+			SyntheticWorkspace.delete(configDirectory);
+			launch(classpath, configDirectory, bundles, true, null, 0);
+			for (int j = 0; j < iterations; j++)
+				launch(classpath, configDirectory, bundles, true, warm, j);
+			System.out.println("Felix " + version + " warm: " + warm);
+			passed &= checkBudget("warm", version, warm);
+		}
+		if (!passed)
+			System.exit(1);
+	}
+
+	/**
+	 * Generate the workspace and target platform.
+	 *
+	 * @return the bundle locations to start
+	 */
+	private static String createBundleList(SyntheticWorkspace workspace,
+			int projectCount, int targetCount) throws IOException {
+		StringBuilder bundles = new StringBuilder();
+		bundles.append("file:").append(createProbeBundle(workspace));
+		for (int i = 0; i < targetCount; i++)
+			bundles.append(' ').append("file:").append(
+					workspace.createTargetBundle("startup.target" + i, 100)
+							.getAbsolutePath());
+		for (int i = 0; i < projectCount; i++)
+			bundles.append(' ').append("eclipse-project:").append(
+					workspace.createProject(
+							new SyntheticWorkspace.Shape("startup.project"
+									+ i, 200, 2)).getAbsolutePath());
+		return bundles.toString();
+	}
+
+	/**
+	 * Write the bundle of {@link StartupProbe}, copying its class from
+	 * the class path of the benchmark.
+	 *
+	 * @return the path of the bundle JAR
+	 */
+	private static String createProbeBundle(SyntheticWorkspace workspace)
+			throws IOException {
+		String className = StartupProbe.class.getName();
+		String packageName = className.substring(0, className.lastIndexOf('.'));
+		File jar = new File(workspace.getTargetDirectory(), "startup.probe.jar");
+		jar.getParentFile().mkdirs();
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", packageName);
+		attributes.putValue("Bundle-Version", "1.0.0");
+		attributes.putValue("Bundle-Activator", className);
+		attributes.putValue("Import-Package", "org.osgi.framework");
+		String classFile = className.replace('.', '/') + ".class";
+		JarOutputStream output = new JarOutputStream(new FileOutputStream(jar),
+				manifest);
+		try {
+			InputStream input = StartupProbe.class.getClassLoader()
+					.getResourceAsStream(classFile);
+			if (input == null)
+				throw new IOException("Unable to find " + classFile);
+			try {
+				output.putNextEntry(new JarEntry(classFile));
+				byte[] buffer = new byte[8 * 1024];
+				int read;
+				while ((read = input.read(buffer)) != -1)
+					output.write(buffer, 0, read);
+				output.closeEntry();
+			} finally {
+				input.close();
+			}
+		} finally {
+			output.close();
+		}
+		return jar.getAbsolutePath();
+	}
+
+	private static String getLauncherClasspath(File root, String version)
+			throws IOException {
+		String classpath = System.getProperty("benchmark.launcher." + version);
+		if (classpath != null)
+			return classpath;
+		for (int i = 0; i < LAUNCHER_PROJECTS.length; i++) {
+			if (!LAUNCHER_PROJECTS[i][0].equals(version))
+				continue;
+			File project = new File(root, LAUNCHER_PROJECTS[i][1]);
+			return new File(project, "bin").getAbsolutePath()
+					+ File.pathSeparator
+					+ new File(project, "org.apache.felix.main-" + version
+							+ ".jar").getAbsolutePath();
+		}
+		throw new IOException("No launcher project for Felix " + version
+				+ "; set benchmark.launcher." + version);
+	}
+
+	/**
+	 * Write config.properties the way the launch configuration does, and
+	 * launch the framework with it.
+	 *
+	 * @param launches where the times are recorded, or null to not record
+	 * them
+	 * @param index the index of the launch in <code>launches</code>
+	 */
+	private static void launch(String classpath, File configDirectory,
+			String bundles, boolean warmStart, Launches launches, int index)
+			throws IOException, InterruptedException {
+		File confDirectory = new File(configDirectory, "conf");
+		File bundleCache = new File(configDirectory, "bundle-cache");
+		confDirectory.mkdirs();
+		bundleCache.mkdirs();
+		Properties configProperties = new Properties();
+		configProperties.setProperty("felix.cache.rootdir", configDirectory
+				.getAbsolutePath());
+		configProperties.setProperty("org.osgi.framework.storage",
+				"bundle-cache");
+		configProperties.setProperty("org.osgi.framework.storage.clean",
+				"none");
+		configProperties.setProperty("org.osgi.framework.startlevel.beginning",
+				Integer.toString(START_LEVEL));
+		configProperties.setProperty("felix.auto.start." + START_LEVEL,
+				bundles);
+		File configFile = new File(confDirectory, "config.properties");
+		OutputStream output = new FileOutputStream(configFile);
+		try {
+			configProperties.store(output, "");
+		} finally {
+			output.close();
+		}
+
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		String jvmArguments = System.getProperty("benchmark.jvmargs");
+		if (jvmArguments != null && jvmArguments.trim().length() > 0)
+			command.addAll(Arrays.asList(jvmArguments.trim().split("\\s+")));
+		command.add("-D" + LAUNCHER_CONFIG_PROPERTY_KEY + "="
+				+ configFile.toURI());
+		command.add("-D" + WARM_START_PROPERTY_KEY + "=" + warmStart);
+		command.add("-cp");
+		command.add(classpath);
+		command.add(LAUNCHER_MAIN_CLASS);
+		command.add("bundle-cache");
+
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.directory(configDirectory);
+		processBuilder.redirectErrorStream(true);
+		long startTime = System.nanoTime();
+		final Process process = processBuilder.start();
+		Thread killer = new Thread("Startup benchmark timeout") {
+			public void run() {
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(Integer.getInteger(
+							"benchmark.timeout", 300)));
+					process.destroy();
+				} catch (InterruptedException e) {
+					// The launch finished in time
+				}
+			}
+		};
+		killer.setDaemon(true);
+		killer.start();
+
+		long frameworkTime = -1;
+		List<String> outputLines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(StartupProbe.STARTED_MARKER))
+					frameworkTime = Long.parseLong(line.substring(
+							StartupProbe.STARTED_MARKER.length()).trim());
+				else
+					outputLines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		int exitValue = process.waitFor();
+		killer.interrupt();
+		long processTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- startTime);
+		if (frameworkTime < 0) {
+			Iterator<String> it = outputLines.iterator();
+			while (it.hasNext())
+				System.err.println(it.next());
+			throw new IOException("The framework did not start (exit status "
+					+ exitValue + ")");
+		}
+		if (launches != null) {
+			launches.frameworkTimes[index] = frameworkTime;
+			launches.processTimes[index] = processTime;
+		}
+	}
+
+	/**
+	 * @return false if the median launch took longer than the budget
+	 */
+	private static boolean checkBudget(String kind, String version,
+			Launches launches) {
+		String budget = System.getProperty("benchmark.budget." + kind + "."
+				+ version, System.getProperty("benchmark.budget." + kind));
+		if (budget == null)
+			return true;
+		long median = launches.getMedian();
+		if (median <= Long.parseLong(budget.trim()))
+			return true;
+		System.err.println("OVER BUDGET Felix " + version + " " + kind
+				+ " start: " + median + " ms, budget " + budget + " ms");
+		return false;
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates Eclipse plugin projects that look as if Eclipse had just
+ * compiled them: a manifest, .classpath and build.properties, a tree of
+ * class files under <code>bin</code>, and optionally an internal library
+ * (<code>output.lib.jar</code>) and large binary resources. The contents
+ * come from a seeded random generator, so the same shape always gives
+ * the same project. It also generates bundle JARs to stand in for the
+ * target platform.
+ *
+ * A project is only generated once; later runs reuse it as long as its
+ * shape has not changed.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class SyntheticWorkspace {
+	/**
+	 * The file in each generated project that records its shape.
+	 */
+	private static final String SHAPE_FILE = ".synthetic";
+
+	/**
+	 * The number of files generated in each directory.
+	 */
+	private static final int FILES_PER_DIRECTORY = 50;
+
+	/**
+	 * The shape of a generated project.
+	 */
+	public static class Shape {
+		private final String name;
+		private final int fileCount;
+		private final int depth;
+		private int libraryFileCount = 0;
+		private int largeResourceCount = 0;
+		private int largeResourceSize = 0;
+
+		/**
+		 * @param name the project name, which is also its symbolic name
+		 * @param fileCount the number of class files under <code>bin</code>
+		 * @param depth the depth of the package directories
+		 */
+		public Shape(String name, int fileCount, int depth) {
+			this.name = name;
+			this.fileCount = fileCount;
+			this.depth = Math.max(depth, 1);
+		}
+
+		/**
+		 * @param libraryFileCount the number of class files of an internal
+		 * library JAR, or 0 for none
+		 * @return this shape
+		 */
+		public Shape setLibraryFileCount(int libraryFileCount) {
+			this.libraryFileCount = libraryFileCount;
+			return this;
+		}
+
+		/**
+		 * @param count the number of large binary resources under
+		 * <code>res</code>
+		 * @param size the size of each of them in bytes
+		 * @return this shape
+		 */
+		public Shape setLargeResources(int count, int size) {
+			this.largeResourceCount = count;
+			this.largeResourceSize = size;
+			return this;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String toString() {
+			return name + ": files=" + fileCount + " depth=" + depth
+					+ " library=" + libraryFileCount + " resources="
+					+ largeResourceCount + "x" + largeResourceSize;
+		}
+	}
+
+	private final File directory;
+
+	/**
+	 * @param directory the directory the projects are generated in
+	 */
+	public SyntheticWorkspace(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Generate a project, unless it has already been generated with the
+	 * same shape.
+	 *
+	 * @param shape the shape of the project
+	 * @return the project directory
+	 * @throws IOException thrown if the project cannot be written
+	 */
+	public File createProject(Shape shape) throws IOException {
+		File projectDirectory = new File(directory, shape.name);
+		File shapeFile = new File(projectDirectory, SHAPE_FILE);
+		if (shapeFile.isFile()
+				&& new String(Files.readAllBytes(shapeFile.toPath()), "UTF-8")
+						.equals(shape.toString()))
+			return projectDirectory;
+		delete(projectDirectory);
+		if (!projectDirectory.mkdirs())
+			throw new IOException("Unable to create " + projectDirectory);
+
+		Random random = new Random(shape.toString().hashCode());
+		StringBuilder binIncludes = new StringBuilder("META-INF/,.");
+		String bundleClassPath = ".";
+		writeClassFiles(new File(projectDirectory, "bin"), shape.name
+				.replace('.', '/'), shape.fileCount, shape.depth, random);
+		if (shape.libraryFileCount > 0) {
+			writeClassFiles(new File(projectDirectory, "libbin"), "lib",
+					shape.libraryFileCount, 2, random);
+			binIncludes.append(",lib.jar");
+			bundleClassPath += ",lib.jar";
+		}
+		if (shape.largeResourceCount > 0) {
+			File resources = new File(projectDirectory, "res");
+			resources.mkdirs();
+			for (int i = 0; i < shape.largeResourceCount; i++)
+				writeRandomFile(new File(resources, "resource" + i + ".bin"),
+						shape.largeResourceSize, random);
+			binIncludes.append(",res/");
+		}
+
+		writeText(new File(projectDirectory, "META-INF/MANIFEST.MF"),
+				"Manifest-Version: 1.0\n" + "Bundle-ManifestVersion: 2\n"
+						+ "Bundle-SymbolicName: " + shape.name + "\n"
+						+ "Bundle-Version: 1.0.0\n" + "Bundle-ClassPath: "
+						+ bundleClassPath + "\n");
+		writeText(new File(projectDirectory, ".classpath"),
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+						+ "<classpath>\n"
+						+ "\t<classpathentry kind=\"src\" path=\"src\"/>\n"
+						+ "\t<classpathentry kind=\"output\" path=\"bin\"/>\n"
+						+ "</classpath>\n");
+		writeText(new File(projectDirectory, "build.properties"),
+				"bin.includes = " + binIncludes + "\n" + "source.. = src/\n"
+						+ "output.. = bin/\n"
+						+ (shape.libraryFileCount > 0 ? "output.lib.jar = libbin/\n"
+								: ""));
+		writeText(shapeFile, shape.toString());
+		return projectDirectory;
+	}
+
+	/**
+	 * @return the directory the target platform bundles are generated in
+	 */
+	public File getTargetDirectory() {
+		return new File(directory, "target");
+	}
+
+	/**
+	 * Generate a target platform bundle JAR of random class files, unless
+	 * it has already been generated.
+	 *
+	 * @param symbolicName the symbolic name of the bundle, which is also
+	 * its file name
+	 * @param fileCount the number of class files
+	 * @return the bundle JAR
+	 * @throws IOException thrown if the JAR cannot be written
+	 */
+	public File createTargetBundle(String symbolicName, int fileCount)
+			throws IOException {
+		File targetDirectory = getTargetDirectory();
+		File jar = new File(targetDirectory, symbolicName + "_1.0.0-"
+				+ fileCount + ".jar");
+		if (jar.isFile())
+			return jar;
+		targetDirectory.mkdirs();
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", symbolicName);
+		attributes.putValue("Bundle-Version", "1.0.0");
+		Random random = new Random(symbolicName.hashCode());
+		File partial = new File(targetDirectory, jar.getName() + ".part");
+		JarOutputStream output = new JarOutputStream(new FileOutputStream(
+				partial), manifest);
+		try {
+			String root = symbolicName.replace('.', '/');
+			for (int i = 0; i < fileCount; i++) {
+				output.putNextEntry(new JarEntry(root + "/Class" + i
+						+ ".class"));
+				byte[] contents = new byte[512 + random.nextInt(3584)];
+				random.nextBytes(contents);
+				output.write(contents);
+				output.closeEntry();
+			}
+		} finally {
+			output.close();
+		}
+		if (!partial.renameTo(jar))
+			throw new IOException("Unable to create " + jar);
+		return jar;
+	}
+
+	/**
+	 * Write class files of 512 bytes to 4 KB, {@link #FILES_PER_DIRECTORY}
+	 * to a directory, in a tree of the given depth.
+	 */
+	private static void writeClassFiles(File outputDirectory, String root,
+			int count, int depth, Random random) throws IOException {
+		for (int i = 0; i < count; i++) {
+			int directoryIndex = i / FILES_PER_DIRECTORY;
+			StringBuilder path = new StringBuilder(root);
+			for (int level = depth - 1; level >= 0; level--) {
+				long divisor = (long) Math.pow(10, level);
+				long segment = directoryIndex / divisor;
+				if (level < depth - 1)
+					segment %= 10;
+				path.append("/p").append(segment);
+			}
+			path.append("/Class").append(i).append(".class");
+			writeRandomFile(new File(outputDirectory, path.toString()),
+					512 + random.nextInt(3584), random);
+		}
+	}
+
+	private static void writeRandomFile(File file, int size, Random random)
+			throws IOException {
+		file.getParentFile().mkdirs();
+		byte[] chunk = new byte[Math.min(size, 64 * 1024)];
+		OutputStream output = new FileOutputStream(file);
+		try {
+			int remaining = size;
+			while (remaining > 0) {
+				random.nextBytes(chunk);
+				int length = Math.min(chunk.length, remaining);
+				output.write(chunk, 0, length);
+				remaining -= length;
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void writeText(File file, String text) throws IOException {
+		file.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+				"UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Delete a file or directory tree.
+	 *
+	 * @param file the file or directory
+	 * @throws IOException thrown if it cannot be deleted
+	 */
+	static void delete(File file) throws IOException {
+		if (!file.exists())
+			return;
+		File[] children = file.listFiles();
+		if (children != null && !Files.isSymbolicLink(file.toPath())) {
+			for (int i = 0; i < children.length; i++)
+				delete(children[i]);
+		}
+		if (!file.delete())
+			throw new IOException("Unable to delete " + file);
+	}
+}
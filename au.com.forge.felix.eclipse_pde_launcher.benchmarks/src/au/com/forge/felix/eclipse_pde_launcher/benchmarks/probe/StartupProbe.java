@@ -0,0 +1,81 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.benchmarks.probe;
+
+import java.lang.management.ManagementFactory;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+
+/**
+ * The activator of the probe bundle that the startup benchmark launches
+ * with the framework. When the framework has started it prints
+ * {@link #STARTED_MARKER} followed by the milliseconds since the virtual
+ * machine started, then stops the framework so the launcher exits.
+ *
+ * Only uses API that every supported Felix version has, and is a single
+ * class so the benchmark can copy it into the probe bundle.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+public class StartupProbe implements BundleActivator, FrameworkListener,
+		Runnable {
+	/**
+	 * The start of the line the probe prints.
+	 */
+	public static final String STARTED_MARKER = "STARTUP-PROBE framework started after ms: ";
+
+	private BundleContext context;
+
+	public void start(BundleContext context) throws Exception {
+		this.context = context;
+		context.addFrameworkListener(this);
+	}
+
+	public void stop(BundleContext context) throws Exception {
+		context.removeFrameworkListener(this);
+	}
+
+	public void frameworkEvent(FrameworkEvent event) {
+		if (event.getType() != FrameworkEvent.STARTED)
+			return;
+		System.out.println(STARTED_MARKER
+				+ ManagementFactory.getRuntimeMXBean().getUptime());
+		System.out.flush();
+		// Not on the event thread, which the framework waits for
+		new Thread(this, "Startup probe").start();
+	}
+
+	/**
+	 * Stop the framework.
+	 */
+	public void run() {
+		try {
+			context.getBundle(0).stop();
+		} catch (BundleException e) {
+			System.err.println("Unable to stop the framework: " + e);
+		}
+	}
+}
@@ -44,6 +44,24 @@ import org.osgi.service.url.URLStreamHandlerService;
  */
 public class EPURLHandlerActivator implements BundleActivator {
 
+	/**
+	 * Launcher property listing the extensions of bundle entries that
+	 * are deflated (e.g. "txt,xml,properties").
+	 */
+	private static final String COMPRESSION_DEFLATE_PROPERTY_KEY = "au.com.forge.felix.builder.compression.deflate";
+
+	/**
+	 * Launcher property listing the extensions of bundle entries that
+	 * are always stored uncompressed.
+	 */
+	private static final String COMPRESSION_STORE_PROPERTY_KEY = "au.com.forge.felix.builder.compression.store";
+
+	/**
+	 * Launcher property specifying the size (in bytes) from which
+	 * bundle entries are deflated whatever their extension.
+	 */
+	private static final String COMPRESSION_SIZE_PROPERTY_KEY = "au.com.forge.felix.builder.compression.size";
+
 	private ServiceRegistration eclipseHandlerReg;
 	private EclipseProjectURLHandler eclipseHandler;
 
@@ -61,6 +79,7 @@ public class EPURLHandlerActivator implements BundleActivator {
 		serviceProps.setProperty(URLConstants.URL_HANDLER_PROTOCOL,
 				EclipseProjectURLHandler.URL_PROTOCOL);
 		eclipseHandler = new EclipseProjectURLHandler(factory);
+		eclipseHandler.setCompressionPolicy(createCompressionPolicy(context));
 		eclipseHandlerReg = context.registerService(
 				URLStreamHandlerService.class.getName(), eclipseHandler,
 				serviceProps);
@@ -70,4 +89,32 @@ public class EPURLHandlerActivator implements BundleActivator {
 	public void stop(BundleContext context) {
 		eclipseHandlerReg.unregister();
 	}
+
+	/**
+	 * Create the compression policy from the launcher properties.
+	 * 
+	 * @param context the system bundle context
+	 * @return the compression policy, which stores every entry unless
+	 * one of the properties is set
+	 */
+	private static CompressionPolicy createCompressionPolicy(
+			BundleContext context) {
+		String storedExtensions = context
+				.getProperty(COMPRESSION_STORE_PROPERTY_KEY);
+		long deflateSize = 0;
+		String size = context.getProperty(COMPRESSION_SIZE_PROPERTY_KEY);
+		if (size != null) {
+			try {
+				deflateSize = Math.max(0, Long.parseLong(size.trim()));
+			} catch (NumberFormatException e) {
+				System.err.println("Ignoring invalid value for "
+						+ COMPRESSION_SIZE_PROPERTY_KEY + ": " + size);
+			}
+		}
+		return new CompressionPolicy(context
+				.getProperty(COMPRESSION_DEFLATE_PROPERTY_KEY),
+				storedExtensions != null ? storedExtensions
+						: CompressionPolicy.DEFAULT_STORED_EXTENSIONS,
+				deflateSize);
+	}
 }
@@ -36,6 +36,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.jar.JarOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -176,8 +177,14 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 				// file was just generated by the
 				// "Configure -> Convert to Plugin Project" menu
 				buildProperties.put("bin.includes", "META-INF,.");
-			} else
-				buildProperties.load(new FileInputStream(buildPropertiesFile));
+			} else {
+				InputStream input = new FileInputStream(buildPropertiesFile);
+				try {
+					buildProperties.load(input);
+				} finally {
+					input.close();
+				}
+			}
 
 			outputStream.setLevel(ZipOutputStream.STORED);
 
@@ -258,6 +265,8 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 
 				// Write its output entry
 				ZipEntry outputEntry = new ZipEntry(outputResource);
+				setEntryLevel(jarFile, outputResource,
+						internalJarByteBuffer.size());
 				jarFile.putNextEntry(outputEntry);
 				jarFile.write(internalJarByteBuffer.toByteArray());
 				jarFile.closeEntry();
@@ -301,6 +310,7 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 			
 			ZipEntry entry = new ZipEntry(outputResource);
 			addedEntries.add(outputResource);
+			setEntryLevel(jarFile, outputResource, inputFile.length());
 			jarFile.putNextEntry(entry);
 			InputStream inputFileStream = new FileInputStream(inputFile);
 
@@ -314,9 +324,21 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 			jarFile.closeEntry();
 		}
 
+		/**
+		 * Set the compression level of the next entry from the
+		 * compression policy.
+		 */
+		private void setEntryLevel(ZipOutputStream jarFile,
+				String outputResource, long size) {
+			jarFile.setLevel(compressionPolicy.shouldDeflate(outputResource,
+					size) ? Deflater.DEFAULT_COMPRESSION
+					: Deflater.NO_COMPRESSION);
+		}
+
 	}
 
 	private SAXParserFactory saxParserFactory;
+	private CompressionPolicy compressionPolicy = CompressionPolicy.STORE_ALL;
 
 	/**
 	 * @param factory
@@ -353,4 +375,11 @@ public class EclipseProjectURLHandler extends AbstractURLStreamHandlerService {
 		this.saxParserFactory = arg1;
 	}
 
+	/**
+	 * @param compressionPolicy decides which bundle entries are deflated
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
 }
@@ -28,6 +28,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.felix.framework.Felix;
 import org.apache.felix.framework.FrameworkFactory;
@@ -63,6 +64,15 @@ public class EclipsePDEFelixLauncher {
      * */
     private static final String LAUNCHER_INIT_AWT_KEY = "au.com.forge.felix.config.init.awt";
 
+	/**
+	 * Launcher property that keeps the bundle cache between launches:
+	 * bundles removed from the launch are uninstalled, bundles added to
+	 * it are installed, and the rest are used as they are in the cache.
+	 * The launch configuration only keeps the bundle cache when this is
+	 * set.
+	 */
+	private static final String WARM_START_PROPERTY_KEY = "au.com.forge.felix.config.warmstart";
+
 	/**
 	 * Launch the framework
 	 * 
@@ -119,7 +129,23 @@ public class EclipsePDEFelixLauncher {
 
 			framework = (Felix)frameworkFactory.newFramework(stringMap);
 			framework.init();
+			// Felix only copies its own system properties into the configuration
+			String warmStartProperty = configProperties.getProperty(
+					WARM_START_PROPERTY_KEY, System
+							.getProperty(WARM_START_PROPERTY_KEY));
+			boolean warmStart = Boolean.valueOf(warmStartProperty)
+					.booleanValue();
+			Set<String> selectedLocations = null;
+			if (warmStart) {
+				selectedLocations = LaunchedBundles
+						.getSelectedLocations(configProperties);
+				LaunchedBundles.uninstallRemoved(framework.getBundleContext(),
+						selectedLocations);
+			}
 			AutoProcessor.process(stringMap, framework.getBundleContext());
+			if (warmStart)
+				LaunchedBundles.record(framework.getBundleContext(),
+						selectedLocations);
 			framework.start();
 			framework.waitForStop(0);
 			System.exit(0);
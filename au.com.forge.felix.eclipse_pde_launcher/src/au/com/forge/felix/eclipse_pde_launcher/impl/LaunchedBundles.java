@@ -0,0 +1,180 @@
+/**
+ *  Eclipse PDE Felix Launcher - launches Apache Felix with support for Eclipse PDE project
+ *  directories as bundles
+ *
+ *  Copyright (C) 2010 Forge Research
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package au.com.forge.felix.eclipse_pde_launcher.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+
+/**
+ * Keeps the bundle cache warm between launches. The locations in the
+ * auto-install and auto-start lists are recorded in the system
+ * bundle's data area after each launch. On the next launch, the
+ * bundles whose locations have been removed from the lists are
+ * uninstalled before the auto-processor runs; the auto-processor finds
+ * the remaining bundles already installed, so only the bundles added
+ * to the lists are installed.
+ *
+ * Bundles installed some other way (e.g. from the Felix shell) are
+ * left alone.
+ *
+ * @author Christopher Armstrong
+ *
+ */
+class LaunchedBundles {
+	/**
+	 * The file in the system bundle's data area that holds the locations
+	 * of the previous launch, one per line.
+	 */
+	private static final String LOCATIONS_FILE = "launched-bundles.txt";
+
+	private LaunchedBundles() {
+	}
+
+	/**
+	 * Collect the locations in the auto-install and auto-start lists
+	 * (<code>felix.auto.install[.N]</code> and
+	 * <code>felix.auto.start[.N]</code>).
+	 *
+	 * @param configProperties felix properties
+	 * @return the locations, in list order
+	 */
+	static Set<String> getSelectedLocations(Map<?, ?> configProperties) {
+		Set<String> locations = new LinkedHashSet<String>();
+		Iterator<? extends Map.Entry<?, ?>> it = configProperties.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<?, ?> entry = it.next();
+			String key = String.valueOf(entry.getKey());
+			if (!(entry.getValue() instanceof String)
+					|| !(key.startsWith("felix.auto.install") || key
+							.startsWith("felix.auto.start")))
+				continue;
+			String[] values = ((String) entry.getValue()).trim().split("\\s+");
+			for (int i = 0; i < values.length; i++) {
+				String location = values[i];
+				// The auto-processor allows locations to be quoted
+				if (location.length() > 1 && location.startsWith("\"")
+						&& location.endsWith("\""))
+					location = location.substring(1, location.length() - 1);
+				if (location.length() > 0)
+					locations.add(location);
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * Uninstall the bundles that the previous launch installed but that
+	 * are no longer selected.
+	 *
+	 * @param context the system bundle context
+	 * @param selectedLocations the locations selected for this launch
+	 * @return the number of bundles uninstalled
+	 */
+	static int uninstallRemoved(BundleContext context,
+			Set<String> selectedLocations) {
+		Set<String> previousLocations = readPreviousLocations(context);
+		int uninstalled = 0;
+		Bundle[] bundles = context.getBundles();
+		for (int i = 0; i < bundles.length; i++) {
+			Bundle bundle = bundles[i];
+			String location = bundle.getLocation();
+			if (bundle.getBundleId() == 0
+					|| !previousLocations.contains(location)
+					|| selectedLocations.contains(location))
+				continue;
+			try {
+				bundle.uninstall();
+				uninstalled++;
+			} catch (BundleException e) {
+				System.err.println("Unable to uninstall " + location
+						+ ", which is no longer selected: " + e);
+			}
+		}
+		return uninstalled;
+	}
+
+	/**
+	 * Record the locations selected for this launch, for the next one.
+	 *
+	 * @param context the system bundle context
+	 * @param selectedLocations the locations selected for this launch
+	 */
+	static void record(BundleContext context, Set<String> selectedLocations) {
+		File file = context.getDataFile(LOCATIONS_FILE);
+		if (file == null)
+			return;
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+					"UTF-8");
+			try {
+				Iterator<String> it = selectedLocations.iterator();
+				while (it.hasNext()) {
+					writer.write(it.next());
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to record the launched bundles in "
+					+ file + ": " + e);
+		}
+	}
+
+	private static Set<String> readPreviousLocations(BundleContext context) {
+		Set<String> locations = new LinkedHashSet<String>();
+		File file = context.getDataFile(LOCATIONS_FILE);
+		if (file == null || !file.isFile())
+			return locations;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.length() > 0)
+						locations.add(line);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read the bundles of the previous launch from "
+					+ file + ": " + e);
+		}
+		return locations;
+	}
+}